@@ -20,6 +20,10 @@ public class ExprList implements Iterable<Expression>
     public Expression get(int i){
         return elist.get(i);
     }
+
+    public void set(int i, Expression e){
+        elist.set(i, e);
+    }
     
     public int size() {
         return elist.size();
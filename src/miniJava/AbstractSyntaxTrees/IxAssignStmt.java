@@ -23,4 +23,7 @@ public class IxAssignStmt extends Statement
     public Reference ref;
     public Expression ix;
     public Expression exp;
+    // proved not to fail, so the access uses uarrayupd, which skips only the array tag
+    // check; the index is still checked against the array's size in case the proof is wrong
+    public boolean safe;
 }
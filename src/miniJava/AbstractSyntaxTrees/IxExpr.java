@@ -21,5 +21,8 @@ public <A,R> R visit(Visitor<A,R> v, A o) {
 
 public Reference ref;
 public Expression ixExpr;
+// proved not to fail, so the access uses uarrayref, which skips only the array tag
+// check; the index is still checked against the array's size in case the proof is wrong
+public boolean safe;
 
 }
@@ -22,4 +22,7 @@ public class QualRef extends Reference {
 
 	public Reference ref;
 	public Identifier id;
+	// a field access proved not to fail, recorded in the n field of LOADF and STOREF;
+	// the machine still checks the access
+	public boolean safe;
 }
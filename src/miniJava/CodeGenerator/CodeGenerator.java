@@ -4,31 +4,104 @@ import miniJava.AbstractSyntaxTrees.*;
 import miniJava.AbstractSyntaxTrees.Package;
 import miniJava.Compiler;
 import miniJava.ContextualAnalyzer.Identification;
+import miniJava.IR.Function;
+import miniJava.IR.Lowerer;
+import miniJava.IR.SSABuilder;
+import miniJava.mJAM.Emitter;
+import miniJava.mJAM.Emitter.Label;
 import miniJava.mJAM.Machine;
 
 import miniJava.mJAM.Machine.*;
 
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.function.Consumer;
 
 public class CodeGenerator implements Visitor<Object, Object> {
+    /** Largest method body, in statements and expressions, inlined at its call sites by default. */
+    public static final int DEFAULT_INLINE_BUDGET = 12;
+
     Package ast;
     int stackTop;
-    ArrayList<Integer> addressesToPatch;
-    ArrayList<MethodDecl> methodDeclsToPatchWith;
+    Emitter emitter;
+    // entry of each method called or generated so far
+    HashMap<MethodDecl, Label> methodLabels;
+    // method whose frame code is being generated for, and the words the expressions
+    // being evaluated have pushed above its locals
+    MethodDecl frame;
+    int temporaries;
+    // where the body of the method being generated starts, once its frame is reserved
+    Label body;
+    // innermost method being inlined, or null
+    InlineFrame inline;
+    int inlineBudget;
+    HashMap<MethodDecl, Integer> inlineCosts;
+    // call statements in tail position in the method being generated
+    HashSet<Statement> tailCalls;
+    // passes run on each method's SSA form before it is lowered, or null to generate
+    // code straight from the AST
+    Consumer<Function> irPasses;
+
+    /**
+     * A method whose body is being generated in place of a call to it. Its parameters,
+     * receiver if it needs one, and locals occupy the caller's frame from start on.
+     */
+    private static final class InlineFrame {
+        final MethodDecl method;
+        final int start;
+        // frame offset of the receiver, or -1 if OB holds it
+        final int receiver;
+        // whether the receiver in the frame is known not to be null
+        final boolean safeReceiver;
+        final Label end;
+        final InlineFrame outer;
+
+        InlineFrame(MethodDecl method, int start, int receiver, boolean safeReceiver, Label end, InlineFrame outer) {
+            this.method = method;
+            this.start = start;
+            this.receiver = receiver;
+            this.safeReceiver = safeReceiver;
+            this.end = end;
+            this.outer = outer;
+        }
+    }
 
     public CodeGenerator(Package ast) {
         this.ast = ast;
         stackTop = 0;
-        addressesToPatch = new ArrayList<>();
-        methodDeclsToPatchWith = new ArrayList<>();
+        emitter = new Emitter();
+        methodLabels = new HashMap<>();
+        inlineBudget = DEFAULT_INLINE_BUDGET;
+        inlineCosts = new HashMap<>();
+        tailCalls = new HashSet<>();
+    }
+
+    /**
+     * Sets the largest method body, in statements and expressions, that is inlined;
+     * 0 inlines nothing.
+     */
+    public void setInlineBudget(int budget) {
+        inlineBudget = budget;
+    }
+
+    /**
+     * Generates each method through its SSA form, running the given passes on it first;
+     * null generates code straight from the AST.
+     */
+    public void setIRPasses(Consumer<Function> passes) {
+        irPasses = passes;
     }
 
-    public void generateCode() {
-        Machine.initCodeGen();
+    /**
+     * @return the emitter holding the generated code
+     */
+    public Emitter generateCode() {
         ast.visit(this, null);
-        for (int i = 0; i < addressesToPatch.size(); i++) {
-            Machine.patch(addressesToPatch.get(i), ((MethodDescription) methodDeclsToPatchWith.get(i).runtimeDescription).cbOffset);
-        }
+        return emitter;
+    }
+
+    private Label methodLabel(MethodDecl md) {
+        return methodLabels.computeIfAbsent(md, m -> emitter.newLabel());
     }
 
     @Override
@@ -41,21 +114,26 @@ public class CodeGenerator implements Visitor<Object, Object> {
             }
         }
         // Generate the main method
-        Machine.emit(Op.LOADL, 0);
-        Machine.emit(Prim.newarr);
-        int mainCallAddress = Machine.nextInstrAddr();
-        Machine.emit(Op.CALL, Reg.CB, -1);
-        Machine.emit(Op.HALT);
-
-        // Now we can visit the methods
-        for (ClassDecl cd : prog.classDeclList) {
-            for (MethodDecl md : cd.methodDeclList) {
-                md.visit(this, null);
+        emitter.emit(Op.LOADL, 0);
+        emitter.emit(Prim.newarr);
+        emitter.emit(Op.CALL, Reg.CB, methodLabel(prog.mainDecl));
+        emitter.emit(Op.HALT);
+
+        // Now we can visit the methods, each once something calls it; a method inlined
+        // wherever it is called needs no code of its own
+        HashSet<MethodDecl> generated = new HashSet<>();
+        boolean progress;
+        do {
+            progress = false;
+            for (ClassDecl cd : prog.classDeclList) {
+                for (MethodDecl md : cd.methodDeclList) {
+                    if (methodLabels.containsKey(md) && generated.add(md)) {
+                        md.visit(this, cd);
+                        progress = true;
+                    }
+                }
             }
-        }
-
-        // Patch all method call instructions.
-        addToPatchList(mainCallAddress, prog.mainDecl);
+        } while (progress);
         return null;
     }
 
@@ -72,7 +150,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
         VarDescription fdDescription = (VarDescription) fd.runtimeDescription;
         if (fd.isStatic) {
             fdDescription.offset = stackTop;
-            Machine.emit(Op.PUSH, 1);
+            emitter.emit(Op.PUSH, 1);
             stackTop += fd.runtimeDescription.size;
         } else {
             fdDescription.offset = cd.runtimeDescription.size;
@@ -83,20 +161,79 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitMethodDecl(MethodDecl md, Object arg) {
-        md.runtimeDescription = new MethodDescription(Machine.nextInstrAddr());
+        ClassDecl cd = (ClassDecl) arg;
+        emitter.defineSymbol(cd.name + "." + md.name);
+        emitter.bind(methodLabel(md));
+        md.runtimeDescription = new MethodDescription(emitter.nextInstrAddr());
+        frame = md;
+        temporaries = 0;
+        tailCalls.clear();
+        findTailCalls(md.statementList, true);
         for (ParameterDecl pd : md.parameterDeclList) {
             pd.visit(this, md);
         }
+        if (irPasses != null) {
+            Function function = new SSABuilder(inlineBudget, this::inlineCost, tailCalls::contains, this::isSelfTailCall).build(md);
+            irPasses.accept(function);
+            new Lowerer(emitter, this::methodLabel).lower(function);
+            return null;
+        }
         int size = md.statementList.size();
         if (size == 0 || !(md.statementList.get(size - 1) instanceof ReturnStmt)) {
             md.statementList.add(new ReturnStmt(null, null));
         }
+        // the locals get their slots up front, reserved all at once
+        int locals = FrameLayout.layOut(md);
+        if (locals > 0) {
+            emitter.emit(Op.PUSH, locals);
+            md.runtimeDescription.size += locals;
+        }
+        body = emitter.here();
         for (Statement st : md.statementList) {
+            markLine(st);
             st.visit(this, md);
         }
         return null;
     }
 
+    /**
+     * Records the call statements after which the method returns without doing anything
+     * else: the last in a list that is itself in tail position, or one followed by a return.
+     * The SSA builder asks the same set, so both paths agree on what a tail call is.
+     */
+    private void findTailCalls(StatementList statements, boolean tail) {
+        for (int i = 0; i < statements.size(); i++) {
+            Statement st = statements.get(i);
+            boolean stTail = i + 1 < statements.size()
+                    ? statements.get(i + 1) instanceof ReturnStmt && ((ReturnStmt) statements.get(i + 1)).returnExpr == null
+                    : tail;
+            findTailCalls(st, stTail);
+        }
+    }
+
+    private void findTailCalls(Statement st, boolean tail) {
+        if (!tail) {
+            return;
+        }
+        if (st instanceof CallStmt) {
+            tailCalls.add(st);
+        } else if (st instanceof BlockStmt) {
+            findTailCalls(((BlockStmt) st).sl, true);
+        } else if (st instanceof IfStmt) {
+            findTailCalls(((IfStmt) st).thenStmt, true);
+            if (((IfStmt) st).elseStmt != null) {
+                findTailCalls(((IfStmt) st).elseStmt, true);
+            }
+        }
+    }
+
+    private void markLine(Statement st) {
+        // statements added by the code generator have no position, and inlined code
+        // counts as the line of its call
+        if (st.posn != null && inline == null)
+            emitter.markLine(st.posn.start);
+    }
+
     @Override
     public Object visitParameterDecl(ParameterDecl pd, Object arg) {
         MethodDecl md = (MethodDecl) arg;
@@ -110,6 +247,8 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitVarDecl(VarDecl decl, Object arg) {
+        // only an inlined method's locals are pushed as they are declared; the frame
+        // layout placed the others
         MethodDecl md = (MethodDecl) arg;
         decl.runtimeDescription = new VarDescription(1);
         VarDescription declDescription = (VarDescription) decl.runtimeDescription;
@@ -143,11 +282,12 @@ public class CodeGenerator implements Visitor<Object, Object> {
         int originalSize = md.runtimeDescription.size;
 
         for (Statement st : stmt.sl) {
+            markLine(st);
             st.visit(this, md);
         }
-        // Remove variables in the block statement from the frame
+        // Remove the variables an inlined method declared in the block from the frame
         if (md.runtimeDescription.size - originalSize != 0) {
-            Machine.emit(Op.POP, md.runtimeDescription.size - originalSize);
+            emitter.emit(Op.POP, md.runtimeDescription.size - originalSize);
             md.runtimeDescription.size = originalSize;
         }
         return null;
@@ -156,8 +296,13 @@ public class CodeGenerator implements Visitor<Object, Object> {
     @Override
     public Object visitVardeclStmt(VarDeclStmt stmt, Object arg) {
         MethodDecl md = (MethodDecl) arg;
-        stmt.varDecl.visit(this, md);
         stmt.initExp.visit(this, md);
+        if (inline != null) {
+            // the value pushed becomes the variable
+            stmt.varDecl.visit(this, md);
+        } else {
+            emitter.emit(Op.STORE, Reg.LB, ((VarDescription) stmt.varDecl.runtimeDescription).offset);
+        }
         return null;
     }
 
@@ -166,26 +311,35 @@ public class CodeGenerator implements Visitor<Object, Object> {
         MethodDecl md = (MethodDecl) arg;
         VarDescription varDesc = (VarDescription) stmt.ref.decl.runtimeDescription;
 
-        if (stmt.ref instanceof IdRef) {
+        if (stmt.ref instanceof IdRef && stmt.ref.decl instanceof FieldDecl
+                && !((FieldDecl) stmt.ref.decl).isStatic && inline != null && inline.receiver >= 0) {
+            // a field of an inlined method's receiver
+            emitThis();
+            temporaries++;
+            stmt.val.visit(this, md);
+            temporaries--;
+            emitter.emit(Op.STOREF, inline.safeReceiver ? 1 : 0, Reg.ZR, varDesc.offset);
+        } else if (stmt.ref instanceof IdRef) {
             stmt.val.visit(this, md);
             if (stmt.ref.decl instanceof FieldDecl) {
                 FieldDecl fd = (FieldDecl) stmt.ref.decl;
-                Machine.emit(Op.STORE, fd.isStatic ? Reg.SB : Reg.OB, varDesc.offset);
+                emitter.emit(Op.STORE, fd.isStatic ? Reg.SB : Reg.OB, varDesc.offset);
             } else if (stmt.ref.decl instanceof LocalDecl) {
-                Machine.emit(Op.STORE, Reg.LB, varDesc.offset);
+                emitter.emit(Op.STORE, Reg.LB, varDesc.offset);
             }
         } else if (stmt.ref instanceof QualRef) {
             // stmt.ref is a variable that is a QualRef, hence it is a field variable.
             FieldDecl fd = (FieldDecl) stmt.ref.decl;
             if (fd.isStatic) {
                 stmt.val.visit(this, md);
-                Machine.emit(Op.STORE, Reg.SB, varDesc.offset);
+                emitter.emit(Op.STORE, Reg.SB, varDesc.offset);
             } else {
                 QualRef lhsRef = (QualRef) stmt.ref;
                 lhsRef.ref.visit(this, md);
-                Machine.emit(Op.LOADL, ((VarDescription) lhsRef.id.decl.runtimeDescription).offset);
+                temporaries++;
                 stmt.val.visit(this, md);
-                Machine.emit(Prim.fieldupd);
+                temporaries--;
+                emitter.emit(Op.STOREF, lhsRef.safe ? 1 : 0, Reg.ZR, varDesc.offset);
             }
         }
         return null;
@@ -195,36 +349,27 @@ public class CodeGenerator implements Visitor<Object, Object> {
     public Object visitIxAssignStmt(IxAssignStmt stmt, Object arg) {
         // Put address of array, element index, new value on stack
         stmt.ref.visit(this, null);
+        temporaries++;
         stmt.ix.visit(this, null);
+        temporaries++;
         stmt.exp.visit(this, null);
-        Machine.emit(Prim.arrayupd);
+        temporaries -= 2;
+        emitter.emit(stmt.safe ? Prim.uarrayupd : Prim.arrayupd);
         return null;
     }
 
     @Override
     public Object visitCallStmt(CallStmt stmt, Object arg) {
-        MethodDecl md = (MethodDecl) arg;
-        for (Expression argument : stmt.argList) {
-            argument.visit(this, null);
-        }
         MethodDecl calledMethod = (MethodDecl) stmt.methodRef.decl;
         if (calledMethod == Compiler.PRINTLN_DECL) {
-            Machine.emit(Prim.putintnl);
+            stmt.argList.get(0).visit(this, null);
+            emitter.emit(Prim.putintnl);
+        } else if (tailCalls.contains(stmt) && isSelfTailCall(stmt.methodRef)) {
+            emitSelfTailCall(stmt.argList);
         } else {
-            // If the method is an instance method, we need to push the address of the object calling it onto the stack.
-            if (!calledMethod.isStatic) {
-                if (stmt.methodRef instanceof QualRef) {
-                    ((QualRef) stmt.methodRef).ref.visit(this, null);
-                } else {
-                    // Implicit this.
-                    Machine.emit(Op.LOADA, Reg.OB, 0);
-                }
-            }
-            int methodCallAddress = Machine.nextInstrAddr();
-            Machine.emit(calledMethod.isStatic ? Op.CALL : Op.CALLI, Reg.CB, -1);
-            addToPatchList(methodCallAddress, calledMethod);
+            emitCall(stmt.methodRef, stmt.argList);
             if (calledMethod.type.typeKind != TypeKind.VOID) {
-                Machine.emit(Op.POP, 1);
+                emitter.emit(Op.POP, 1);
             }
         }
         return null;
@@ -233,11 +378,28 @@ public class CodeGenerator implements Visitor<Object, Object> {
     @Override
     public Object visitReturnStmt(ReturnStmt stmt, Object arg) {
         MethodDecl md = (MethodDecl) arg;
-        if (stmt.returnExpr != null) {
+        if (inline != null) {
+            // leave the result where the inlined method's frame began, drop the rest of
+            // that frame and continue after the call
+            int size = md.runtimeDescription.size;
+            if (stmt.returnExpr != null) {
+                stmt.returnExpr.visit(this, null);
+                if (size > inline.start) {
+                    emitter.emit(Op.STORE, Reg.LB, inline.start);
+                    size--;
+                }
+            }
+            if (size > inline.start) {
+                emitter.emit(Op.POP, size - inline.start);
+            }
+            emitter.emit(Op.JUMP, Reg.CB, inline.end);
+        } else if (stmt.returnExpr instanceof CallExpr && isSelfTailCall(((CallExpr) stmt.returnExpr).functionRef)) {
+            emitSelfTailCall(((CallExpr) stmt.returnExpr).argList);
+        } else if (stmt.returnExpr != null) {
             stmt.returnExpr.visit(this, null);
-            Machine.emit(Op.RETURN, 1, 0, md.parameterDeclList.size());
+            emitter.emit(Op.RETURN, 1, 0, md.parameterDeclList.size());
         } else {
-            Machine.emit(Op.RETURN, 0, 0, md.parameterDeclList.size());
+            emitter.emit(Op.RETURN, 0, 0, md.parameterDeclList.size());
         }
         return null;
     }
@@ -261,34 +423,25 @@ public class CodeGenerator implements Visitor<Object, Object> {
             else: execute C_2
             end:
             */
-            stmt.cond.visit(this, md);
-
-            int jumpElseInstrAddress = Machine.nextInstrAddr();
-            Machine.emit(Op.JUMPIF, Machine.falseRep, Reg.CB, -1);
+            Label elseLabel = emitter.newLabel();
+            Label endLabel = emitter.newLabel();
+            emitConditionalJump(stmt.cond, false, elseLabel);
 
             stmt.thenStmt.visit(this, md);
 
-            int jumpEndInstrAddress = Machine.nextInstrAddr();
-            Machine.emit(Op.JUMP, Reg.CB, -1);
+            emitter.emit(Op.JUMP, Reg.CB, endLabel);
 
-            int elseAddress = Machine.nextInstrAddr();
+            emitter.bind(elseLabel);
             stmt.elseStmt.visit(this, md);
 
-            int endAddress = Machine.nextInstrAddr();
-
-            Machine.patch(jumpElseInstrAddress, elseAddress);
-            Machine.patch(jumpEndInstrAddress, endAddress);
+            emitter.bind(endLabel);
         } else {
-            stmt.cond.visit(this, md);
-
-            int jumpEndInstrAddress = Machine.nextInstrAddr();
-            Machine.emit(Op.JUMPIF, Machine.falseRep, Reg.CB, -1);
+            Label endLabel = emitter.newLabel();
+            emitConditionalJump(stmt.cond, false, endLabel);
 
             stmt.thenStmt.visit(this, md);
 
-            int endAddress = Machine.nextInstrAddr();
-
-            Machine.patch(jumpEndInstrAddress, endAddress);
+            emitter.bind(endLabel);
         }
         return null;
     }
@@ -308,19 +461,82 @@ public class CodeGenerator implements Visitor<Object, Object> {
         JUMPIF(1) body
          */
 
-        int jumpTestAddress = Machine.nextInstrAddr();
-        Machine.emit(Op.JUMP, Reg.CB, -1);
+        Label testLabel = emitter.newLabel();
+        emitter.emit(Op.JUMP, Reg.CB, testLabel);
 
-        int bodyAddress = Machine.nextInstrAddr();
+        Label bodyLabel = emitter.here();
         stmt.body.visit(this, md);
 
-        int testAddress = Machine.nextInstrAddr();
-        stmt.cond.visit(this, md);
+        emitter.bind(testLabel);
+        emitConditionalJump(stmt.cond, true, bodyLabel);
+        return null;
+    }
 
-        Machine.emit(Op.JUMPIF, Machine.trueRep, Reg.CB, bodyAddress);
+    /**
+     * Compiles a condition in jump context: jumps to target if its value is jumpIf, and
+     * falls through otherwise. !, && and || pass the target down to their operands and a
+     * comparison becomes a single compare-and-branch, so no boolean is pushed for them.
+     */
+    private void emitConditionalJump(Expression cond, boolean jumpIf, Label target) {
+        if (cond instanceof UnaryExpr && ((UnaryExpr) cond).operator.spelling.equals("!")) {
+            emitConditionalJump(((UnaryExpr) cond).expr, !jumpIf, target);
+            return;
+        }
+        if (cond instanceof LiteralExpr && ((LiteralExpr) cond).lit instanceof BooleanLiteral) {
+            // constant: either always jumps or never
+            if (((LiteralExpr) cond).lit.spelling.equals("true") == jumpIf)
+                emitter.emit(Op.JUMP, Reg.CB, target);
+            return;
+        }
+        if (cond instanceof BinaryExpr) {
+            BinaryExpr expr = (BinaryExpr) cond;
+            String operator = expr.operator.spelling;
+            // a && b is false as soon as a is, a || b true as soon as a is
+            if (operator.equals("&&") || operator.equals("||")) {
+                boolean shortCircuit = operator.equals("||");
+                if (jumpIf == shortCircuit) {
+                    emitConditionalJump(expr.left, jumpIf, target);
+                    emitConditionalJump(expr.right, jumpIf, target);
+                } else {
+                    Label skip = emitter.newLabel();
+                    emitConditionalJump(expr.left, shortCircuit, skip);
+                    emitConditionalJump(expr.right, jumpIf, target);
+                    emitter.bind(skip);
+                }
+                return;
+            }
+            Op compareJump = compareJump(operator, jumpIf);
+            if (compareJump != null) {
+                expr.left.visit(this, null);
+                temporaries++;
+                expr.right.visit(this, null);
+                temporaries--;
+                emitter.emit(compareJump, Reg.CB, target);
+                return;
+            }
+        }
+        cond.visit(this, null);
+        emitter.emit(Op.JUMPIF, jumpIf ? Machine.trueRep : Machine.falseRep, Reg.CB, target);
+    }
 
-        Machine.patch(jumpTestAddress, testAddress);
-        return null;
+    // The compare-and-branch taken when a comparison has the value jumpIf, or null.
+    private static Op compareJump(String operator, boolean jumpIf) {
+        switch (operator) {
+            case "==":
+                return jumpIf ? Op.JUMPEQ : Op.JUMPNE;
+            case "!=":
+                return jumpIf ? Op.JUMPNE : Op.JUMPEQ;
+            case "<":
+                return jumpIf ? Op.JUMPLT : Op.JUMPGE;
+            case "<=":
+                return jumpIf ? Op.JUMPLE : Op.JUMPGT;
+            case ">":
+                return jumpIf ? Op.JUMPGT : Op.JUMPLE;
+            case ">=":
+                return jumpIf ? Op.JUMPGE : Op.JUMPLT;
+            default:
+                return null;
+        }
     }
 
     @Override
@@ -329,11 +545,11 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
         switch (expr.operator.spelling) {
             case "!":
-                Machine.emit(Prim.not);
+                emitter.emit(Prim.not);
                 break;
 
             case "-":
-                Machine.emit(Prim.neg);
+                emitter.emit(Prim.neg);
                 break;
 
             default:
@@ -345,80 +561,64 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitBinaryExpr(BinaryExpr expr, Object arg) {
-        expr.left.visit(this, null);
-
-        // Short circuit for logical operators.
-        if (expr.operator.spelling.equals("&&")) {
-            /* To implement short circuit for x && y:
-             JUMPIF(false) SC
-             evaluate y
-             JUMP NSC
-             SC: LOADL false
-             NSC:
-             */
-            int toPatchSC = Machine.nextInstrAddr();
-            Machine.emit(Op.JUMPIF, Machine.falseRep, Reg.CB, -1);
-
-            expr.right.visit(this, null);
-
-            int toPatchNSC = Machine.nextInstrAddr();
-            Machine.emit(Op.JUMP, Reg.CB, -1);
-
-            int scAddress = Machine.nextInstrAddr();
-            Machine.emit(Op.LOADL, Machine.falseRep);
-
-            Machine.patch(toPatchSC, scAddress);
-            Machine.patch(toPatchNSC, Machine.nextInstrAddr());
+        // Logical operators short-circuit: compile them as conditions and
+        // push the outcome.
+        if (expr.operator.spelling.equals("&&") || expr.operator.spelling.equals("||")) {
+            Label falseLabel = emitter.newLabel();
+            Label endLabel = emitter.newLabel();
+            emitConditionalJump(expr, false, falseLabel);
+            emitter.emit(Op.LOADL, Machine.trueRep);
+            emitter.emit(Op.JUMP, Reg.CB, endLabel);
+            emitter.bind(falseLabel);
+            emitter.emit(Op.LOADL, Machine.falseRep);
+            emitter.bind(endLabel);
             return null;
-        } else if (expr.operator.spelling.equals("||")) {
-            int toPatchSC = Machine.nextInstrAddr();
-            Machine.emit(Op.JUMPIF, Machine.trueRep, Reg.CB, -1);
-
-            expr.right.visit(this, null);
-
-            int toPatchNSC = Machine.nextInstrAddr();
-            Machine.emit(Op.JUMP, Reg.CB, -1);
+        }
 
-            int scAddress = Machine.nextInstrAddr();
-            Machine.emit(Op.LOADL, Machine.trueRep);
+        expr.left.visit(this, null);
 
-            Machine.patch(toPatchSC, scAddress);
-            Machine.patch(toPatchNSC, Machine.nextInstrAddr());
+        // Adding or subtracting a literal takes it as an immediate operand.
+        if ((expr.operator.spelling.equals("+") || expr.operator.spelling.equals("-"))
+                && expr.right instanceof LiteralExpr && ((LiteralExpr) expr.right).lit instanceof IntLiteral) {
+            int literal = Integer.parseInt(((LiteralExpr) expr.right).lit.spelling);
+            emitter.emit(expr.operator.spelling.equals("+") ? Op.ADDL : Op.SUBL, literal);
             return null;
         }
 
+        temporaries++;
         expr.right.visit(this, null);
+        temporaries--;
 
         switch (expr.operator.spelling) {
             case "<":
-                Machine.emit(Prim.lt);
+                emitter.emit(Prim.lt);
                 break;
             case ">":
-                Machine.emit(Prim.gt);
+                emitter.emit(Prim.gt);
                 break;
             case "<=":
-                Machine.emit(Prim.le);
+                emitter.emit(Prim.le);
                 break;
             case ">=":
-                Machine.emit(Prim.ge);
+                emitter.emit(Prim.ge);
                 break;
             case "+":
-                Machine.emit(Prim.add);
+                emitter.emit(Prim.add);
                 break;
             case "-":
-                Machine.emit(Prim.sub);
+                emitter.emit(Prim.sub);
                 break;
             case "*":
-                Machine.emit(Prim.mult);
+                emitter.emit(Prim.mult);
                 break;
             case "/":
-                Machine.emit(Prim.div);
+                emitter.emit(Prim.div);
                 break;
             case "==":
-                Machine.emit(Prim.eq);
+                emitter.emit(Prim.eq);
                 break;
             case "!=":
-                Machine.emit(Prim.ne);
+                emitter.emit(Prim.ne);
                 break;
             default:
                 throw new RuntimeException();
@@ -435,37 +635,200 @@ public class CodeGenerator implements Visitor<Object, Object> {
     @Override
     public Object visitIxExpr(IxExpr expr, Object arg) {
         expr.ref.visit(this, null);
+        temporaries++;
         expr.ixExpr.visit(this, null);
-        Machine.emit(Prim.arrayref);
+        temporaries--;
+        emitter.emit(expr.safe ? Prim.uarrayref : Prim.arrayref);
         return null;
     }
 
-    private void addToPatchList(int address, MethodDecl md) {
-        addressesToPatch.add(address);
-        methodDeclsToPatchWith.add(md);
-    }
-
     @Override
     public Object visitCallExpr(CallExpr expr, Object arg) {
+        emitCall(expr.functionRef, expr.argList);
+        return null;
+    }
+
+    /**
+     * Calls a method, or generates its body in place if it is small enough, leaving the
+     * result if any on the stack.
+     */
+    private void emitCall(Reference methodRef, ExprList args) {
+        MethodDecl md = (MethodDecl) methodRef.decl;
+        if (canInline(md)) {
+            emitInline(methodRef, args);
+            return;
+        }
         // Push each argument onto the stack
-        for (Expression argument : expr.argList) {
+        for (Expression argument : args) {
             argument.visit(this, null);
+            temporaries++;
         }
-
-        MethodDecl md = (MethodDecl) expr.functionRef.decl;
         // If the method is an instance method, we need to push the address of the object calling it onto the stack.
         if (!md.isStatic) {
-            if (expr.functionRef instanceof QualRef) {
-                ((QualRef) expr.functionRef).ref.visit(this, null);
+            if (methodRef instanceof QualRef) {
+                ((QualRef) methodRef).ref.visit(this, null);
             } else {
-                Machine.emit(Op.LOADA, Reg.OB, 0);
+                // Implicit this.
+                emitThis();
             }
         }
+        temporaries -= args.size();
+        emitter.emit(md.isStatic ? Op.CALL : Op.CALLI, Reg.CB, methodLabel(md));
+    }
 
-        int methodCallAddress = Machine.nextInstrAddr();
-        Machine.emit(md.isStatic ? Op.CALL : Op.CALLI, Reg.CB, -1);
-        addToPatchList(methodCallAddress, md);
-        return null;
+    /**
+     * @return true if a call in tail position can reuse the current frame, as it calls the
+     * method being generated on the same object
+     */
+    private boolean isSelfTailCall(Reference methodRef) {
+        if (inline != null || methodRef.decl != frame) {
+            return false;
+        }
+        return frame.isStatic || methodRef instanceof IdRef || ((QualRef) methodRef).ref instanceof ThisRef;
+    }
+
+    /**
+     * Overwrites the parameters with the arguments and jumps back to the start of the
+     * method's body, so recursion in tail position runs in constant stack space.
+     */
+    private void emitSelfTailCall(ExprList args) {
+        for (Expression argument : args) {
+            argument.visit(this, null);
+            temporaries++;
+        }
+        temporaries -= args.size();
+        for (int i = args.size() - 1; i >= 0; i--) {
+            VarDescription pdDescription = (VarDescription) frame.parameterDeclList.get(i).runtimeDescription;
+            emitter.emit(Op.STORE, Reg.LB, pdDescription.offset);
+        }
+        emitter.emit(Op.JUMP, Reg.CB, body);
+    }
+
+    private boolean canInline(MethodDecl md) {
+        if (md == frame) {
+            return false;
+        }
+        for (InlineFrame outer = inline; outer != null; outer = outer.outer) {
+            if (outer.method == md) {
+                return false;
+            }
+        }
+        return inlineCost(md) <= inlineBudget;
+    }
+
+    private void emitInline(Reference methodRef, ExprList args) {
+        MethodDecl md = (MethodDecl) methodRef.decl;
+        int savedTemporaries = temporaries;
+        int savedSize = frame.runtimeDescription.size;
+        int start = savedSize + temporaries;
+
+        // The arguments become the parameters, followed by the receiver unless it is the
+        // object the caller already runs on.
+        for (Expression argument : args) {
+            argument.visit(this, null);
+            temporaries++;
+        }
+        int receiver = inline != null ? inline.receiver : -1;
+        boolean safeReceiver = inline != null && inline.safeReceiver;
+        if (!md.isStatic && methodRef instanceof QualRef && !(((QualRef) methodRef).ref instanceof ThisRef)) {
+            ((QualRef) methodRef).ref.visit(this, null);
+            receiver = start + args.size();
+            safeReceiver = ((QualRef) methodRef).safe;
+            temporaries++;
+        }
+        for (int i = 0; i < args.size(); i++) {
+            VarDescription pdDescription = new VarDescription(1);
+            pdDescription.offset = start + i;
+            md.parameterDeclList.get(i).runtimeDescription = pdDescription;
+        }
+
+        frame.runtimeDescription.size = start + temporaries - savedTemporaries;
+        temporaries = 0;
+        inline = new InlineFrame(md, start, receiver, safeReceiver, emitter.newLabel(), inline);
+        for (Statement st : md.statementList) {
+            st.visit(this, frame);
+        }
+        if (md.type.typeKind == TypeKind.VOID && frame.runtimeDescription.size > start) {
+            emitter.emit(Op.POP, frame.runtimeDescription.size - start);
+        }
+        emitter.bind(inline.end);
+        inline = inline.outer;
+        frame.runtimeDescription.size = savedSize;
+        temporaries = savedTemporaries;
+    }
+
+    /**
+     * @return the number of statements and expressions in the method's body, or
+     * Integer.MAX_VALUE if it calls itself
+     */
+    private int inlineCost(MethodDecl md) {
+        Integer cost = inlineCosts.get(md);
+        if (cost == null) {
+            cost = 0;
+            for (Statement st : md.statementList) {
+                cost = add(cost, cost(st, md));
+            }
+            inlineCosts.put(md, cost);
+        }
+        return cost;
+    }
+
+    private static int add(int cost1, int cost2) {
+        return cost1 == Integer.MAX_VALUE || cost2 == Integer.MAX_VALUE ? Integer.MAX_VALUE : cost1 + cost2;
+    }
+
+    private static int cost(Statement stmt, MethodDecl md) {
+        if (stmt instanceof BlockStmt) {
+            int cost = 1;
+            for (Statement st : ((BlockStmt) stmt).sl) {
+                cost = add(cost, cost(st, md));
+            }
+            return cost;
+        } else if (stmt instanceof VarDeclStmt) {
+            return add(1, cost(((VarDeclStmt) stmt).initExp, md));
+        } else if (stmt instanceof AssignStmt) {
+            return add(1, cost(((AssignStmt) stmt).val, md));
+        } else if (stmt instanceof IxAssignStmt) {
+            return add(1, add(cost(((IxAssignStmt) stmt).ix, md), cost(((IxAssignStmt) stmt).exp, md)));
+        } else if (stmt instanceof CallStmt) {
+            CallStmt call = (CallStmt) stmt;
+            return call.methodRef.decl == md ? Integer.MAX_VALUE : add(1, cost(call.argList, md));
+        } else if (stmt instanceof ReturnStmt) {
+            Expression returnExpr = ((ReturnStmt) stmt).returnExpr;
+            return returnExpr == null ? 1 : add(1, cost(returnExpr, md));
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            int cost = add(1, add(cost(ifStmt.cond, md), cost(ifStmt.thenStmt, md)));
+            return ifStmt.elseStmt == null ? cost : add(cost, cost(ifStmt.elseStmt, md));
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt whileStmt = (WhileStmt) stmt;
+            return add(1, add(cost(whileStmt.cond, md), cost(whileStmt.body, md)));
+        }
+        return 1;
+    }
+
+    private static int cost(Expression expr, MethodDecl md) {
+        if (expr instanceof UnaryExpr) {
+            return add(1, cost(((UnaryExpr) expr).expr, md));
+        } else if (expr instanceof BinaryExpr) {
+            return add(1, add(cost(((BinaryExpr) expr).left, md), cost(((BinaryExpr) expr).right, md)));
+        } else if (expr instanceof IxExpr) {
+            return add(1, cost(((IxExpr) expr).ixExpr, md));
+        } else if (expr instanceof CallExpr) {
+            CallExpr call = (CallExpr) expr;
+            return call.functionRef.decl == md ? Integer.MAX_VALUE : add(1, cost(call.argList, md));
+        } else if (expr instanceof NewArrayExpr) {
+            return add(1, cost(((NewArrayExpr) expr).sizeExpr, md));
+        }
+        return 1;
+    }
+
+    private static int cost(ExprList args, MethodDecl md) {
+        int cost = 0;
+        for (Expression argument : args) {
+            cost = add(cost, cost(argument, md));
+        }
+        return cost;
     }
 
     @Override
@@ -477,33 +840,51 @@ public class CodeGenerator implements Visitor<Object, Object> {
     @Override
     public Object visitNewObjectExpr(NewObjectExpr expr, Object arg) {
         int classSize = expr.classtype.className.decl.runtimeDescription.size;
-        Machine.emit(Op.LOADL, -1);
-        Machine.emit(Op.LOADL, classSize);
-        Machine.emit(Prim.newobj);
+        emitter.emit(Op.LOADL, -1);
+        emitter.emit(Op.LOADL, classSize);
+        emitter.emit(Prim.newobj);
         return null;
     }
 
     @Override
     public Object visitNewArrayExpr(NewArrayExpr expr, Object arg) {
         expr.sizeExpr.visit(this, null);
-        Machine.emit(Prim.newarr);
+        emitter.emit(Prim.newarr);
         return null;
     }
 
     @Override
     public Object visitThisRef(ThisRef ref, Object arg) {
-        Machine.emit(Op.LOADA, Reg.OB, 0);
+        emitThis();
         return null;
     }
 
+    // Pushes the object the code being generated runs on.
+    private void emitThis() {
+        if (inline != null && inline.receiver >= 0) {
+            emitter.emit(Op.LOAD, Reg.LB, inline.receiver);
+        } else {
+            emitter.emit(Op.LOADA, Reg.OB, 0);
+        }
+    }
+
+    private void emitLoadField(FieldDecl fd) {
+        int offset = ((VarDescription) fd.runtimeDescription).offset;
+        if (!fd.isStatic && inline != null && inline.receiver >= 0) {
+            emitThis();
+            emitter.emit(Op.LOADF, inline.safeReceiver ? 1 : 0, Reg.ZR, offset);
+        } else {
+            emitter.emit(Op.LOAD, fd.isStatic ? Reg.SB : Reg.OB, offset);
+        }
+    }
+
     @Override
     public Object visitIdRef(IdRef ref, Object arg) {
         if (ref.decl instanceof FieldDecl) {
-            FieldDecl fd = (FieldDecl) ref.decl;
-            Machine.emit(Op.LOAD, fd.isStatic ? Reg.SB : Reg.OB, ((VarDescription) fd.runtimeDescription).offset);
+            emitLoadField((FieldDecl) ref.decl);
         } else if (ref.decl instanceof LocalDecl) {
             LocalDecl ld = (LocalDecl) ref.decl;
-            Machine.emit(Op.LOAD, Reg.LB, ((VarDescription) ld.runtimeDescription).offset);
+            emitter.emit(Op.LOAD, Reg.LB, ((VarDescription) ld.runtimeDescription).offset);
         }
         return null;
     }
@@ -513,17 +894,16 @@ public class CodeGenerator implements Visitor<Object, Object> {
         if (ref.ref.decl instanceof ClassDecl) {
             // Access static field of a class or this.
             if (ref.id.decl instanceof FieldDecl && !ref.id.spelling.equals("out")) {
-                FieldDecl fd = (FieldDecl) ref.id.decl;
-                Machine.emit(Op.LOAD, fd.isStatic ? Reg.SB : Reg.OB, ((VarDescription) fd.runtimeDescription).offset);
+                emitLoadField((FieldDecl) ref.id.decl);
             }
         } else {
             ref.ref.visit(this, null);
             MemberDecl memberDecl = (MemberDecl) ref.id.decl;
             if (memberDecl != Identification.LENGTH_DECL) {
-                Machine.emit(Op.LOADL, ((VarDescription) memberDecl.runtimeDescription).offset);
-                Machine.emit(Prim.fieldref);
+                emitter.emit(Op.LOADF, ref.safe ? 1 : 0, Reg.ZR,
+                        ((VarDescription) memberDecl.runtimeDescription).offset);
             } else {
-                Machine.emit(Prim.arraylen);
+                emitter.emit(Prim.arraylen);
             }
         }
         return null;
@@ -543,23 +923,23 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitIntLiteral(IntLiteral num, Object arg) {
-        Machine.emit(Op.LOADL, Integer.parseInt(num.spelling));
+        emitter.emit(Op.LOADL, Integer.parseInt(num.spelling));
         return null;
     }
 
     @Override
     public Object visitBooleanLiteral(BooleanLiteral bool, Object arg) {
         if (bool.spelling.equals("true")) {
-            Machine.emit(Op.LOADL, Machine.trueRep);
+            emitter.emit(Op.LOADL, Machine.trueRep);
         } else {
-            Machine.emit(Op.LOADL, Machine.falseRep);
+            emitter.emit(Op.LOADL, Machine.falseRep);
         }
         return null;
     }
 
     @Override
     public Object visitNullLiteral(NullLiteral nullLiteral, Object arg) {
-        Machine.emit(Op.LOADL, Machine.nullRep);
+        emitter.emit(Op.LOADL, Machine.nullRep);
         return null;
     }
 }
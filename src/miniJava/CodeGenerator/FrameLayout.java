@@ -0,0 +1,141 @@
+package miniJava.CodeGenerator;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.mJAM.Machine;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lays out the locals of a method in its frame, giving locals whose lifetimes do not
+ * overlap the same slot.
+ * <p>
+ * Statements are numbered in the order their code is first run. A local is initialized
+ * where it is declared and lives from there to the last statement that reads or assigns
+ * it, or to the end of the outermost loop it occurs in but is declared outside of, as the
+ * next iteration may use it again. Control only leaves that order through loops and
+ * returns, so this interval holds every point where the local's value matters. A local may
+ * take the slot of one whose interval ends where its own starts, as an initializer reads
+ * its operands before the local is stored.
+ */
+final class FrameLayout {
+    // first and last position of each local's lifetime, in order of declaration
+    private final LinkedHashMap<VarDecl, int[]> lifetimes = new LinkedHashMap<>();
+    private int position = 0;
+
+    private FrameLayout() {
+    }
+
+    /**
+     * Gives each local declared in the method an offset from LB after the link data.
+     * @return the number of slots the locals take
+     */
+    static int layOut(MethodDecl md) {
+        FrameLayout layout = new FrameLayout();
+        layout.scan(md.statementList);
+        // the last position of the lifetimes in each slot so far
+        List<Integer> slotEnds = new ArrayList<>();
+        for (Map.Entry<VarDecl, int[]> entry : layout.lifetimes.entrySet()) {
+            int start = entry.getValue()[0], end = entry.getValue()[1];
+            int slot = 0;
+            while (slot < slotEnds.size() && slotEnds.get(slot) > start) {
+                slot++;
+            }
+            if (slot == slotEnds.size()) {
+                slotEnds.add(end);
+            } else {
+                slotEnds.set(slot, end);
+            }
+            VarDescription description = new VarDescription(1);
+            description.offset = Machine.linkDataSize + slot;
+            entry.getKey().runtimeDescription = description;
+        }
+        return slotEnds.size();
+    }
+
+    private void scan(StatementList list) {
+        for (Statement stmt : list) {
+            scan(stmt);
+        }
+    }
+
+    private void scan(Statement stmt) {
+        position++;
+        if (stmt instanceof BlockStmt) {
+            scan(((BlockStmt) stmt).sl);
+        } else if (stmt instanceof VarDeclStmt) {
+            scan(((VarDeclStmt) stmt).initExp);
+            lifetimes.put(((VarDeclStmt) stmt).varDecl, new int[]{position, position});
+        } else if (stmt instanceof AssignStmt) {
+            scan(((AssignStmt) stmt).ref);
+            scan(((AssignStmt) stmt).val);
+        } else if (stmt instanceof IxAssignStmt) {
+            scan(((IxAssignStmt) stmt).ref);
+            scan(((IxAssignStmt) stmt).ix);
+            scan(((IxAssignStmt) stmt).exp);
+        } else if (stmt instanceof CallStmt) {
+            scan(((CallStmt) stmt).methodRef);
+            scan(((CallStmt) stmt).argList);
+        } else if (stmt instanceof ReturnStmt) {
+            if (((ReturnStmt) stmt).returnExpr != null) {
+                scan(((ReturnStmt) stmt).returnExpr);
+            }
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            scan(ifStmt.cond);
+            scan(ifStmt.thenStmt);
+            if (ifStmt.elseStmt != null) {
+                scan(ifStmt.elseStmt);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            int start = position;
+            scan(((WhileStmt) stmt).cond);
+            scan(((WhileStmt) stmt).body);
+            // the test again, after the body
+            int end = ++position;
+            for (int[] lifetime : lifetimes.values()) {
+                if (lifetime[0] < start && lifetime[1] >= start) {
+                    lifetime[1] = end;
+                }
+            }
+        }
+    }
+
+    private void scan(Expression expr) {
+        if (expr instanceof RefExpr) {
+            scan(((RefExpr) expr).ref);
+        } else if (expr instanceof IxExpr) {
+            scan(((IxExpr) expr).ref);
+            scan(((IxExpr) expr).ixExpr);
+        } else if (expr instanceof CallExpr) {
+            scan(((CallExpr) expr).functionRef);
+            scan(((CallExpr) expr).argList);
+        } else if (expr instanceof UnaryExpr) {
+            scan(((UnaryExpr) expr).expr);
+        } else if (expr instanceof BinaryExpr) {
+            scan(((BinaryExpr) expr).left);
+            scan(((BinaryExpr) expr).right);
+        } else if (expr instanceof NewArrayExpr) {
+            scan(((NewArrayExpr) expr).sizeExpr);
+        }
+    }
+
+    private void scan(ExprList args) {
+        for (Expression argument : args) {
+            scan(argument);
+        }
+    }
+
+    private void scan(Reference ref) {
+        if (ref instanceof QualRef) {
+            scan(((QualRef) ref).ref);
+        } else if (ref instanceof IdRef) {
+            int[] lifetime = lifetimes.get(ref.decl);
+            if (lifetime != null) {
+                lifetime[1] = position;
+            }
+        }
+    }
+}
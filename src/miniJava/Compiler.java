@@ -2,11 +2,11 @@ package miniJava;
 
 import miniJava.AbstractSyntaxTrees.*;
 import miniJava.AbstractSyntaxTrees.Package;
-import miniJava.CodeGenerator.CodeGenerator;
 import miniJava.ContextualAnalyzer.Checker;
 import miniJava.ContextualAnalyzer.Identification;
 import miniJava.SyntacticAnalyzer.*;
 import miniJava.mJAM.Disassembler;
+import miniJava.mJAM.Emitter;
 import miniJava.mJAM.Interpreter;
 import miniJava.mJAM.ObjectFile;
 
@@ -42,6 +42,36 @@ public class Compiler {
     public static boolean debug = true;
 
     public static void main(String[] args) {
+        // options follow the file name: -O0, -O1 or -O2, -passes with a comma-separated
+        // list of passes, -inline with a budget, -time-passes and -verify
+        PassManager passManager = new PassManager(PassManager.DEFAULT_LEVEL);
+        String passes = null;
+        int inlineBudget = -1;
+        boolean timePasses = false, verify = false;
+        try {
+            for (int arg = 1; arg < args.length; arg++) {
+                if (args[arg].matches("-O[0-9]+"))
+                    passManager = new PassManager(Integer.parseInt(args[arg].substring(2)));
+                else if (args[arg].equals("-passes") && arg + 1 < args.length)
+                    passes = args[++arg];
+                else if (args[arg].equals("-inline") && arg + 1 < args.length)
+                    inlineBudget = Integer.parseInt(args[++arg]);
+                else if (args[arg].equals("-time-passes"))
+                    timePasses = true;
+                else if (args[arg].equals("-verify"))
+                    verify = true;
+                else
+                    System.out.println("Ignoring unknown option " + args[arg]);
+            }
+            if (passes != null)
+                passManager.setPipeline(passes);
+        } catch (IllegalArgumentException e) {
+            System.out.println("*** " + e.getMessage());
+            System.exit(4);
+        }
+        if (inlineBudget >= 0)
+            passManager.setInlineBudget(inlineBudget);
+        passManager.setVerify(verify);
         System.out.println("Syntactic analysis ... ");
         SourceFile sourceFile = new SourceFile(args[0]);
 
@@ -68,12 +98,14 @@ public class Compiler {
             typeChecker.check(ast);
         }
         if (!reporter.hasErrors()) {
+            passManager.optimize(ast);
             System.out.println("Code generation ...");
-            CodeGenerator codeGenerator = new CodeGenerator(ast);
-            codeGenerator.generateCode();
+            Emitter emitter = passManager.generateCode(ast);
+            if (timePasses)
+                passManager.printStatistics();
             String outputFileName = args[0].substring(0, args[0].indexOf('.')) + ".mJAM";
             ObjectFile objF = new ObjectFile(outputFileName);
-            if (objF.write()) {
+            if (objF.write(emitter)) {
                 System.out.println("Codegen failed");
             } else {
                 System.out.println("Codegen succeeded");
@@ -0,0 +1,66 @@
+package miniJava.IR;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A basic block: its phis, then straight-line instructions, then a terminator.
+ */
+public final class Block {
+    final List<Instr> instrs = new ArrayList<>();
+    // one entry for each edge into the block, in the order of its phis' operands
+    final List<Block> preds = new ArrayList<>();
+    final int id;
+
+    Block(int id) {
+        this.id = id;
+    }
+
+    void append(Instr instr) {
+        instr.block = this;
+        instrs.add(instr);
+    }
+
+    void insertPhi(Instr phi) {
+        phi.block = this;
+        instrs.add(phiCount(), phi);
+    }
+
+    int phiCount() {
+        int count = 0;
+        while (count < instrs.size() && instrs.get(count).op == Opcode.PHI) {
+            count++;
+        }
+        return count;
+    }
+
+    List<Instr> phis() {
+        return instrs.subList(0, phiCount());
+    }
+
+    /**
+     * @return the last instruction if it is a terminator, or null while the block is built
+     */
+    Instr terminator() {
+        if (instrs.isEmpty()) {
+            return null;
+        }
+        Instr last = instrs.get(instrs.size() - 1);
+        return last.isTerminator() ? last : null;
+    }
+
+    List<Block> succs() {
+        Instr terminator = terminator();
+        if (terminator == null || terminator.targets == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(terminator.targets);
+    }
+
+    @Override
+    public String toString() {
+        return "b" + id;
+    }
+}
@@ -0,0 +1,114 @@
+package miniJava.IR;
+
+import java.util.ArrayList;
+
+/**
+ * Tidies the control flow graph: removes unreachable blocks, phis with a single distinct
+ * operand and blocks that only jump on to a block without phis, and merges each block
+ * into its only predecessor when that predecessor has no other successor.
+ */
+public class CfgSimplifier {
+    /**
+     * @return the number of blocks and phis removed
+     */
+    public int simplify(Function function) {
+        int removed = function.removeUnreachable();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block block : new ArrayList<>(function.blocks)) {
+                if (!function.blocks.contains(block)) {
+                    continue;
+                }
+                int phis = removeTrivialPhis(block);
+                if (phis > 0 || skip(function, block) || merge(function, block)) {
+                    removed += Math.max(phis, 1);
+                    changed = true;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static int removeTrivialPhis(Block block) {
+        int removed = 0;
+        for (Instr phi : new ArrayList<>(block.phis())) {
+            Value same = null;
+            boolean trivial = true;
+            for (Value operand : phi.operands) {
+                if (operand == phi || operand == same) {
+                    continue;
+                }
+                if (same instanceof Constant && operand instanceof Constant
+                        && ((Constant) same).value == ((Constant) operand).value) {
+                    continue;
+                }
+                if (same != null) {
+                    trivial = false;
+                    break;
+                }
+                same = operand;
+            }
+            if (trivial && same != null) {
+                phi.replaceAllUsesWith(same);
+                phi.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    // Sends the predecessors of a block that only jumps on straight to its target.
+    private static boolean skip(Function function, Block block) {
+        if (block == function.entry || block.instrs.size() != 1) {
+            return false;
+        }
+        Instr jump = block.instrs.get(0);
+        Block target = jump.targets != null && jump.op == Opcode.JUMP ? jump.targets[0] : null;
+        // the block is where the values of the target's phis would be copied
+        if (target == null || target == block || target.phiCount() > 0) {
+            return false;
+        }
+        for (Block pred : block.preds) {
+            // an edge may not be doubled
+            if (target.preds.contains(pred)) {
+                return false;
+            }
+        }
+        function.removeEdge(block, target);
+        for (Block pred : block.preds) {
+            Instr terminator = pred.terminator();
+            for (int t = 0; t < terminator.targets.length; t++) {
+                if (terminator.targets[t] == block) {
+                    terminator.targets[t] = target;
+                }
+            }
+            target.preds.add(pred);
+        }
+        block.preds.clear();
+        jump.remove();
+        function.blocks.remove(block);
+        return true;
+    }
+
+    // Appends a block to its only predecessor when it is that block's only successor.
+    private static boolean merge(Function function, Block block) {
+        if (block == function.entry || block.preds.size() != 1) {
+            return false;
+        }
+        Block pred = block.preds.get(0);
+        if (pred == block || pred.succs().size() != 1 || block.phiCount() > 0) {
+            return false;
+        }
+        pred.terminator().remove();
+        for (Instr instr : new ArrayList<>(block.instrs)) {
+            block.instrs.remove(instr);
+            pred.append(instr);
+        }
+        for (Block succ : pred.succs()) {
+            succ.preds.set(succ.preds.indexOf(block), pred);
+        }
+        function.blocks.remove(block);
+        return true;
+    }
+}
@@ -0,0 +1,17 @@
+package miniJava.IR;
+
+/**
+ * An int, boolean or null known at compile time, in its machine representation.
+ */
+public final class Constant extends Value {
+    final int value;
+
+    Constant(int value) {
+        this.value = value;
+    }
+
+    @Override
+    public String toString() {
+        return Integer.toString(value);
+    }
+}
@@ -0,0 +1,228 @@
+package miniJava.IR;
+
+import miniJava.mJAM.Machine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Sparse conditional constant propagation (Wegman and Zadeck): finds the values that are
+ * constant on every path the program can take, assuming branches on constants go one way.
+ * Those values become constants, such branches become jumps and the blocks never reached
+ * are removed. An operation that would fail, overflow or division by zero, is left in place
+ * so the program still fails there.
+ */
+public class ConstantPropagator {
+    // value of an instruction that is not constant; one absent from the lattice is
+    // not known yet
+    private static final Object VARIES = new Object();
+
+    private final HashMap<Instr, Object> lattice = new HashMap<>();
+    private final HashSet<Block> reached = new HashSet<>();
+    // executable edges, as each target's set of sources
+    private final HashMap<Block, HashSet<Block>> edges = new HashMap<>();
+    private final ArrayDeque<Block[]> edgeWork = new ArrayDeque<>();
+    private final ArrayDeque<Instr> valueWork = new ArrayDeque<>();
+
+    /**
+     * @return the number of values replaced by constants and branches made jumps
+     */
+    public int propagate(Function function) {
+        lattice.clear();
+        reached.clear();
+        edges.clear();
+        edgeWork.add(new Block[]{null, function.entry});
+        while (!edgeWork.isEmpty() || !valueWork.isEmpty()) {
+            if (!edgeWork.isEmpty()) {
+                Block[] edge = edgeWork.remove();
+                if (edge[0] != null && !edges.computeIfAbsent(edge[1], b -> new HashSet<>()).add(edge[0])) {
+                    continue;
+                }
+                if (reached.add(edge[1])) {
+                    for (Instr instr : edge[1].instrs) {
+                        visit(instr);
+                    }
+                } else {
+                    for (Instr phi : edge[1].phis()) {
+                        visit(phi);
+                    }
+                }
+            } else {
+                Instr instr = valueWork.remove();
+                if (instr.block != null && reached.contains(instr.block)) {
+                    visit(instr);
+                }
+            }
+        }
+        return rewrite(function);
+    }
+
+    private void visit(Instr instr) {
+        if (instr.op == Opcode.JUMP) {
+            edgeWork.add(new Block[]{instr.block, instr.targets[0]});
+            return;
+        }
+        if (instr.op == Opcode.BRANCH) {
+            Object cond = valueOf(instr.operand(0));
+            if (cond == VARIES || Integer.valueOf(Machine.trueRep).equals(cond)) {
+                edgeWork.add(new Block[]{instr.block, instr.targets[0]});
+            }
+            if (cond == VARIES || Integer.valueOf(Machine.falseRep).equals(cond)) {
+                edgeWork.add(new Block[]{instr.block, instr.targets[1]});
+            }
+            return;
+        }
+        if (!instr.hasResult()) {
+            return;
+        }
+        Object value = evaluate(instr);
+        if (value != null && !value.equals(lattice.get(instr))) {
+            lattice.put(instr, value);
+            valueWork.addAll(instr.users);
+        }
+    }
+
+    // The value of an operand: an Integer, VARIES, or null if not known yet.
+    private Object valueOf(Value value) {
+        if (value instanceof Constant) {
+            return ((Constant) value).value;
+        }
+        return lattice.get(value);
+    }
+
+    private Object evaluate(Instr instr) {
+        if (instr.op == Opcode.PHI) {
+            Object value = null;
+            HashSet<Block> sources = edges.get(instr.block);
+            for (int i = 0; i < instr.operands.size(); i++) {
+                if (sources == null || !sources.contains(instr.block.preds.get(i))) {
+                    continue;
+                }
+                Object operand = valueOf(instr.operand(i));
+                if (operand == null) {
+                    continue;
+                }
+                if (value != null && !value.equals(operand)) {
+                    return VARIES;
+                }
+                value = operand;
+            }
+            return value;
+        }
+        switch (instr.op) {
+            case NEG:
+            case NOT:
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+            case EQ:
+            case NE:
+                break;
+            default:
+                return VARIES;
+        }
+        List<Integer> operands = new ArrayList<>();
+        for (Value operand : instr.operands) {
+            Object value = valueOf(operand);
+            if (value == VARIES) {
+                return VARIES;
+            }
+            if (value == null) {
+                return null;
+            }
+            operands.add((Integer) value);
+        }
+        Integer result = fold(instr.op, operands);
+        return result != null ? result : VARIES;
+    }
+
+    /**
+     * @return the result of an operation on constants, or null if it would fail
+     */
+    static Integer fold(Opcode op, List<Integer> operands) {
+        int left = operands.get(0);
+        if (op == Opcode.NEG) {
+            // mJAM's neg wraps, so -MIN_VALUE is MIN_VALUE
+            return -left;
+        }
+        if (op == Opcode.NOT) {
+            return left == Machine.trueRep ? Machine.falseRep : Machine.trueRep;
+        }
+        int right = operands.get(1);
+        long result;
+        switch (op) {
+            case ADD:
+                result = (long) left + right;
+                break;
+            case SUB:
+                result = (long) left - right;
+                break;
+            case MUL:
+                result = (long) left * right;
+                break;
+            case DIV:
+                if (right == 0) {
+                    return null;
+                }
+                result = (long) left / right;
+                break;
+            case LT:
+                return truth(left < right);
+            case LE:
+                return truth(left <= right);
+            case GT:
+                return truth(left > right);
+            case GE:
+                return truth(left >= right);
+            case EQ:
+                return truth(left == right);
+            default:
+                return truth(left != right);
+        }
+        return result == (int) result ? (int) result : null;
+    }
+
+    private static int truth(boolean b) {
+        return b ? Machine.trueRep : Machine.falseRep;
+    }
+
+    private int rewrite(Function function) {
+        int rewritten = 0;
+        for (Block block : function.blocks) {
+            if (!reached.contains(block)) {
+                continue;
+            }
+            for (Instr instr : new ArrayList<>(block.instrs)) {
+                Object value = lattice.get(instr);
+                if (value instanceof Integer && !instr.hasSideEffects()) {
+                    instr.replaceAllUsesWith(new Constant((Integer) value));
+                    instr.remove();
+                    rewritten++;
+                }
+            }
+            Instr terminator = block.terminator();
+            if (terminator.op == Opcode.BRANCH && terminator.operand(0) instanceof Constant) {
+                boolean taken = ((Constant) terminator.operand(0)).value == Machine.trueRep;
+                Block target = terminator.targets[taken ? 0 : 1];
+                Block dropped = terminator.targets[taken ? 1 : 0];
+                Instr jump = function.number(new Instr(Opcode.JUMP));
+                jump.targets = new Block[]{target};
+                jump.line = terminator.line;
+                terminator.remove();
+                block.append(jump);
+                function.removeEdge(block, dropped);
+                rewritten++;
+            }
+        }
+        function.removeUnreachable();
+        return rewritten;
+    }
+}
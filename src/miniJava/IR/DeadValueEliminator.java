@@ -0,0 +1,46 @@
+package miniJava.IR;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Removes instructions whose results are never used and which have no other effect,
+ * including phis that only feed each other around a loop.
+ */
+public class DeadValueEliminator {
+    /**
+     * @return the number of instructions removed
+     */
+    public int eliminate(Function function) {
+        HashSet<Instr> live = new HashSet<>();
+        List<Instr> work = new ArrayList<>();
+        for (Block block : function.blocks) {
+            for (Instr instr : block.instrs) {
+                if (!instr.isRemovable() && live.add(instr)) {
+                    work.add(instr);
+                }
+            }
+        }
+        while (!work.isEmpty()) {
+            for (Value operand : work.remove(work.size() - 1).operands) {
+                if (operand instanceof Instr && live.add((Instr) operand)) {
+                    work.add((Instr) operand);
+                }
+            }
+        }
+
+        List<Instr> dead = new ArrayList<>();
+        for (Block block : function.blocks) {
+            for (Instr instr : block.instrs) {
+                if (!live.contains(instr)) {
+                    dead.add(instr);
+                }
+            }
+        }
+        for (Instr instr : dead) {
+            instr.remove();
+        }
+        return dead.size();
+    }
+}
@@ -0,0 +1,134 @@
+package miniJava.IR;
+
+import miniJava.AbstractSyntaxTrees.MethodDecl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The control flow graph of a method in SSA form. Blocks are kept in the order their
+ * code is laid out, the entry first.
+ */
+public final class Function {
+    final MethodDecl method;
+    final List<Block> blocks = new ArrayList<>();
+    Block entry;
+    private int nextBlockId = 0;
+    private int nextInstrId = 0;
+
+    Function(MethodDecl method) {
+        this.method = method;
+    }
+
+    public MethodDecl method() {
+        return method;
+    }
+
+    Block newBlock() {
+        return new Block(nextBlockId++);
+    }
+
+    Instr number(Instr instr) {
+        instr.id = nextInstrId++;
+        return instr;
+    }
+
+    /**
+     * @return the number of instructions
+     */
+    public int size() {
+        int size = 0;
+        for (Block block : blocks) {
+            size += block.instrs.size();
+        }
+        return size;
+    }
+
+    /**
+     * Removes the edge from one block to another from the latter's predecessors and phis.
+     */
+    void removeEdge(Block from, Block to) {
+        int i = to.preds.indexOf(from);
+        to.preds.remove(i);
+        for (Instr phi : to.phis()) {
+            phi.removeOperand(i);
+        }
+    }
+
+    /**
+     * Removes the blocks the entry cannot reach.
+     *
+     * @return the number of blocks removed
+     */
+    int removeUnreachable() {
+        HashSet<Block> reached = new HashSet<>();
+        List<Block> work = new ArrayList<>();
+        reached.add(entry);
+        work.add(entry);
+        while (!work.isEmpty()) {
+            for (Block succ : work.remove(work.size() - 1).succs()) {
+                if (reached.add(succ)) {
+                    work.add(succ);
+                }
+            }
+        }
+        List<Block> unreached = new ArrayList<>();
+        for (Block block : blocks) {
+            if (!reached.contains(block)) {
+                unreached.add(block);
+            }
+        }
+        for (Block block : unreached) {
+            for (Block succ : block.succs()) {
+                if (reached.contains(succ)) {
+                    removeEdge(block, succ);
+                }
+            }
+        }
+        for (Block block : unreached) {
+            for (Instr instr : block.instrs) {
+                instr.clearOperands();
+            }
+        }
+        blocks.removeAll(unreached);
+        return unreached.size();
+    }
+
+    /**
+     * @return the blocks in reverse postorder from the entry
+     */
+    List<Block> reversePostorder() {
+        List<Block> order = new ArrayList<>();
+        postorder(entry, new HashSet<>(), order);
+        Collections.reverse(order);
+        return order;
+    }
+
+    private static void postorder(Block block, HashSet<Block> visited, List<Block> order) {
+        visited.add(block);
+        for (Block succ : block.succs()) {
+            if (!visited.contains(succ)) {
+                postorder(succ, visited, order);
+            }
+        }
+        order.add(block);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(method.name).append(":\n");
+        for (Block block : blocks) {
+            sb.append(block).append(":");
+            if (!block.preds.isEmpty()) {
+                sb.append(" <- ").append(block.preds);
+            }
+            sb.append('\n');
+            for (Instr instr : block.instrs) {
+                sb.append("    ").append(instr.display()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,217 @@
+package miniJava.IR;
+
+import miniJava.AbstractSyntaxTrees.MethodDecl;
+import miniJava.AbstractSyntaxTrees.TypeKind;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An instruction of a basic block, and the value it computes if it has one.
+ */
+public final class Instr extends Value {
+    final Opcode op;
+    final List<Value> operands = new ArrayList<>();
+    Block block;
+    // field or static offset, parameter index, or number of fields of a new object
+    int aux;
+    // for a field or element access, whether it was proved not to fail
+    boolean safe;
+    // for a call, the method called
+    MethodDecl method;
+    // for a jump its target, for a branch the targets when true and when false
+    Block[] targets;
+    // source line the instruction was generated for, or -1
+    int line = -1;
+    int id;
+
+    Instr(Opcode op, Value... operands) {
+        this.op = op;
+        for (Value operand : operands) {
+            addOperand(operand);
+        }
+    }
+
+    Value operand(int i) {
+        return operands.get(i);
+    }
+
+    void addOperand(Value value) {
+        operands.add(value);
+        value.users.add(this);
+    }
+
+    void setOperand(int i, Value value) {
+        operands.get(i).users.remove(this);
+        operands.set(i, value);
+        value.users.add(this);
+    }
+
+    void replaceOperand(Value old, Value value) {
+        for (int i = 0; i < operands.size(); i++) {
+            if (operands.get(i) == old) {
+                setOperand(i, value);
+            }
+        }
+    }
+
+    void removeOperand(int i) {
+        operands.remove(i).users.remove(this);
+    }
+
+    void clearOperands() {
+        for (Value operand : operands) {
+            operand.users.remove(this);
+        }
+        operands.clear();
+    }
+
+    /**
+     * Takes the instruction out of its block, dropping its uses of other values.
+     */
+    void remove() {
+        clearOperands();
+        block.instrs.remove(this);
+        block = null;
+    }
+
+    boolean isTerminator() {
+        return op == Opcode.JUMP || op == Opcode.BRANCH || op == Opcode.RETURN;
+    }
+
+    boolean hasResult() {
+        switch (op) {
+            case PUTSTATIC:
+            case PUTFIELD:
+            case ARRAYUPD:
+            case PRINT:
+            case JUMP:
+            case BRANCH:
+            case RETURN:
+                return false;
+            case CALL:
+                return method.type.typeKind != TypeKind.VOID;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return true if the instruction depends on nothing but its operands and cannot fail
+     */
+    boolean isPure() {
+        switch (op) {
+            case PARAM:
+            case THIS:
+            case PHI:
+            case NOT:
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+            case EQ:
+            case NE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the instruction changes or allocates memory, prints, calls or
+     * transfers control
+     */
+    boolean hasSideEffects() {
+        switch (op) {
+            case PUTSTATIC:
+            case PUTFIELD:
+            case ARRAYUPD:
+            case NEWOBJ:
+            case NEWARR:
+            case CALL:
+            case PRINT:
+            case JUMP:
+            case BRANCH:
+            case RETURN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the instruction can stop the program: overflow, division by zero,
+     * a null or out of bounds access, a full heap, or anything a call does
+     */
+    boolean mayFail() {
+        switch (op) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case NEG:
+            case ARRAYLEN:
+            case NEWOBJ:
+            case NEWARR:
+            case CALL:
+                return true;
+            case GETFIELD:
+            case PUTFIELD:
+                return !safe && !(operand(0) instanceof Instr && ((Instr) operand(0)).op == Opcode.THIS);
+            case ARRAYREF:
+            case ARRAYUPD:
+                return !safe;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the result depends on memory other instructions may change
+     */
+    boolean readsMemory() {
+        return op == Opcode.GETSTATIC || op == Opcode.GETFIELD || op == Opcode.ARRAYREF;
+    }
+
+    /**
+     * @return true if the instruction need not be executed when its result is unused
+     */
+    boolean isRemovable() {
+        return !hasSideEffects() && !mayFail();
+    }
+
+    @Override
+    public String toString() {
+        return "%" + id;
+    }
+
+    String display() {
+        StringBuilder sb = new StringBuilder();
+        if (hasResult()) {
+            sb.append(this).append(" = ");
+        }
+        sb.append(op.name().toLowerCase());
+        if (op == Opcode.CALL) {
+            sb.append(' ').append(method.name);
+        } else if (op == Opcode.PARAM || op == Opcode.GETSTATIC || op == Opcode.PUTSTATIC
+                || op == Opcode.GETFIELD || op == Opcode.PUTFIELD || op == Opcode.NEWOBJ) {
+            sb.append(' ').append(aux);
+        }
+        if (safe) {
+            sb.append('!');
+        }
+        for (int i = 0; i < operands.size(); i++) {
+            sb.append(i == 0 ? " " : ", ").append(operands.get(i));
+            // a phi the verifier rejects may have more operands than predecessors
+            if (op == Opcode.PHI && i < block.preds.size()) {
+                sb.append(" from b").append(block.preds.get(i).id);
+            }
+        }
+        if (targets != null) {
+            for (Block target : targets) {
+                sb.append(" b").append(target.id);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,696 @@
+package miniJava.IR;
+
+import miniJava.AbstractSyntaxTrees.MethodDecl;
+import miniJava.mJAM.Emitter;
+import miniJava.mJAM.Emitter.Label;
+import miniJava.mJAM.Machine;
+import miniJava.mJAM.Machine.Op;
+import miniJava.mJAM.Machine.Prim;
+import miniJava.mJAM.Machine.Reg;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Generates mJAM code for a function in SSA form.
+ * <p>
+ * A value used once, later in its own block, is computed where it is used, so the
+ * expression trees of the source come back as stack code; any other value gets a slot in
+ * the frame, reserved with a single PUSH on entry. Instructions that may fail, read or
+ * change memory keep their order: one that would move past another is given a slot
+ * instead. A phi's slot is shared with its operands where their lifetimes allow, so most
+ * copies out of SSA form disappear; the others are done in parallel at the end of the
+ * predecessor, on a block of their own when it branches. Values whose lifetimes do not
+ * overlap otherwise share slots too, a dead parameter's included, to keep frames small.
+ * A branch on a comparison becomes a compare-and-branch, and blocks fall through to the
+ * next in layout.
+ */
+public class Lowerer {
+    private final Emitter emitter;
+    private final java.util.function.Function<MethodDecl, Label> methodLabel;
+
+    private Function function;
+    private int parameters;
+    // values computed where they are used
+    private final HashSet<Instr> inlined = new HashSet<>();
+    // values kept in the frame, to the class of values sharing their slot
+    private final HashMap<Instr, Instr> slotClass = new HashMap<>();
+    private final HashMap<Instr, Integer> slots = new HashMap<>();
+    private final HashMap<Block, HashSet<Instr>> liveIn = new HashMap<>();
+    private final HashMap<Block, HashSet<Instr>> liveOut = new HashMap<>();
+    // position in its block of the last use of each frame value used there
+    private final HashMap<Block, HashMap<Instr, Integer>> lastUse = new HashMap<>();
+    private final HashMap<Block, Label> labels = new HashMap<>();
+    // copies done on a block of their own, to the edge they are on
+    private final List<Block[]> splitEdges = new ArrayList<>();
+    private final List<Label> splitLabels = new ArrayList<>();
+
+    /**
+     * @param methodLabel the entry of each method called
+     */
+    public Lowerer(Emitter emitter, java.util.function.Function<MethodDecl, Label> methodLabel) {
+        this.emitter = emitter;
+        this.methodLabel = methodLabel;
+    }
+
+    /**
+     * Generates the function's code from the emitter's current position on.
+     */
+    public void lower(Function function) {
+        this.function = function;
+        parameters = function.method.parameterDeclList.size();
+        inlined.clear();
+        slotClass.clear();
+        slots.clear();
+        liveIn.clear();
+        liveOut.clear();
+        lastUse.clear();
+        labels.clear();
+        splitEdges.clear();
+        splitLabels.clear();
+
+        for (Block block : function.blocks) {
+            chooseInlined(block);
+        }
+        for (Block block : function.blocks) {
+            for (Instr instr : block.instrs) {
+                if (inFrame(instr)) {
+                    slotClass.put(instr, instr);
+                }
+            }
+        }
+        computeLiveness();
+        coalesce();
+        int locals = assignSlots();
+
+        if (locals > 0) {
+            emitter.emit(Op.PUSH, locals);
+        }
+        for (int i = 0; i < function.blocks.size(); i++) {
+            Block block = function.blocks.get(i);
+            emitter.bind(label(block));
+            emitBlock(block, i + 1 < function.blocks.size() ? function.blocks.get(i + 1) : null);
+        }
+        for (int i = 0; i < splitEdges.size(); i++) {
+            Block[] edge = splitEdges.get(i);
+            emitter.bind(splitLabels.get(i));
+            emitCopies(edge[0], edge[1]);
+            emitter.emit(Op.JUMP, Reg.CB, label(edge[1]));
+        }
+    }
+
+    private Label label(Block block) {
+        return labels.computeIfAbsent(block, b -> emitter.newLabel());
+    }
+
+    // -- which values are computed where they are used
+
+    private void chooseInlined(Block block) {
+        Instr terminator = block.terminator();
+        for (Instr instr : block.instrs) {
+            if (instr.op == Opcode.PHI || instr.op == Opcode.PARAM || instr.op == Opcode.THIS
+                    || !instr.hasResult() || instr.users.size() != 1) {
+                continue;
+            }
+            Instr user = instr.users.get(0);
+            if (user.op == Opcode.PHI) {
+                // a phi of the block jumped to, copied at the end of this one
+                if (terminator.op != Opcode.JUMP || terminator.targets[0] != user.block
+                        || user.operand(user.block.preds.indexOf(block)) != instr) {
+                    continue;
+                }
+            } else if (user.block != block) {
+                continue;
+            }
+            inlined.add(instr);
+        }
+        // when another instruction that must keep its place would come first, keep it in the frame
+        while (true) {
+            List<Instr> sequence = new ArrayList<>();
+            for (Instr instr : block.instrs) {
+                if (instr.op == Opcode.PHI || inlined.contains(instr)) {
+                    continue;
+                }
+                if (instr.op == Opcode.JUMP) {
+                    Block target = instr.targets[0];
+                    for (Instr phi : copyOrder(block, target, target.phis())) {
+                        Value source = phi.operand(target.preds.indexOf(block));
+                        if (inlined.contains(source)) {
+                            addTree(source, sequence);
+                        }
+                    }
+                }
+                addTree(instr, sequence);
+            }
+            Instr misplaced = null;
+            int last = -1;
+            for (Instr instr : sequence) {
+                if (instr.isPure()) {
+                    continue;
+                }
+                int position = block.instrs.indexOf(instr);
+                if (position < last) {
+                    misplaced = instr;
+                    break;
+                }
+                last = position;
+            }
+            if (misplaced == null) {
+                break;
+            }
+            inlined.remove(misplaced);
+        }
+    }
+
+    // The instructions in the order the code for an instruction computes them.
+    private void addTree(Value value, List<Instr> sequence) {
+        Instr instr = (Instr) value;
+        for (Value operand : instr.operands) {
+            if (inlined.contains(operand)) {
+                addTree(operand, sequence);
+            }
+        }
+        sequence.add(instr);
+    }
+
+    // Whether a value is kept in a slot of the frame.
+    private boolean inFrame(Instr instr) {
+        if (instr.op == Opcode.PARAM || instr.op == Opcode.PHI) {
+            return true;
+        }
+        return instr.op != Opcode.THIS && instr.hasResult() && !instr.users.isEmpty() && !inlined.contains(instr);
+    }
+
+    // -- liveness of the values in the frame
+
+    // The values in the frame read by the code computing a value.
+    private void frameReads(Value value, List<Instr> reads) {
+        if (!(value instanceof Instr)) {
+            return;
+        }
+        Instr instr = (Instr) value;
+        if (slotClass.containsKey(instr)) {
+            reads.add(instr);
+        } else if (inlined.contains(instr)) {
+            for (Value operand : instr.operands) {
+                frameReads(operand, reads);
+            }
+        }
+    }
+
+    private void computeLiveness() {
+        HashMap<Block, HashSet<Instr>> exposed = new HashMap<>();
+        HashMap<Block, HashSet<Instr>> defined = new HashMap<>();
+        for (Block block : function.blocks) {
+            HashSet<Instr> blockExposed = new HashSet<>();
+            HashSet<Instr> blockDefined = new HashSet<>();
+            HashSet<Instr> out = new HashSet<>();
+            HashMap<Instr, Integer> blockLastUse = new HashMap<>();
+            for (int i = 0; i < block.instrs.size(); i++) {
+                Instr instr = block.instrs.get(i);
+                if (instr.op != Opcode.PHI && !inlined.contains(instr)) {
+                    List<Instr> reads = new ArrayList<>();
+                    for (Value operand : instr.operands) {
+                        frameReads(operand, reads);
+                    }
+                    for (Instr read : reads) {
+                        blockLastUse.put(read, i);
+                        if (!blockDefined.contains(read)) {
+                            blockExposed.add(read);
+                        }
+                    }
+                }
+                if (slotClass.containsKey(instr)) {
+                    blockDefined.add(instr);
+                }
+            }
+            // phi operands are used on the edges out of the block
+            for (Block succ : block.succs()) {
+                int edge = succ.preds.indexOf(block);
+                for (Instr phi : succ.phis()) {
+                    List<Instr> reads = new ArrayList<>();
+                    frameReads(phi.operand(edge), reads);
+                    out.addAll(reads);
+                }
+            }
+            exposed.put(block, blockExposed);
+            defined.put(block, blockDefined);
+            liveOut.put(block, out);
+            liveIn.put(block, new HashSet<>(blockExposed));
+            lastUse.put(block, blockLastUse);
+        }
+        HashMap<Block, HashSet<Instr>> edgeUses = new HashMap<>();
+        for (Block block : function.blocks) {
+            edgeUses.put(block, new HashSet<>(liveOut.get(block)));
+        }
+
+        List<Block> order = function.reversePostorder();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = order.size() - 1; i >= 0; i--) {
+                Block block = order.get(i);
+                HashSet<Instr> out = new HashSet<>(edgeUses.get(block));
+                for (Block succ : block.succs()) {
+                    out.addAll(liveIn.get(succ));
+                }
+                HashSet<Instr> in = new HashSet<>(out);
+                in.removeAll(defined.get(block));
+                in.addAll(exposed.get(block));
+                if (!in.equals(liveIn.get(block)) || !out.equals(liveOut.get(block))) {
+                    liveIn.put(block, in);
+                    liveOut.put(block, out);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // Position of a value's definition in its block, all of a block's phis coming first at once.
+    private static int position(Instr instr) {
+        return instr.op == Opcode.PHI ? -1 : instr.block.instrs.indexOf(instr);
+    }
+
+    // Whether a is live where b is defined.
+    private boolean liveAt(Instr a, Instr b) {
+        Block block = b.block;
+        int at = position(b);
+        if (a.block == block) {
+            if (a.op == Opcode.PHI && b.op == Opcode.PHI) {
+                return true;
+            }
+            if (position(a) >= at) {
+                return false;
+            }
+        } else if (!liveIn.get(block).contains(a)) {
+            return false;
+        }
+        Integer used = lastUse.get(block).get(a);
+        return liveOut.get(block).contains(a) || (used != null && used > at);
+    }
+
+    private boolean interfere(Instr a, Instr b) {
+        return liveAt(a, b) || liveAt(b, a);
+    }
+
+    // -- slots
+
+    private Instr find(Instr instr) {
+        Instr root = slotClass.get(instr);
+        if (root != instr) {
+            root = find(root);
+            slotClass.put(instr, root);
+        }
+        return root;
+    }
+
+    /**
+     * Puts each phi in the same slot as its operands where no two values of the slot are
+     * live at once, and at most one is a parameter.
+     */
+    private void coalesce() {
+        HashMap<Instr, List<Instr>> members = new HashMap<>();
+        for (Instr instr : slotClass.keySet()) {
+            List<Instr> list = new ArrayList<>();
+            list.add(instr);
+            members.put(instr, list);
+        }
+        for (Block block : function.blocks) {
+            for (Instr phi : block.phis()) {
+                for (Value operand : phi.operands) {
+                    if (!(operand instanceof Instr) || !slotClass.containsKey(operand)) {
+                        continue;
+                    }
+                    Instr a = find(phi), b = find((Instr) operand);
+                    if (a == b || !compatible(members.get(a), members.get(b))) {
+                        continue;
+                    }
+                    slotClass.put(b, a);
+                    members.get(a).addAll(members.remove(b));
+                }
+            }
+        }
+    }
+
+    private boolean compatible(List<Instr> class1, List<Instr> class2) {
+        boolean parameter = false;
+        for (Instr a : class1) {
+            parameter |= a.op == Opcode.PARAM;
+        }
+        for (Instr b : class2) {
+            if (b.op == Opcode.PARAM && parameter) {
+                return false;
+            }
+            for (Instr a : class1) {
+                if (interfere(a, b)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives each class of values a slot: a class with a parameter the parameter's, any
+     * other the first slot, a parameter's or a local's, whose values are all dead wherever
+     * its own are live, or a new local slot if there is none.
+     * @return the number of slots for locals
+     */
+    private int assignSlots() {
+        LinkedHashMap<Instr, List<Instr>> classes = new LinkedHashMap<>();
+        for (Block block : function.blocks) {
+            for (Instr instr : block.instrs) {
+                if (slotClass.containsKey(instr)) {
+                    classes.computeIfAbsent(find(instr), root -> new ArrayList<>()).add(instr);
+                }
+            }
+        }
+        // the values in each slot, parameters' slots first
+        TreeMap<Integer, List<Instr>> occupants = new TreeMap<>();
+        HashMap<Instr, Integer> classSlots = new HashMap<>();
+        for (Map.Entry<Instr, List<Instr>> entry : classes.entrySet()) {
+            for (Instr instr : entry.getValue()) {
+                if (instr.op == Opcode.PARAM) {
+                    classSlots.put(entry.getKey(), instr.aux - parameters);
+                    occupants.put(instr.aux - parameters, new ArrayList<>(entry.getValue()));
+                }
+            }
+        }
+        int locals = 0;
+        for (Map.Entry<Instr, List<Instr>> entry : classes.entrySet()) {
+            if (classSlots.containsKey(entry.getKey())) {
+                continue;
+            }
+            Integer slot = null;
+            for (Map.Entry<Integer, List<Instr>> occupied : occupants.entrySet()) {
+                if (compatible(occupied.getValue(), entry.getValue())) {
+                    slot = occupied.getKey();
+                    break;
+                }
+            }
+            if (slot == null) {
+                slot = Machine.linkDataSize + locals++;
+                occupants.put(slot, new ArrayList<>());
+            }
+            occupants.get(slot).addAll(entry.getValue());
+            classSlots.put(entry.getKey(), slot);
+        }
+        for (Instr instr : slotClass.keySet()) {
+            slots.put(instr, classSlots.get(find(instr)));
+        }
+        return locals;
+    }
+
+    // -- code
+
+    private void emitBlock(Block block, Block next) {
+        for (Instr instr : block.instrs) {
+            if (instr.op == Opcode.PHI || instr.op == Opcode.PARAM || instr.op == Opcode.THIS
+                    || inlined.contains(instr)) {
+                continue;
+            }
+            if (instr.line >= 0) {
+                emitter.markLine(instr.line);
+            }
+            switch (instr.op) {
+                case JUMP:
+                    emitCopies(block, instr.targets[0]);
+                    if (instr.targets[0] != next) {
+                        emitter.emit(Op.JUMP, Reg.CB, label(instr.targets[0]));
+                    }
+                    break;
+                case BRANCH:
+                    emitBranch(block, instr, next);
+                    break;
+                case RETURN:
+                    if (instr.operands.isEmpty()) {
+                        emitter.emit(Op.RETURN, 0, 0, parameters);
+                    } else {
+                        emitValue(instr.operand(0));
+                        emitter.emit(Op.RETURN, 1, 0, parameters);
+                    }
+                    break;
+                default:
+                    emit(instr);
+                    if (slots.containsKey(instr)) {
+                        emitter.emit(Op.STORE, Reg.LB, slots.get(instr));
+                    } else if (instr.hasResult()) {
+                        emitter.emit(Op.POP, 1);
+                    }
+            }
+        }
+    }
+
+    private void emitBranch(Block block, Instr branch, Block next) {
+        Label ifTrue = edgeLabel(block, branch.targets[0]);
+        Label ifFalse = edgeLabel(block, branch.targets[1]);
+        // jump where the condition takes us unless that is the next block
+        boolean jumpIf = true;
+        Label target = ifTrue;
+        Label otherwise = ifFalse;
+        if (ifFalse == label(branch.targets[1]) && branch.targets[1] == next) {
+            otherwise = null;
+        } else if (ifTrue == label(branch.targets[0]) && branch.targets[0] == next) {
+            jumpIf = false;
+            target = ifFalse;
+            otherwise = null;
+        }
+
+        Value cond = branch.operand(0);
+        Op compareJump = null;
+        if (inlined.contains(cond)) {
+            compareJump = compareJump(((Instr) cond).op, jumpIf);
+        }
+        if (compareJump != null) {
+            emitValue(((Instr) cond).operand(0));
+            emitValue(((Instr) cond).operand(1));
+            emitter.emit(compareJump, Reg.CB, target);
+        } else {
+            emitValue(cond);
+            emitter.emit(Op.JUMPIF, jumpIf ? Machine.trueRep : Machine.falseRep, Reg.CB, target);
+        }
+        if (otherwise != null) {
+            emitter.emit(Op.JUMP, Reg.CB, otherwise);
+        }
+    }
+
+    // The compare-and-branch taken when a comparison has the value jumpIf, or null.
+    private static Op compareJump(Opcode op, boolean jumpIf) {
+        switch (op) {
+            case EQ:
+                return jumpIf ? Op.JUMPEQ : Op.JUMPNE;
+            case NE:
+                return jumpIf ? Op.JUMPNE : Op.JUMPEQ;
+            case LT:
+                return jumpIf ? Op.JUMPLT : Op.JUMPGE;
+            case LE:
+                return jumpIf ? Op.JUMPLE : Op.JUMPGT;
+            case GT:
+                return jumpIf ? Op.JUMPGT : Op.JUMPLE;
+            case GE:
+                return jumpIf ? Op.JUMPGE : Op.JUMPLT;
+            default:
+                return null;
+        }
+    }
+
+    // Where an edge out of a branch goes: to a block of its own if it needs copies.
+    private Label edgeLabel(Block from, Block to) {
+        if (copies(from, to).isEmpty()) {
+            return label(to);
+        }
+        Label label = emitter.newLabel();
+        splitEdges.add(new Block[]{from, to});
+        splitLabels.add(label);
+        return label;
+    }
+
+    // The phis of a block entered from another that need a value copied to their slot.
+    private List<Instr> copies(Block from, Block to) {
+        int edge = to.preds.indexOf(from);
+        List<Instr> copies = new ArrayList<>();
+        for (Instr phi : to.phis()) {
+            Value operand = phi.operand(edge);
+            if (!(operand instanceof Instr) || !slots.containsKey(operand)
+                    || !slots.get(operand).equals(slots.get(phi))) {
+                copies.add(phi);
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Orders the phis given values on an edge so that those computed at the end of the
+     * block left are computed in the order of their instructions.
+     */
+    private List<Instr> copyOrder(Block from, Block to, List<Instr> phis) {
+        int edge = to.preds.indexOf(from);
+        List<Instr> order = new ArrayList<>(phis);
+        order.sort(Comparator.comparingInt(phi -> {
+            Value source = phi.operand(edge);
+            return inlined.contains(source) ? from.instrs.indexOf(source) : -1;
+        }));
+        return order;
+    }
+
+    // Gives the phis their values on an edge, all read before any is written.
+    private void emitCopies(Block from, Block to) {
+        int edge = to.preds.indexOf(from);
+        List<Instr> copies = copyOrder(from, to, copies(from, to));
+        for (Instr phi : copies) {
+            emitValue(phi.operand(edge));
+        }
+        for (int i = copies.size() - 1; i >= 0; i--) {
+            emitter.emit(Op.STORE, Reg.LB, slots.get(copies.get(i)));
+        }
+    }
+
+    // Pushes a value.
+    private void emitValue(Value value) {
+        if (value instanceof Constant) {
+            emitter.emit(Op.LOADL, ((Constant) value).value);
+            return;
+        }
+        Instr instr = (Instr) value;
+        if (instr.op == Opcode.THIS) {
+            emitter.emit(Op.LOADA, Reg.OB, 0);
+        } else if (inlined.contains(instr)) {
+            emit(instr);
+        } else {
+            emitter.emit(Op.LOAD, Reg.LB, slots.get(instr));
+        }
+    }
+
+    private static boolean isThis(Value value) {
+        return value instanceof Instr && ((Instr) value).op == Opcode.THIS;
+    }
+
+    // Generates an instruction other than a terminator, leaving its result if any on the stack.
+    private void emit(Instr instr) {
+        switch (instr.op) {
+            case ADD:
+            case SUB:
+                Value left = instr.operand(0), right = instr.operand(1);
+                if (instr.op == Opcode.ADD && left instanceof Constant && !(right instanceof Constant)) {
+                    left = right;
+                    right = instr.operand(0);
+                }
+                emitValue(left);
+                if (right instanceof Constant) {
+                    emitter.emit(instr.op == Opcode.ADD ? Op.ADDL : Op.SUBL, ((Constant) right).value);
+                } else {
+                    emitValue(right);
+                    emitter.emit(instr.op == Opcode.ADD ? Prim.add : Prim.sub);
+                }
+                break;
+            case MUL:
+            case DIV:
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+            case EQ:
+            case NE:
+                emitValue(instr.operand(0));
+                emitValue(instr.operand(1));
+                emitter.emit(binaryPrim(instr.op));
+                break;
+            case NEG:
+                emitValue(instr.operand(0));
+                emitter.emit(Prim.neg);
+                break;
+            case NOT:
+                emitValue(instr.operand(0));
+                emitter.emit(Prim.not);
+                break;
+            case GETSTATIC:
+                emitter.emit(Op.LOAD, Reg.SB, instr.aux);
+                break;
+            case PUTSTATIC:
+                emitValue(instr.operand(0));
+                emitter.emit(Op.STORE, Reg.SB, instr.aux);
+                break;
+            case GETFIELD:
+                if (isThis(instr.operand(0))) {
+                    emitter.emit(Op.LOAD, Reg.OB, instr.aux);
+                } else {
+                    emitValue(instr.operand(0));
+                    emitter.emit(Op.LOADF, instr.safe ? 1 : 0, Reg.ZR, instr.aux);
+                }
+                break;
+            case PUTFIELD:
+                if (isThis(instr.operand(0))) {
+                    emitValue(instr.operand(1));
+                    emitter.emit(Op.STORE, Reg.OB, instr.aux);
+                } else {
+                    emitValue(instr.operand(0));
+                    emitValue(instr.operand(1));
+                    emitter.emit(Op.STOREF, instr.safe ? 1 : 0, Reg.ZR, instr.aux);
+                }
+                break;
+            case ARRAYLEN:
+                emitValue(instr.operand(0));
+                emitter.emit(Prim.arraylen);
+                break;
+            case ARRAYREF:
+                emitValue(instr.operand(0));
+                emitValue(instr.operand(1));
+                emitter.emit(instr.safe ? Prim.uarrayref : Prim.arrayref);
+                break;
+            case ARRAYUPD:
+                emitValue(instr.operand(0));
+                emitValue(instr.operand(1));
+                emitValue(instr.operand(2));
+                emitter.emit(instr.safe ? Prim.uarrayupd : Prim.arrayupd);
+                break;
+            case NEWOBJ:
+                emitter.emit(Op.LOADL, -1);
+                emitter.emit(Op.LOADL, instr.aux);
+                emitter.emit(Prim.newobj);
+                break;
+            case NEWARR:
+                emitValue(instr.operand(0));
+                emitter.emit(Prim.newarr);
+                break;
+            case CALL:
+                for (Value operand : instr.operands) {
+                    emitValue(operand);
+                }
+                emitter.emit(instr.method.isStatic ? Op.CALL : Op.CALLI, Reg.CB, methodLabel.apply(instr.method));
+                break;
+            case PRINT:
+                emitValue(instr.operand(0));
+                emitter.emit(Prim.putintnl);
+                break;
+            default:
+                throw new RuntimeException("Cannot generate " + instr.display());
+        }
+    }
+
+    private static Prim binaryPrim(Opcode op) {
+        switch (op) {
+            case MUL:
+                return Prim.mult;
+            case DIV:
+                return Prim.div;
+            case LT:
+                return Prim.lt;
+            case LE:
+                return Prim.le;
+            case GT:
+                return Prim.gt;
+            case GE:
+                return Prim.ge;
+            case EQ:
+                return Prim.eq;
+            default:
+                return Prim.ne;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package miniJava.IR;
+
+/**
+ * The operations of IR instructions. Operands are listed in the order they are evaluated.
+ */
+public enum Opcode {
+    PARAM,      // parameter aux on entry
+    THIS,       // object the method runs on
+    PHI,        // value of operand i when entered from predecessor i
+    ADD, SUB, MUL, DIV, NEG,
+    NOT, LT, LE, GT, GE, EQ, NE,
+    GETSTATIC,  // static field aux
+    PUTSTATIC,  // value: static field aux := value
+    GETFIELD,   // object: field aux of object
+    PUTFIELD,   // object, value
+    ARRAYLEN,   // array
+    ARRAYREF,   // array, index
+    ARRAYUPD,   // array, index, value
+    NEWOBJ,     // new object of aux fields
+    NEWARR,     // size
+    CALL,       // arguments, then the receiver if the method is an instance method
+    PRINT,      // value
+    JUMP,       // to targets[0]
+    BRANCH,     // condition: to targets[0] if true, targets[1] if false
+    RETURN      // the result if any
+}
@@ -0,0 +1,630 @@
+package miniJava.IR;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.CodeGenerator.VarDescription;
+import miniJava.Compiler;
+import miniJava.ContextualAnalyzer.Identification;
+import miniJava.mJAM.Machine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Builds the SSA form of a method from its checked AST, after the code generator has
+ * laid out its fields.
+ * <p>
+ * Locals become values as they are assigned, with phis where control flow merges, placed
+ * as the blocks are sealed (Braun et al., Simple and Efficient Construction of SSA Form).
+ * && and || become control flow. Calls are inlined by the same rule the code generator
+ * uses, so the program fails in the same places either way, and a self call in tail
+ * position jumps back to the start of the method with new parameter values. Blocks are
+ * laid out in the order the code generator emits them, each loop's test after its body.
+ */
+public class SSABuilder {
+    private final int inlineBudget;
+    private final ToIntFunction<MethodDecl> inlineCost;
+    private final Predicate<Statement> tailCall;
+    private final Predicate<Reference> selfCall;
+
+    private Function function;
+    private Block current;
+    // value of each variable at the end of each block, as far as it has been built
+    private final HashMap<Block, HashMap<Object, Value>> definitions = new HashMap<>();
+    private final HashSet<Block> sealed = new HashSet<>();
+    // phis created in blocks not yet sealed, for the variable each stands for
+    private final HashMap<Block, HashMap<Object, Instr>> incompletePhis = new HashMap<>();
+    // phis found to be trivial, to the value they are replaced by
+    private final HashMap<Instr, Value> replaced = new HashMap<>();
+    // object the method runs on, if it is an instance method
+    private Instr thisValue;
+    // where a self call in tail position continues
+    private Block start;
+    // innermost method being inlined, or null
+    private Inline inline;
+    private int line;
+
+    /**
+     * A method whose body is being built in place of a call to it.
+     */
+    private static final class Inline {
+        final MethodDecl method;
+        final Value receiver;
+        // whether the receiver is known not to be null
+        final boolean safeReceiver;
+        final Block exit;
+        // variable holding the result
+        final Object result = new Object();
+        final Inline outer;
+
+        Inline(MethodDecl method, Value receiver, boolean safeReceiver, Block exit, Inline outer) {
+            this.method = method;
+            this.receiver = receiver;
+            this.safeReceiver = safeReceiver;
+            this.exit = exit;
+            this.outer = outer;
+        }
+    }
+
+    /**
+     * @param inlineBudget the largest inline cost of a method inlined
+     * @param inlineCost   the code generator's cost of inlining a method
+     * @param tailCall     the code generator's test for a call statement in tail position
+     * @param selfCall     the code generator's test for a call that can reuse the frame of the
+     *                     method being built
+     */
+    public SSABuilder(int inlineBudget, ToIntFunction<MethodDecl> inlineCost,
+                      Predicate<Statement> tailCall, Predicate<Reference> selfCall) {
+        this.inlineBudget = inlineBudget;
+        this.inlineCost = inlineCost;
+        this.tailCall = tailCall;
+        this.selfCall = selfCall;
+    }
+
+    public Function build(MethodDecl md) {
+        function = new Function(md);
+        definitions.clear();
+        sealed.clear();
+        incompletePhis.clear();
+        replaced.clear();
+        inline = null;
+        line = -1;
+
+        Block entry = newBlock();
+        function.entry = entry;
+        startSealed(entry);
+        // a static method has one too: an instance method it calls unqualified runs on
+        // whatever OB holds, as in code generated from the AST
+        thisValue = append(new Instr(Opcode.THIS));
+        for (int i = 0; i < md.parameterDeclList.size(); i++) {
+            Instr param = append(new Instr(Opcode.PARAM));
+            param.aux = i;
+            write(md.parameterDeclList.get(i), param);
+        }
+        // sealed once every self call in tail position has been seen
+        start = newBlock();
+        jump(start);
+        place(start);
+
+        buildStatements(md.statementList);
+        // a method without a final return returns nothing
+        line = -1;
+        append(new Instr(Opcode.RETURN));
+        seal(start);
+
+        function.removeUnreachable();
+        return function;
+    }
+
+    // -- blocks and instructions
+
+    private Block newBlock() {
+        return function.newBlock();
+    }
+
+    // Adds a block to the layout and continues building in it.
+    private void place(Block block) {
+        function.blocks.add(block);
+        current = block;
+    }
+
+    private void startSealed(Block block) {
+        seal(block);
+        place(block);
+    }
+
+    // Continues after a return or jump, in a block nothing reaches.
+    private void startUnreachable() {
+        startSealed(newBlock());
+    }
+
+    private Instr append(Instr instr) {
+        // an operand built before another may have been a phi found trivial since
+        for (int i = 0; i < instr.operands.size(); i++) {
+            instr.setOperand(i, resolve(instr.operand(i)));
+        }
+        function.number(instr);
+        instr.line = line;
+        current.append(instr);
+        return instr;
+    }
+
+    private void jump(Block target) {
+        Instr jump = append(new Instr(Opcode.JUMP));
+        jump.targets = new Block[]{target};
+        target.preds.add(current);
+    }
+
+    private void branch(Value cond, Block ifTrue, Block ifFalse) {
+        Instr branch = append(new Instr(Opcode.BRANCH, cond));
+        branch.targets = new Block[]{ifTrue, ifFalse};
+        ifTrue.preds.add(current);
+        ifFalse.preds.add(current);
+    }
+
+    // -- variables
+
+    private void write(Object variable, Value value) {
+        write(variable, current, value);
+    }
+
+    private void write(Object variable, Block block, Value value) {
+        definitions.computeIfAbsent(block, b -> new HashMap<>()).put(variable, value);
+    }
+
+    private Value read(Object variable) {
+        return read(variable, current);
+    }
+
+    private Value read(Object variable, Block block) {
+        HashMap<Object, Value> defined = definitions.get(block);
+        if (defined != null && defined.containsKey(variable)) {
+            return resolve(defined.get(variable));
+        }
+        Value value;
+        if (!sealed.contains(block)) {
+            Instr phi = newPhi(block);
+            incompletePhis.computeIfAbsent(block, b -> new LinkedHashMap<>()).put(variable, phi);
+            value = phi;
+        } else if (block.preds.size() == 1) {
+            value = read(variable, block.preds.get(0));
+        } else if (block.preds.isEmpty()) {
+            // unreachable
+            value = new Constant(0);
+        } else {
+            Instr phi = newPhi(block);
+            write(variable, block, phi);
+            value = addPhiOperands(variable, phi);
+        }
+        // removing a trivial phi can remove others, the one found above among them
+        value = resolve(value);
+        write(variable, block, value);
+        return value;
+    }
+
+    private Value resolve(Value value) {
+        while (value instanceof Instr && replaced.containsKey(value)) {
+            value = replaced.get(value);
+        }
+        return value;
+    }
+
+    private Instr newPhi(Block block) {
+        Instr phi = function.number(new Instr(Opcode.PHI));
+        block.insertPhi(phi);
+        return phi;
+    }
+
+    private Value addPhiOperands(Object variable, Instr phi) {
+        for (Block pred : phi.block.preds) {
+            phi.addOperand(read(variable, pred));
+        }
+        return removeIfTrivial(phi);
+    }
+
+    // A phi whose operands are all the same value or the phi itself is that value.
+    private Value removeIfTrivial(Instr phi) {
+        Value same = null;
+        for (Value operand : phi.operands) {
+            if (operand == same || operand == phi) {
+                continue;
+            }
+            if (same != null) {
+                return phi;
+            }
+            same = operand;
+        }
+        if (same == null) {
+            // only reachable through itself, or not at all
+            same = new Constant(0);
+        }
+        ArrayList<Instr> users = new ArrayList<>(phi.users);
+        users.remove(phi);
+        phi.replaceAllUsesWith(same);
+        phi.remove();
+        replaced.put(phi, same);
+        for (Instr user : users) {
+            if (user.op == Opcode.PHI && user.block != null) {
+                removeIfTrivial(user);
+            }
+        }
+        return resolve(same);
+    }
+
+    private void seal(Block block) {
+        HashMap<Object, Instr> phis = incompletePhis.remove(block);
+        if (phis != null) {
+            for (Map.Entry<Object, Instr> entry : phis.entrySet()) {
+                addPhiOperands(entry.getKey(), entry.getValue());
+            }
+        }
+        sealed.add(block);
+    }
+
+    // -- statements
+
+    private void buildStatements(StatementList statements) {
+        for (Statement st : statements) {
+            // inlined code counts as the line of its call
+            if (st.posn != null && inline == null) {
+                line = st.posn.start;
+            }
+            build(st);
+        }
+    }
+
+    private void build(Statement stmt) {
+        if (stmt instanceof BlockStmt) {
+            buildStatements(((BlockStmt) stmt).sl);
+        } else if (stmt instanceof VarDeclStmt) {
+            VarDeclStmt declStmt = (VarDeclStmt) stmt;
+            write(declStmt.varDecl, build(declStmt.initExp));
+        } else if (stmt instanceof AssignStmt) {
+            buildAssign((AssignStmt) stmt);
+        } else if (stmt instanceof IxAssignStmt) {
+            IxAssignStmt assign = (IxAssignStmt) stmt;
+            Value array = load(assign.ref);
+            Value index = build(assign.ix);
+            Value value = build(assign.exp);
+            append(new Instr(Opcode.ARRAYUPD, array, index, value)).safe = assign.safe;
+        } else if (stmt instanceof CallStmt) {
+            CallStmt call = (CallStmt) stmt;
+            if (call.methodRef.decl == Compiler.PRINTLN_DECL) {
+                append(new Instr(Opcode.PRINT, build(call.argList.get(0))));
+            } else if (tailCall.test(stmt) && isSelfTailCall(call.methodRef)) {
+                buildSelfTailCall(call.argList);
+            } else {
+                call(call.methodRef, call.argList);
+            }
+        } else if (stmt instanceof ReturnStmt) {
+            buildReturn((ReturnStmt) stmt);
+        } else if (stmt instanceof IfStmt) {
+            buildIf((IfStmt) stmt);
+        } else if (stmt instanceof WhileStmt) {
+            buildWhile((WhileStmt) stmt);
+        }
+    }
+
+    private void buildAssign(AssignStmt stmt) {
+        if (stmt.ref.decl instanceof LocalDecl) {
+            write(stmt.ref.decl, build(stmt.val));
+            return;
+        }
+        FieldDecl fd = (FieldDecl) stmt.ref.decl;
+        int offset = ((VarDescription) fd.runtimeDescription).offset;
+        if (fd.isStatic) {
+            append(new Instr(Opcode.PUTSTATIC, build(stmt.val))).aux = offset;
+            return;
+        }
+        Value object;
+        boolean safe;
+        if (stmt.ref instanceof IdRef) {
+            object = self();
+            safe = selfSafe();
+        } else {
+            QualRef ref = (QualRef) stmt.ref;
+            object = load(ref.ref);
+            safe = ref.safe;
+        }
+        Instr put = append(new Instr(Opcode.PUTFIELD, object, build(stmt.val)));
+        put.aux = offset;
+        put.safe = safe;
+    }
+
+    private void buildReturn(ReturnStmt stmt) {
+        if (inline != null) {
+            if (stmt.returnExpr != null) {
+                write(inline.result, build(stmt.returnExpr));
+            }
+            jump(inline.exit);
+        } else if (stmt.returnExpr instanceof CallExpr && isSelfTailCall(((CallExpr) stmt.returnExpr).functionRef)) {
+            buildSelfTailCall(((CallExpr) stmt.returnExpr).argList);
+            return;
+        } else if (stmt.returnExpr != null) {
+            append(new Instr(Opcode.RETURN, build(stmt.returnExpr)));
+        } else {
+            append(new Instr(Opcode.RETURN));
+        }
+        startUnreachable();
+    }
+
+    private void buildIf(IfStmt stmt) {
+        Block thenBlock = newBlock();
+        Block elseBlock = stmt.elseStmt != null ? newBlock() : null;
+        Block end = newBlock();
+        buildBranch(stmt.cond, thenBlock, elseBlock != null ? elseBlock : end);
+
+        startSealed(thenBlock);
+        build(stmt.thenStmt);
+        jump(end);
+        if (elseBlock != null) {
+            startSealed(elseBlock);
+            build(stmt.elseStmt);
+            jump(end);
+        }
+        startSealed(end);
+    }
+
+    private void buildWhile(WhileStmt stmt) {
+        Block body = newBlock();
+        Block test = newBlock();
+        Block exit = newBlock();
+        jump(test);
+
+        // the body is entered from the test, which is built after it
+        place(body);
+        build(stmt.body);
+        jump(test);
+
+        startSealed(test);
+        buildBranch(stmt.cond, body, exit);
+        seal(body);
+        startSealed(exit);
+    }
+
+    /**
+     * Ends the current block with a jump to ifTrue if the condition holds and to ifFalse
+     * otherwise.
+     */
+    private void buildBranch(Expression cond, Block ifTrue, Block ifFalse) {
+        if (cond instanceof UnaryExpr && ((UnaryExpr) cond).operator.spelling.equals("!")) {
+            buildBranch(((UnaryExpr) cond).expr, ifFalse, ifTrue);
+            return;
+        }
+        if (cond instanceof LiteralExpr && ((LiteralExpr) cond).lit instanceof BooleanLiteral) {
+            jump(((LiteralExpr) cond).lit.spelling.equals("true") ? ifTrue : ifFalse);
+            return;
+        }
+        if (cond instanceof BinaryExpr) {
+            BinaryExpr expr = (BinaryExpr) cond;
+            String operator = expr.operator.spelling;
+            if (operator.equals("&&") || operator.equals("||")) {
+                Block right = newBlock();
+                if (operator.equals("&&")) {
+                    buildBranch(expr.left, right, ifFalse);
+                } else {
+                    buildBranch(expr.left, ifTrue, right);
+                }
+                startSealed(right);
+                buildBranch(expr.right, ifTrue, ifFalse);
+                return;
+            }
+        }
+        branch(build(cond), ifTrue, ifFalse);
+    }
+
+    // -- expressions
+
+    private Value build(Expression expr) {
+        if (expr instanceof LiteralExpr) {
+            Terminal lit = ((LiteralExpr) expr).lit;
+            if (lit instanceof IntLiteral) {
+                return new Constant(Integer.parseInt(lit.spelling));
+            } else if (lit instanceof BooleanLiteral) {
+                return new Constant(lit.spelling.equals("true") ? Machine.trueRep : Machine.falseRep);
+            }
+            return new Constant(Machine.nullRep);
+        } else if (expr instanceof RefExpr) {
+            return load(((RefExpr) expr).ref);
+        } else if (expr instanceof IxExpr) {
+            IxExpr ixExpr = (IxExpr) expr;
+            Value array = load(ixExpr.ref);
+            Instr ref = append(new Instr(Opcode.ARRAYREF, array, build(ixExpr.ixExpr)));
+            ref.safe = ixExpr.safe;
+            return ref;
+        } else if (expr instanceof CallExpr) {
+            return call(((CallExpr) expr).functionRef, ((CallExpr) expr).argList);
+        } else if (expr instanceof UnaryExpr) {
+            UnaryExpr unary = (UnaryExpr) expr;
+            Value operand = build(unary.expr);
+            return append(new Instr(unary.operator.spelling.equals("!") ? Opcode.NOT : Opcode.NEG, operand));
+        } else if (expr instanceof BinaryExpr) {
+            return buildBinary((BinaryExpr) expr);
+        } else if (expr instanceof NewObjectExpr) {
+            Instr newObj = append(new Instr(Opcode.NEWOBJ));
+            newObj.aux = ((NewObjectExpr) expr).classtype.className.decl.runtimeDescription.size;
+            return newObj;
+        } else {
+            return append(new Instr(Opcode.NEWARR, build(((NewArrayExpr) expr).sizeExpr)));
+        }
+    }
+
+    private Value buildBinary(BinaryExpr expr) {
+        String operator = expr.operator.spelling;
+        if (operator.equals("&&") || operator.equals("||")) {
+            Object result = new Object();
+            Block ifTrue = newBlock();
+            Block ifFalse = newBlock();
+            Block end = newBlock();
+            buildBranch(expr, ifTrue, ifFalse);
+            startSealed(ifTrue);
+            write(result, new Constant(Machine.trueRep));
+            jump(end);
+            startSealed(ifFalse);
+            write(result, new Constant(Machine.falseRep));
+            jump(end);
+            startSealed(end);
+            return read(result);
+        }
+        Value left = build(expr.left);
+        Value right = build(expr.right);
+        return append(new Instr(binaryOpcode(operator), left, right));
+    }
+
+    private static Opcode binaryOpcode(String operator) {
+        switch (operator) {
+            case "+":
+                return Opcode.ADD;
+            case "-":
+                return Opcode.SUB;
+            case "*":
+                return Opcode.MUL;
+            case "/":
+                return Opcode.DIV;
+            case "<":
+                return Opcode.LT;
+            case "<=":
+                return Opcode.LE;
+            case ">":
+                return Opcode.GT;
+            case ">=":
+                return Opcode.GE;
+            case "==":
+                return Opcode.EQ;
+            case "!=":
+                return Opcode.NE;
+            default:
+                throw new RuntimeException("Unrecognized binary operator");
+        }
+    }
+
+    // The value of a reference used as an expression.
+    private Value load(Reference ref) {
+        if (ref instanceof ThisRef) {
+            return self();
+        }
+        if (ref instanceof IdRef) {
+            if (ref.decl instanceof LocalDecl) {
+                return read(ref.decl);
+            }
+            return loadField((FieldDecl) ref.decl);
+        }
+        QualRef qualRef = (QualRef) ref;
+        if (qualRef.ref.decl instanceof ClassDecl) {
+            // a static field of a class, or a field of this
+            return loadField((FieldDecl) qualRef.id.decl);
+        }
+        Value object = load(qualRef.ref);
+        if (qualRef.id.decl == Identification.LENGTH_DECL) {
+            return append(new Instr(Opcode.ARRAYLEN, object));
+        }
+        Instr get = append(new Instr(Opcode.GETFIELD, object));
+        get.aux = ((VarDescription) qualRef.id.decl.runtimeDescription).offset;
+        get.safe = qualRef.safe;
+        return get;
+    }
+
+    private Value loadField(FieldDecl fd) {
+        int offset = ((VarDescription) fd.runtimeDescription).offset;
+        if (fd.isStatic) {
+            Instr get = append(new Instr(Opcode.GETSTATIC));
+            get.aux = offset;
+            return get;
+        }
+        Instr get = append(new Instr(Opcode.GETFIELD, self()));
+        get.aux = offset;
+        get.safe = selfSafe();
+        return get;
+    }
+
+    // The object the code being built runs on.
+    private Value self() {
+        return inline != null && inline.receiver != null ? resolve(inline.receiver) : thisValue;
+    }
+
+    private boolean selfSafe() {
+        return inline == null || inline.receiver == null || inline.safeReceiver;
+    }
+
+    // -- calls
+
+    /**
+     * @return the result of a call, or null if the method returns nothing
+     */
+    private Value call(Reference methodRef, ExprList args) {
+        MethodDecl md = (MethodDecl) methodRef.decl;
+        if (canInline(md)) {
+            return buildInline(methodRef, args);
+        }
+        Instr call = new Instr(Opcode.CALL);
+        call.method = md;
+        for (Expression argument : args) {
+            call.addOperand(build(argument));
+        }
+        if (!md.isStatic) {
+            call.addOperand(methodRef instanceof QualRef ? load(((QualRef) methodRef).ref) : self());
+        }
+        return append(call);
+    }
+
+    private boolean canInline(MethodDecl md) {
+        if (md == function.method || md == Compiler.PRINTLN_DECL) {
+            return false;
+        }
+        for (Inline outer = inline; outer != null; outer = outer.outer) {
+            if (outer.method == md) {
+                return false;
+            }
+        }
+        return inlineCost.applyAsInt(md) <= inlineBudget;
+    }
+
+    private Value buildInline(Reference methodRef, ExprList args) {
+        MethodDecl md = (MethodDecl) methodRef.decl;
+        Value[] values = new Value[args.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = build(args.get(i));
+        }
+        Value receiver = inline != null ? inline.receiver : null;
+        boolean safeReceiver = inline != null && inline.safeReceiver;
+        if (!md.isStatic && methodRef instanceof QualRef && !(((QualRef) methodRef).ref instanceof ThisRef)) {
+            receiver = load(((QualRef) methodRef).ref);
+            safeReceiver = ((QualRef) methodRef).safe;
+        }
+        for (int i = 0; i < values.length; i++) {
+            write(md.parameterDeclList.get(i), values[i]);
+        }
+
+        Inline frame = new Inline(md, receiver, safeReceiver, newBlock(), inline);
+        inline = frame;
+        buildStatements(md.statementList);
+        jump(frame.exit);
+        inline = frame.outer;
+        startSealed(frame.exit);
+        return md.type.typeKind == TypeKind.VOID ? null : read(frame.result);
+    }
+
+    /**
+     * @return true if a call in tail position can reuse the current frame, as it calls the
+     * method being built on the same object from its own code rather than code inlined into it
+     */
+    private boolean isSelfTailCall(Reference methodRef) {
+        return inline == null && selfCall.test(methodRef);
+    }
+
+    private void buildSelfTailCall(ExprList args) {
+        Value[] values = new Value[args.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = build(args.get(i));
+        }
+        for (int i = 0; i < values.length; i++) {
+            write(function.method.parameterDeclList.get(i), values[i]);
+        }
+        jump(start);
+        startUnreachable();
+    }
+}
@@ -0,0 +1,22 @@
+package miniJava.IR;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Something an instruction can use as an operand: a constant, or the result of an
+ * instruction. Each value is defined once.
+ */
+public abstract class Value {
+    // instructions using this value, once for each operand that is this value
+    final List<Instr> users = new ArrayList<>();
+
+    /**
+     * Makes every instruction using this value use the given one instead.
+     */
+    void replaceAllUsesWith(Value value) {
+        for (Instr user : new ArrayList<>(users)) {
+            user.replaceOperand(this, value);
+        }
+    }
+}
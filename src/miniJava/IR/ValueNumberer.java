@@ -0,0 +1,194 @@
+package miniJava.IR;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Global value numbering over the dominator tree: an instruction computing what one
+ * dominating it already computed from the same operands is replaced by that one's result.
+ * <p>
+ * Arithmetic that may fail counts too, as the earlier computation would have failed
+ * first, and so do array lengths, which never change. Loads do not, as calls and stores
+ * between the two may change what they read. Phis whose operands are all the same value
+ * are replaced by it, and so are phis of a block identical to an earlier one.
+ */
+public class ValueNumberer {
+    private final HashMap<List<Object>, Instr> available = new HashMap<>();
+    private final HashMap<Block, List<Block>> children = new HashMap<>();
+    private int replaced;
+
+    /**
+     * @return the number of instructions replaced
+     */
+    public int number(Function function) {
+        replaced = 0;
+        available.clear();
+        children.clear();
+        HashMap<Block, Block> idom = dominators(function);
+        for (Block block : function.blocks) {
+            Block parent = idom.get(block);
+            if (parent != null && parent != block) {
+                children.computeIfAbsent(parent, b -> new ArrayList<>()).add(block);
+            }
+        }
+        visit(function.entry);
+        return replaced;
+    }
+
+    private void visit(Block block) {
+        List<List<Object>> added = new ArrayList<>();
+        for (Instr instr : new ArrayList<>(block.instrs)) {
+            if (instr.block == null) {
+                // removed as a trivial phi
+                continue;
+            }
+            if (instr.op == Opcode.PHI && removeIfTrivial(instr)) {
+                continue;
+            }
+            List<Object> key = key(instr);
+            if (key == null) {
+                continue;
+            }
+            Instr same = available.get(key);
+            if (same != null) {
+                replace(instr, same);
+            } else {
+                available.put(key, instr);
+                added.add(key);
+            }
+        }
+        for (Block child : children.getOrDefault(block, new ArrayList<>())) {
+            visit(child);
+        }
+        for (List<Object> key : added) {
+            available.remove(key);
+        }
+    }
+
+    private boolean removeIfTrivial(Instr phi) {
+        Value same = null;
+        for (Value operand : phi.operands) {
+            if (operand == phi || sameValue(operand, same)) {
+                continue;
+            }
+            if (same != null) {
+                return false;
+            }
+            same = operand;
+        }
+        if (same == null) {
+            return false;
+        }
+        ArrayList<Instr> users = new ArrayList<>(phi.users);
+        replace(phi, same);
+        for (Instr user : users) {
+            if (user != phi && user.op == Opcode.PHI && user.block != null) {
+                removeIfTrivial(user);
+            }
+        }
+        return true;
+    }
+
+    private void replace(Instr instr, Value value) {
+        instr.replaceAllUsesWith(value);
+        instr.remove();
+        replaced++;
+    }
+
+    private static boolean sameValue(Value a, Value b) {
+        if (a instanceof Constant && b instanceof Constant) {
+            return ((Constant) a).value == ((Constant) b).value;
+        }
+        return a == b;
+    }
+
+    // What an instruction computes, for the instructions that can be numbered, or null.
+    private static List<Object> key(Instr instr) {
+        switch (instr.op) {
+            case PHI:
+                // phis are only compared within their block
+                List<Object> phiKey = new ArrayList<>(Arrays.asList(instr.op, instr.block));
+                for (Value operand : instr.operands) {
+                    phiKey.add(operandKey(operand));
+                }
+                return phiKey;
+            case ADD:
+            case MUL:
+            case EQ:
+            case NE:
+                // commutative: order the operands
+                Object left = operandKey(instr.operand(0)), right = operandKey(instr.operand(1));
+                if (left instanceof Integer || (right instanceof Instr && ((Instr) right).id < ((Instr) left).id)) {
+                    Object swap = left;
+                    left = right;
+                    right = swap;
+                }
+                return Arrays.asList(instr.op, left, right);
+            case SUB:
+            case DIV:
+            case LT:
+            case LE:
+            case GT:
+            case GE:
+                return Arrays.asList(instr.op, operandKey(instr.operand(0)), operandKey(instr.operand(1)));
+            case NEG:
+            case NOT:
+            case ARRAYLEN:
+                return Arrays.asList(instr.op, operandKey(instr.operand(0)));
+            default:
+                return null;
+        }
+    }
+
+    private static Object operandKey(Value value) {
+        return value instanceof Constant ? (Object) ((Constant) value).value : value;
+    }
+
+    /**
+     * Finds the immediate dominator of each block (Cooper, Harvey and Kennedy, A Simple,
+     * Fast Dominance Algorithm); the entry is its own.
+     */
+    static HashMap<Block, Block> dominators(Function function) {
+        List<Block> order = function.reversePostorder();
+        HashMap<Block, Integer> index = new HashMap<>();
+        for (int i = 0; i < order.size(); i++) {
+            index.put(order.get(i), i);
+        }
+        HashMap<Block, Block> idom = new HashMap<>();
+        idom.put(function.entry, function.entry);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block block : order) {
+                if (block == function.entry) {
+                    continue;
+                }
+                Block dom = null;
+                for (Block pred : block.preds) {
+                    if (idom.containsKey(pred)) {
+                        dom = dom == null ? pred : intersect(pred, dom, idom, index);
+                    }
+                }
+                if (dom != idom.get(block)) {
+                    idom.put(block, dom);
+                    changed = true;
+                }
+            }
+        }
+        return idom;
+    }
+
+    private static Block intersect(Block a, Block b, HashMap<Block, Block> idom, HashMap<Block, Integer> index) {
+        while (a != b) {
+            while (index.get(a) > index.get(b)) {
+                a = idom.get(a);
+            }
+            while (index.get(b) > index.get(a)) {
+                b = idom.get(b);
+            }
+        }
+        return a;
+    }
+}
@@ -0,0 +1,127 @@
+package miniJava.IR;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Checks that a function is well formed SSA, so a pass that breaks it is caught right
+ * after it runs rather than when the code it leads to misbehaves.
+ * <p>
+ * Each block must hold its phis, then other instructions, then one terminator; its
+ * predecessors must be exactly the blocks whose terminators target it, one phi operand
+ * for each; use lists must match operand lists; and every use must be dominated by its
+ * definition, a phi operand by the end of the corresponding predecessor.
+ */
+public final class Verifier {
+
+    private Verifier() {
+    }
+
+    /**
+     * @throws IllegalStateException describing the first problem found
+     */
+    public static void verify(Function function) {
+        HashSet<Block> blocks = new HashSet<>(function.blocks);
+        if (function.blocks.isEmpty() || function.blocks.get(0) != function.entry) {
+            fail(function, "entry is not the first block");
+        }
+        if (!function.entry.preds.isEmpty()) {
+            fail(function, "entry has predecessors");
+        }
+        HashMap<Block, Integer> edges = new HashMap<>();
+        for (Block block : function.blocks) {
+            Instr terminator = block.terminator();
+            if (terminator == null) {
+                fail(function, block + " has no terminator");
+            }
+            for (Block succ : block.succs()) {
+                if (!blocks.contains(succ)) {
+                    fail(function, block + " jumps to removed " + succ);
+                }
+                edges.merge(succ, 1, Integer::sum);
+                if (Collections.frequency(succ.preds, block) != Collections.frequency(block.succs(), succ)) {
+                    fail(function, succ + " does not list " + block + " as a predecessor once for each edge");
+                }
+            }
+        }
+        for (Block block : function.blocks) {
+            if (block.preds.size() != edges.getOrDefault(block, 0)) {
+                fail(function, block + " lists predecessors that do not jump to it");
+            }
+        }
+        HashMap<Block, Block> idom = ValueNumberer.dominators(function);
+        for (Block block : function.blocks) {
+            if (!idom.containsKey(block)) {
+                fail(function, block + " is unreachable");
+            }
+        }
+        HashMap<Instr, Integer> position = new HashMap<>();
+        for (Block block : function.blocks) {
+            for (int i = 0; i < block.instrs.size(); i++) {
+                position.put(block.instrs.get(i), i);
+            }
+        }
+        for (Block block : function.blocks) {
+            int phis = block.phiCount();
+            for (int i = 0; i < block.instrs.size(); i++) {
+                Instr instr = block.instrs.get(i);
+                if (instr.block != block) {
+                    fail(function, instr + " does not belong to " + block);
+                }
+                if (instr.op == Opcode.PHI && i >= phis) {
+                    fail(function, instr + " follows other instructions of " + block);
+                }
+                if (instr.isTerminator() && i != block.instrs.size() - 1) {
+                    fail(function, instr + " ends " + block + " early");
+                }
+                if (instr.op == Opcode.PHI && instr.operands.size() != block.preds.size()) {
+                    fail(function, instr + " has " + instr.operands.size() + " operands for "
+                            + block.preds.size() + " predecessors");
+                }
+                for (int k = 0; k < instr.operands.size(); k++) {
+                    Value operand = instr.operand(k);
+                    if (Collections.frequency(operand.users, instr) != Collections.frequency(instr.operands, operand)) {
+                        fail(function, instr + " is not a user of its operand " + operand + " once for each use");
+                    }
+                    if (!(operand instanceof Instr)) {
+                        continue;
+                    }
+                    Instr def = (Instr) operand;
+                    if (def.block == null || !blocks.contains(def.block)) {
+                        fail(function, instr + " uses removed " + def);
+                    }
+                    if (!def.hasResult()) {
+                        fail(function, instr + " uses " + def + ", which has no result");
+                    }
+                    boolean dominated = instr.op == Opcode.PHI
+                            ? dominates(def.block, block.preds.get(k), idom)
+                            : def.block == block ? position.get(def) < i : dominates(def.block, block, idom);
+                    if (!dominated) {
+                        fail(function, instr + " uses " + def + " where it is not defined");
+                    }
+                }
+                for (Instr user : instr.users) {
+                    if (user.block == null || !user.operands.contains(instr)) {
+                        fail(function, instr + " lists " + user + " as a user");
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean dominates(Block a, Block b, HashMap<Block, Block> idom) {
+        while (b != a) {
+            Block parent = idom.get(b);
+            if (parent == b) {
+                return false;
+            }
+            b = parent;
+        }
+        return true;
+    }
+
+    private static void fail(Function function, String problem) {
+        throw new IllegalStateException(function.method.name + ": " + problem + "\n" + function);
+    }
+}
@@ -0,0 +1,548 @@
+package miniJava.Optimizer;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.AbstractSyntaxTrees.Package;
+import miniJava.ContextualAnalyzer.Identification;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Marks the array and field accesses of a checked AST that cannot fail, so code generation
+ * can use the unchecked access primitives for them.
+ * <p>
+ * Each method is walked in execution order, keeping facts about its locals: which references
+ * are non-null, an interval holding each int, which arrays an int is a valid index of, which
+ * locals hold an array's length, and the literal lengths of arrays allocated in the method.
+ * Facts come from allocations, literals, arithmetic and conditions, and from the checked
+ * accesses themselves: after a[i] the code knows a is not null and i indexes it. Calls keep
+ * them, since a call cannot assign the caller's locals. An if keeps what both branches agree
+ * on; a loop forgets what it assigns, except that a local it only ever increases keeps its
+ * lower bound. Accesses through fields are never marked, as anything may change those.
+ */
+public class CheckEliminator {
+    private Facts facts = new Facts();
+    // accesses visited, some of them more than once where a condition was duplicated
+    private HashSet<AST> visited = new HashSet<>();
+    private int proved = 0;
+
+    private static final class Facts {
+        HashSet<LocalDecl> nonNull = new HashSet<>();
+        // bounds on int locals, none meaning any int
+        HashMap<LocalDecl, long[]> ranges = new HashMap<>();
+        // for an int local, the arrays it is known to index
+        HashMap<LocalDecl, HashSet<LocalDecl>> indexes = new HashMap<>();
+        // for an int local, the array whose length it holds
+        HashMap<LocalDecl, LocalDecl> lengthOf = new HashMap<>();
+        HashMap<LocalDecl, Integer> lengths = new HashMap<>();
+
+        Facts copy() {
+            Facts copy = new Facts();
+            copy.nonNull.addAll(nonNull);
+            copy.ranges.putAll(ranges);
+            for (Map.Entry<LocalDecl, HashSet<LocalDecl>> entry : indexes.entrySet()) {
+                copy.indexes.put(entry.getKey(), new HashSet<>(entry.getValue()));
+            }
+            copy.lengthOf.putAll(lengthOf);
+            copy.lengths.putAll(lengths);
+            return copy;
+        }
+
+        // keeps what holds in both
+        void meet(Facts other) {
+            nonNull.retainAll(other.nonNull);
+            ranges.keySet().retainAll(other.ranges.keySet());
+            for (Map.Entry<LocalDecl, long[]> entry : ranges.entrySet()) {
+                long[] mine = entry.getValue(), theirs = other.ranges.get(entry.getKey());
+                entry.setValue(new long[] { Math.min(mine[0], theirs[0]), Math.max(mine[1], theirs[1]) });
+            }
+            indexes.keySet().retainAll(other.indexes.keySet());
+            for (Map.Entry<LocalDecl, HashSet<LocalDecl>> entry : indexes.entrySet()) {
+                entry.getValue().retainAll(other.indexes.get(entry.getKey()));
+            }
+            lengthOf.entrySet().retainAll(other.lengthOf.entrySet());
+            lengths.entrySet().retainAll(other.lengths.entrySet());
+        }
+
+        // forgets everything about a local about to be assigned
+        void kill(LocalDecl local) {
+            nonNull.remove(local);
+            ranges.remove(local);
+            indexes.remove(local);
+            for (HashSet<LocalDecl> arrays : indexes.values()) {
+                arrays.remove(local);
+            }
+            lengthOf.remove(local);
+            lengthOf.values().removeIf(array -> array == local);
+            lengths.remove(local);
+        }
+
+        void index(LocalDecl index, LocalDecl array) {
+            indexes.computeIfAbsent(index, key -> new HashSet<>()).add(array);
+        }
+
+        void bound(LocalDecl local, long lo, long hi) {
+            long[] range = ranges.get(local);
+            if (range != null) {
+                lo = Math.max(lo, range[0]);
+                hi = Math.min(hi, range[1]);
+            }
+            ranges.put(local, new long[] { Math.max(lo, Integer.MIN_VALUE), Math.min(hi, Integer.MAX_VALUE) });
+        }
+    }
+
+    /**
+     * @return the number of accesses marked safe
+     */
+    public int eliminate(Package ast) {
+        for (ClassDecl cd : ast.classDeclList) {
+            for (MethodDecl md : cd.methodDeclList) {
+                facts = new Facts();
+                for (Statement stmt : md.statementList) {
+                    walk(stmt);
+                }
+            }
+        }
+        return proved;
+    }
+
+    // STATEMENTS
+
+    private void walk(Statement stmt) {
+        if (stmt instanceof BlockStmt) {
+            for (Statement s : ((BlockStmt) stmt).sl) {
+                walk(s);
+            }
+        } else if (stmt instanceof VarDeclStmt) {
+            VarDeclStmt decl = (VarDeclStmt) stmt;
+            walk(decl.initExp);
+            assign(decl.varDecl, decl.initExp);
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assign = (AssignStmt) stmt;
+            if (assign.ref instanceof QualRef) {
+                walkBase((QualRef) assign.ref);
+                walk(assign.val);
+                access((QualRef) assign.ref);
+            } else {
+                walk(assign.val);
+                if (assign.ref.decl instanceof LocalDecl) {
+                    assign((LocalDecl) assign.ref.decl, assign.val);
+                }
+            }
+        } else if (stmt instanceof IxAssignStmt) {
+            IxAssignStmt assign = (IxAssignStmt) stmt;
+            walk(assign.ref);
+            walk(assign.ix);
+            walk(assign.exp);
+            mark(assign, access(assign.ref, assign.ix));
+        } else if (stmt instanceof CallStmt) {
+            CallStmt call = (CallStmt) stmt;
+            walk(call.argList);
+            if (call.methodRef instanceof QualRef) {
+                receiver((QualRef) call.methodRef);
+            }
+        } else if (stmt instanceof ReturnStmt) {
+            if (((ReturnStmt) stmt).returnExpr != null) {
+                walk(((ReturnStmt) stmt).returnExpr);
+            }
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            walk(ifStmt.cond);
+            Facts before = facts;
+            facts = before.copy();
+            assume(ifStmt.cond, true);
+            walk(ifStmt.thenStmt);
+            Facts afterThen = facts;
+            facts = before.copy();
+            assume(ifStmt.cond, false);
+            if (ifStmt.elseStmt != null) {
+                walk(ifStmt.elseStmt);
+            }
+            if (!completes(ifStmt.thenStmt)) {
+                // only the else branch carries on
+            } else if (ifStmt.elseStmt != null && !completes(ifStmt.elseStmt)) {
+                facts = afterThen;
+            } else {
+                facts.meet(afterThen);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt loop = (WhileStmt) stmt;
+            HashSet<LocalDecl> assigned = new HashSet<>();
+            assigned(loop.body, assigned);
+            for (LocalDecl local : assigned) {
+                long[] range = facts.ranges.get(local);
+                facts.kill(local);
+                if (range != null && increases(loop.body, local, assigned)) {
+                    facts.bound(local, range[0], Integer.MAX_VALUE);
+                }
+            }
+            // what holds each time the condition is tested
+            walk(loop.cond);
+            Facts head = facts;
+            facts = head.copy();
+            assume(loop.cond, true);
+            walk(loop.body);
+            facts = head;
+            assume(loop.cond, false);
+        }
+    }
+
+    // false if the statement certainly does not complete normally
+    private static boolean completes(Statement stmt) {
+        if (stmt instanceof ReturnStmt) {
+            return false;
+        } else if (stmt instanceof BlockStmt) {
+            StatementList sl = ((BlockStmt) stmt).sl;
+            return sl.size() == 0 || completes(sl.get(sl.size() - 1));
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return ifStmt.elseStmt == null || completes(ifStmt.thenStmt) || completes(ifStmt.elseStmt);
+        }
+        return true;
+    }
+
+    private void assign(LocalDecl local, Expression value) {
+        long[] range = rangeOf(value);
+        boolean nonNull = value instanceof NewObjectExpr || value instanceof NewArrayExpr
+                || (value instanceof RefExpr && ((RefExpr) value).ref instanceof ThisRef)
+                || facts.nonNull.contains(localOf(value));
+        LocalDecl lengthOf = null;
+        if (value instanceof RefExpr && ((RefExpr) value).ref.decl == Identification.LENGTH_DECL) {
+            lengthOf = localOf(((QualRef) ((RefExpr) value).ref).ref);
+        }
+        Integer length = null;
+        if (value instanceof NewArrayExpr) {
+            long[] size = rangeOf(((NewArrayExpr) value).sizeExpr);
+            length = size != null && size[0] == size[1] ? (int) size[0] : null;
+        }
+
+        facts.kill(local);
+        if (range != null) {
+            facts.bound(local, range[0], range[1]);
+        }
+        if (nonNull) {
+            facts.nonNull.add(local);
+        }
+        if (lengthOf != null && lengthOf != local) {
+            facts.lengthOf.put(local, lengthOf);
+        }
+        if (length != null) {
+            facts.lengths.put(local, length);
+        }
+    }
+
+    private static void assigned(Statement stmt, HashSet<LocalDecl> assigned) {
+        if (stmt instanceof BlockStmt) {
+            for (Statement s : ((BlockStmt) stmt).sl) {
+                assigned(s, assigned);
+            }
+        } else if (stmt instanceof AssignStmt && ((AssignStmt) stmt).ref.decl instanceof LocalDecl) {
+            assigned.add((LocalDecl) ((AssignStmt) stmt).ref.decl);
+        } else if (stmt instanceof IfStmt) {
+            assigned(((IfStmt) stmt).thenStmt, assigned);
+            if (((IfStmt) stmt).elseStmt != null) {
+                assigned(((IfStmt) stmt).elseStmt, assigned);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            assigned(((WhileStmt) stmt).body, assigned);
+        }
+    }
+
+    /**
+     * Whether every assignment to the local in the loop body adds to it something that stays
+     * non-negative throughout: a literal, or a local the loop does not assign. Overflow traps,
+     * so such a local never decreases.
+     */
+    private boolean increases(Statement stmt, LocalDecl local, HashSet<LocalDecl> assigned) {
+        if (stmt instanceof BlockStmt) {
+            for (Statement s : ((BlockStmt) stmt).sl) {
+                if (!increases(s, local, assigned)) {
+                    return false;
+                }
+            }
+        } else if (stmt instanceof AssignStmt && ((AssignStmt) stmt).ref.decl == local) {
+            Expression value = ((AssignStmt) stmt).val;
+            if (!(value instanceof BinaryExpr) || !((BinaryExpr) value).operator.spelling.equals("+")) {
+                return false;
+            }
+            BinaryExpr sum = (BinaryExpr) value;
+            Expression step = localOf(sum.left) == local ? sum.right : localOf(sum.right) == local ? sum.left : null;
+            if (step == null || (localOf(step) == null ? Trees.intValue(step) == null : assigned.contains(localOf(step)))) {
+                return false;
+            }
+            long[] range = rangeOf(step);
+            return range != null && range[0] >= 0;
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return increases(ifStmt.thenStmt, local, assigned)
+                    && (ifStmt.elseStmt == null || increases(ifStmt.elseStmt, local, assigned));
+        } else if (stmt instanceof WhileStmt) {
+            return increases(((WhileStmt) stmt).body, local, assigned);
+        }
+        return true;
+    }
+
+    // EXPRESSIONS
+
+    private void walk(Expression expr) {
+        if (expr instanceof RefExpr) {
+            walk(((RefExpr) expr).ref);
+        } else if (expr instanceof IxExpr) {
+            IxExpr ix = (IxExpr) expr;
+            walk(ix.ref);
+            walk(ix.ixExpr);
+            mark(ix, access(ix.ref, ix.ixExpr));
+        } else if (expr instanceof UnaryExpr) {
+            walk(((UnaryExpr) expr).expr);
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            walk(binary.left);
+            String op = binary.operator.spelling;
+            if (op.equals("&&") || op.equals("||")) {
+                // the right operand may not run, so what it shows is forgotten
+                Facts before = facts;
+                facts = before.copy();
+                assume(binary.left, op.equals("&&"));
+                walk(binary.right);
+                facts = before;
+            } else {
+                walk(binary.right);
+            }
+        } else if (expr instanceof CallExpr) {
+            CallExpr call = (CallExpr) expr;
+            walk(call.argList);
+            if (call.functionRef instanceof QualRef) {
+                receiver((QualRef) call.functionRef);
+            }
+        } else if (expr instanceof NewArrayExpr) {
+            walk(((NewArrayExpr) expr).sizeExpr);
+        }
+    }
+
+    private void walk(ExprList args) {
+        for (Expression argument : args) {
+            walk(argument);
+        }
+    }
+
+    // a reference read as a value
+    private void walk(Reference ref) {
+        if (ref instanceof QualRef) {
+            walkBase((QualRef) ref);
+            access((QualRef) ref);
+        }
+    }
+
+    private void walkBase(QualRef ref) {
+        walk(ref.ref);
+    }
+
+    /**
+     * Marks a method called on a local known to be non-null, for the field accesses of its
+     * body if it is inlined. A call does not check its receiver, so it shows nothing.
+     */
+    private void receiver(QualRef methodRef) {
+        walkBase(methodRef);
+        LocalDecl base = localOf(methodRef.ref);
+        if (base != null) {
+            mark(methodRef, facts.nonNull.contains(base));
+        }
+    }
+
+    /**
+     * Marks a field access through a local known to be non-null; either way the local is
+     * non-null afterwards, or the access would have failed.
+     */
+    private void access(QualRef ref) {
+        LocalDecl base = localOf(ref.ref);
+        if (base == null) {
+            return;
+        }
+        if (ref.decl != Identification.LENGTH_DECL) {
+            mark(ref, facts.nonNull.contains(base));
+        }
+        facts.nonNull.add(base);
+    }
+
+    /**
+     * @return whether an element access is known to succeed, noting what it shows if it does not
+     */
+    private boolean access(Reference array, Expression index) {
+        LocalDecl local = localOf(array);
+        if (local == null) {
+            return false;
+        }
+        LocalDecl indexLocal = localOf(index);
+        long[] range = rangeOf(index);
+        Integer length = facts.lengths.get(local);
+        boolean safe = facts.nonNull.contains(local) && range != null && range[0] >= 0
+                && ((length != null && range[1] < length)
+                    || (indexLocal != null && facts.indexes.getOrDefault(indexLocal, new HashSet<>()).contains(local)));
+        facts.nonNull.add(local);
+        if (indexLocal != null) {
+            facts.index(indexLocal, local);
+            facts.bound(indexLocal, 0, length != null ? length - 1 : Integer.MAX_VALUE - 1);
+        }
+        return safe;
+    }
+
+    private void mark(AST access, boolean safe) {
+        // an access generated in several places must be safe in all of them
+        boolean first = visited.add(access);
+        if (access instanceof IxExpr) {
+            ((IxExpr) access).safe = safe && (first || ((IxExpr) access).safe);
+        } else if (access instanceof IxAssignStmt) {
+            ((IxAssignStmt) access).safe = safe && (first || ((IxAssignStmt) access).safe);
+        } else {
+            ((QualRef) access).safe = safe && (first || ((QualRef) access).safe);
+        }
+        if (safe && first) {
+            proved++;
+        }
+    }
+
+    /**
+     * Adds what the condition having the given value shows.
+     */
+    private void assume(Expression cond, boolean value) {
+        if (cond instanceof UnaryExpr && ((UnaryExpr) cond).operator.spelling.equals("!")) {
+            assume(((UnaryExpr) cond).expr, !value);
+            return;
+        }
+        if (!(cond instanceof BinaryExpr)) {
+            return;
+        }
+        BinaryExpr binary = (BinaryExpr) cond;
+        String op = binary.operator.spelling;
+        if (op.equals(value ? "&&" : "||")) {
+            assume(binary.left, value);
+            assume(binary.right, value);
+            return;
+        }
+        if (!value) {
+            op = negate(op);
+        }
+        compare(binary.left, op, binary.right);
+        compare(binary.right, swap(op), binary.left);
+    }
+
+    // adds what left op right shows about left
+    private void compare(Expression left, String op, Expression right) {
+        LocalDecl local = localOf(left);
+        if (local == null || op == null) {
+            return;
+        }
+        if (right instanceof LiteralExpr && ((LiteralExpr) right).lit instanceof NullLiteral) {
+            if (op.equals("!=")) {
+                facts.nonNull.add(local);
+            }
+            return;
+        }
+        LocalDecl array = null;
+        if (right instanceof RefExpr && ((RefExpr) right).ref.decl == Identification.LENGTH_DECL) {
+            array = localOf(((QualRef) ((RefExpr) right).ref).ref);
+        } else if (localOf(right) != null) {
+            array = facts.lengthOf.get(localOf(right));
+        }
+        if (array != null && op.equals("<")) {
+            facts.index(local, array);
+        }
+        long[] range = rangeOf(right);
+        if (range == null || !(left.type instanceof BaseType) || left.type.typeKind != TypeKind.INT) {
+            return;
+        }
+        switch (op) {
+            case "<": facts.bound(local, Long.MIN_VALUE, range[1] - 1); break;
+            case "<=": facts.bound(local, Long.MIN_VALUE, range[1]); break;
+            case ">": facts.bound(local, range[0] + 1, Long.MAX_VALUE); break;
+            case ">=": facts.bound(local, range[0], Long.MAX_VALUE); break;
+            case "==": facts.bound(local, range[0], range[1]); break;
+            default: break;
+        }
+    }
+
+    private static String negate(String op) {
+        switch (op) {
+            case "<": return ">=";
+            case "<=": return ">";
+            case ">": return "<=";
+            case ">=": return "<";
+            case "==": return "!=";
+            case "!=": return "==";
+            default: return null;
+        }
+    }
+
+    private static String swap(String op) {
+        if (op == null) {
+            return null;
+        }
+        switch (op) {
+            case "<": return ">";
+            case "<=": return ">=";
+            case ">": return "<";
+            case ">=": return "<=";
+            case "==": case "!=": return op;
+            default: return null;
+        }
+    }
+
+    /**
+     * @return bounds on an int expression's value if it completes, or null if unknown
+     */
+    private long[] rangeOf(Expression expr) {
+        Integer value = Trees.intValue(expr);
+        if (value != null) {
+            return new long[] { value, value };
+        }
+        if (expr instanceof RefExpr) {
+            Reference ref = ((RefExpr) expr).ref;
+            if (ref.decl == Identification.LENGTH_DECL) {
+                Integer length = facts.lengths.get(localOf(((QualRef) ref).ref));
+                return length != null ? new long[] { length, length } : new long[] { 0, Integer.MAX_VALUE };
+            }
+            LocalDecl local = localOf(ref);
+            return local != null ? facts.ranges.get(local) : null;
+        }
+        if (expr instanceof UnaryExpr && ((UnaryExpr) expr).operator.spelling.equals("-")) {
+            // mJAM negates in int, so the negation of Integer.MIN_VALUE is itself rather than a trap
+            long[] operand = rangeOf(((UnaryExpr) expr).expr);
+            return operand == null || operand[0] == Integer.MIN_VALUE ? null : new long[] { -operand[1], -operand[0] };
+        }
+        if (!(expr instanceof BinaryExpr)) {
+            return null;
+        }
+        BinaryExpr binary = (BinaryExpr) expr;
+        String op = binary.operator.spelling;
+        if (!op.equals("+") && !op.equals("-") && !op.equals("*")) {
+            return null;
+        }
+        long[] left = rangeOf(binary.left), right = rangeOf(binary.right);
+        if (left == null || right == null) {
+            return null;
+        }
+        switch (op) {
+            case "+":
+                return clamp(left[0] + right[0], left[1] + right[1]);
+            case "-":
+                return clamp(left[0] - right[1], left[1] - right[0]);
+            default:
+                long a = left[0] * right[0], b = left[0] * right[1], c = left[1] * right[0], d = left[1] * right[1];
+                return clamp(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+        }
+    }
+
+    // the result of addition, subtraction or multiplication that did not trap lies in int range
+    private static long[] clamp(long lo, long hi) {
+        return new long[] { Math.max(lo, Integer.MIN_VALUE), Math.min(hi, Integer.MAX_VALUE) };
+    }
+
+    private static LocalDecl localOf(Expression expr) {
+        return expr instanceof RefExpr ? localOf(((RefExpr) expr).ref) : null;
+    }
+
+    private static LocalDecl localOf(Reference ref) {
+        return ref instanceof IdRef && ref.decl instanceof LocalDecl ? (LocalDecl) ref.decl : null;
+    }
+}
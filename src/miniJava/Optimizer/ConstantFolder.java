@@ -0,0 +1,415 @@
+package miniJava.Optimizer;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.AbstractSyntaxTrees.Package;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Folds constant expressions in a checked AST and propagates constants through locals.
+ * <p>
+ * Expression visits return the expression to use in place of the one visited, which is
+ * a new literal when its value is known. Locals holding a known int or boolean value are
+ * tracked through straight-line code, into both branches of an if and out of it where the
+ * branches agree; a loop forgets the locals it assigns. An operation that would fail at
+ * run time, overflow or division by zero, is left in place so the program still fails there.
+ */
+public class ConstantFolder implements Visitor<Object, Expression> {
+    // known values of locals at the current point
+    private HashMap<LocalDecl, Terminal> constants = new HashMap<>();
+    private int folded = 0;
+
+    /**
+     * @return the number of expressions replaced by literals
+     */
+    public int fold(Package ast) {
+        ast.visit(this, null);
+        return folded;
+    }
+
+    private Expression fold(Expression expr) {
+        return expr.visit(this, null);
+    }
+
+    private void fold(ExprList args) {
+        for (int i = 0; i < args.size(); i++) {
+            args.set(i, fold(args.get(i)));
+        }
+    }
+
+    @Override
+    public Expression visitPackage(Package prog, Object arg) {
+        for (ClassDecl cd : prog.classDeclList) {
+            cd.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Expression visitClassDecl(ClassDecl cd, Object arg) {
+        for (MethodDecl md : cd.methodDeclList) {
+            md.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Expression visitFieldDecl(FieldDecl fd, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitMethodDecl(MethodDecl md, Object arg) {
+        constants.clear();
+        for (Statement statement : md.statementList) {
+            statement.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Expression visitParameterDecl(ParameterDecl pd, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitVarDecl(VarDecl decl, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitBaseType(BaseType type, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitClassType(ClassType type, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitArrayType(ArrayType type, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitBlockStmt(BlockStmt stmt, Object arg) {
+        for (Statement statement : stmt.sl) {
+            statement.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Expression visitVardeclStmt(VarDeclStmt stmt, Object arg) {
+        stmt.initExp = fold(stmt.initExp);
+        assign(stmt.varDecl, stmt.initExp);
+        return null;
+    }
+
+    @Override
+    public Expression visitAssignStmt(AssignStmt stmt, Object arg) {
+        stmt.val = fold(stmt.val);
+        if (stmt.ref instanceof IdRef && stmt.ref.decl instanceof LocalDecl) {
+            assign((LocalDecl) stmt.ref.decl, stmt.val);
+        }
+        return null;
+    }
+
+    private void assign(LocalDecl decl, Expression value) {
+        Terminal literal = constantOf(value);
+        if (literal != null) {
+            constants.put(decl, literal);
+        } else {
+            constants.remove(decl);
+        }
+    }
+
+    @Override
+    public Expression visitIxAssignStmt(IxAssignStmt stmt, Object arg) {
+        stmt.ix = fold(stmt.ix);
+        stmt.exp = fold(stmt.exp);
+        return null;
+    }
+
+    @Override
+    public Expression visitCallStmt(CallStmt stmt, Object arg) {
+        fold(stmt.argList);
+        return null;
+    }
+
+    @Override
+    public Expression visitReturnStmt(ReturnStmt stmt, Object arg) {
+        if (stmt.returnExpr != null) {
+            stmt.returnExpr = fold(stmt.returnExpr);
+        }
+        return null;
+    }
+
+    @Override
+    public Expression visitIfStmt(IfStmt stmt, Object arg) {
+        stmt.cond = fold(stmt.cond);
+        HashMap<LocalDecl, Terminal> before = constants;
+
+        constants = new HashMap<>(before);
+        stmt.thenStmt.visit(this, null);
+        HashMap<LocalDecl, Terminal> afterThen = constants;
+
+        constants = new HashMap<>(before);
+        if (stmt.elseStmt != null) {
+            stmt.elseStmt.visit(this, null);
+        }
+        HashMap<LocalDecl, Terminal> afterElse = constants;
+
+        Boolean cond = Trees.booleanValue(stmt.cond);
+        if (cond != null) {
+            constants = cond ? afterThen : afterElse;
+        } else {
+            // keep the values both branches agree on
+            constants = new HashMap<>();
+            for (Map.Entry<LocalDecl, Terminal> entry : afterThen.entrySet()) {
+                Terminal other = afterElse.get(entry.getKey());
+                if (other != null && other.spelling.equals(entry.getValue().spelling)) {
+                    constants.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Expression visitWhileStmt(WhileStmt stmt, Object arg) {
+        // the condition and body see the values the loop never changes, and so does what follows
+        HashSet<LocalDecl> assigned = new HashSet<>();
+        assignedLocals(stmt.body, assigned);
+        constants.keySet().removeAll(assigned);
+        HashMap<LocalDecl, Terminal> before = constants;
+
+        stmt.cond = fold(stmt.cond);
+        constants = new HashMap<>(before);
+        stmt.body.visit(this, null);
+        constants = before;
+        return null;
+    }
+
+    private static void assignedLocals(Statement stmt, HashSet<LocalDecl> assigned) {
+        if (stmt instanceof AssignStmt) {
+            AssignStmt assign = (AssignStmt) stmt;
+            if (assign.ref instanceof IdRef && assign.ref.decl instanceof LocalDecl) {
+                assigned.add((LocalDecl) assign.ref.decl);
+            }
+        } else if (stmt instanceof VarDeclStmt) {
+            assigned.add(((VarDeclStmt) stmt).varDecl);
+        } else if (stmt instanceof BlockStmt) {
+            for (Statement statement : ((BlockStmt) stmt).sl) {
+                assignedLocals(statement, assigned);
+            }
+        } else if (stmt instanceof IfStmt) {
+            assignedLocals(((IfStmt) stmt).thenStmt, assigned);
+            if (((IfStmt) stmt).elseStmt != null) {
+                assignedLocals(((IfStmt) stmt).elseStmt, assigned);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            assignedLocals(((WhileStmt) stmt).body, assigned);
+        }
+    }
+
+    @Override
+    public Expression visitUnaryExpr(UnaryExpr expr, Object arg) {
+        expr.expr = fold(expr.expr);
+        switch (expr.operator.spelling) {
+            case "!":
+                Boolean operand = Trees.booleanValue(expr.expr);
+                if (operand != null) {
+                    return literal(!operand, expr);
+                }
+                // !!e is e
+                if (expr.expr instanceof UnaryExpr && ((UnaryExpr) expr.expr).operator.spelling.equals("!")) {
+                    return ((UnaryExpr) expr.expr).expr;
+                }
+                break;
+
+            case "-":
+                Integer value = Trees.intValue(expr.expr);
+                // mJAM's neg wraps, so -MIN_VALUE folds to MIN_VALUE as it runs
+                if (value != null) {
+                    return literal(-value, expr);
+                }
+                break;
+        }
+        return expr;
+    }
+
+    @Override
+    public Expression visitBinaryExpr(BinaryExpr expr, Object arg) {
+        expr.left = fold(expr.left);
+        expr.right = fold(expr.right);
+        String operator = expr.operator.spelling;
+
+        if (operator.equals("&&") || operator.equals("||")) {
+            // a known left operand decides the result or leaves it to the right one;
+            // a known right operand can only be dropped, as the left one is still evaluated
+            boolean isOr = operator.equals("||");
+            Boolean left = Trees.booleanValue(expr.left);
+            if (left != null) {
+                return left == isOr ? expr.left : expr.right;
+            }
+            Boolean right = Trees.booleanValue(expr.right);
+            if (right != null && right != isOr) {
+                return expr.left;
+            }
+            return expr;
+        }
+
+        Integer left = Trees.intValue(expr.left), right = Trees.intValue(expr.right);
+        if (left != null && right != null) {
+            long result;
+            switch (operator) {
+                case "+":
+                    result = (long) left + right;
+                    break;
+                case "-":
+                    result = (long) left - right;
+                    break;
+                case "*":
+                    result = (long) left * right;
+                    break;
+                case "/":
+                    if (right == 0) {
+                        return expr;
+                    }
+                    result = left / right;
+                    break;
+                case "<":
+                    return literal(left < right, expr);
+                case ">":
+                    return literal(left > right, expr);
+                case "<=":
+                    return literal(left <= right, expr);
+                case ">=":
+                    return literal(left >= right, expr);
+                case "==":
+                    return literal(left.intValue() == right.intValue(), expr);
+                case "!=":
+                    return literal(left.intValue() != right.intValue(), expr);
+                default:
+                    return expr;
+            }
+            if (result != (int) result) {
+                return expr;
+            }
+            return literal((int) result, expr);
+        }
+
+        Boolean leftBool = Trees.booleanValue(expr.left), rightBool = Trees.booleanValue(expr.right);
+        if (leftBool != null && rightBool != null) {
+            if (operator.equals("==")) {
+                return literal(leftBool == rightBool, expr);
+            } else if (operator.equals("!=")) {
+                return literal(leftBool != rightBool, expr);
+            }
+        }
+        return expr;
+    }
+
+    @Override
+    public Expression visitRefExpr(RefExpr expr, Object arg) {
+        if (expr.ref instanceof IdRef && expr.ref.decl instanceof LocalDecl) {
+            Terminal value = constants.get(expr.ref.decl);
+            if (value instanceof IntLiteral) {
+                return literal(Integer.parseInt(value.spelling), expr);
+            } else if (value instanceof BooleanLiteral) {
+                return literal(value.spelling.equals("true"), expr);
+            }
+        }
+        return expr;
+    }
+
+    @Override
+    public Expression visitIxExpr(IxExpr expr, Object arg) {
+        expr.ixExpr = fold(expr.ixExpr);
+        return expr;
+    }
+
+    @Override
+    public Expression visitCallExpr(CallExpr expr, Object arg) {
+        fold(expr.argList);
+        return expr;
+    }
+
+    @Override
+    public Expression visitLiteralExpr(LiteralExpr expr, Object arg) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitNewObjectExpr(NewObjectExpr expr, Object arg) {
+        return expr;
+    }
+
+    @Override
+    public Expression visitNewArrayExpr(NewArrayExpr expr, Object arg) {
+        expr.sizeExpr = fold(expr.sizeExpr);
+        return expr;
+    }
+
+    @Override
+    public Expression visitThisRef(ThisRef ref, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitIdRef(IdRef ref, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitQRef(QualRef ref, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitIdentifier(Identifier id, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitOperator(Operator op, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitIntLiteral(IntLiteral num, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitBooleanLiteral(BooleanLiteral bool, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Expression visitNullLiteral(NullLiteral nullLiteral, Object arg) {
+        return null;
+    }
+
+    // The int or boolean literal an expression is, or null.
+    private static Terminal constantOf(Expression expr) {
+        if (Trees.intValue(expr) != null || Trees.booleanValue(expr) != null) {
+            return ((LiteralExpr) expr).lit;
+        }
+        return null;
+    }
+
+    private Expression literal(int value, Expression original) {
+        folded++;
+        return Trees.literal(value, original.posn);
+    }
+
+    private Expression literal(boolean value, Expression original) {
+        folded++;
+        return Trees.literal(value, original.posn);
+    }
+}
@@ -0,0 +1,496 @@
+package miniJava.Optimizer;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.AbstractSyntaxTrees.Package;
+import miniJava.Compiler;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Removes code that cannot run or whose effect is never seen from a checked AST.
+ * <p>
+ * Branches and loops whose condition is a literal are resolved, statements after one
+ * that never completes normally are dropped, and stores to locals that are never read
+ * are removed when the stored value has no effect of its own. Finally every method not
+ * reachable over the call graph from the main method is removed from its class, so no
+ * code is generated for it. Running {@link ConstantFolder} first exposes more of each.
+ * <p>
+ * As a visitor it walks statements and expressions to collect the locals read and the
+ * methods called.
+ */
+public class DeadCodeEliminator implements Visitor<Object, Object> {
+    // locals read and methods called in the code walked so far
+    private HashSet<LocalDecl> reads = new HashSet<>();
+    private HashSet<MethodDecl> calls = new HashSet<>();
+    // number of statements and methods removed
+    private int removed = 0;
+
+    /**
+     * @return the number of statements and methods removed
+     */
+    public int eliminate(Package ast) {
+        for (ClassDecl cd : ast.classDeclList) {
+            for (MethodDecl md : cd.methodDeclList) {
+                md.statementList = prune(md.statementList);
+                removeDeadStores(md);
+                // removing stores may leave empty branches behind
+                md.statementList = prune(md.statementList);
+            }
+        }
+        removeUnreachableMethods(ast);
+        return removed;
+    }
+
+    // STATEMENTS
+
+    private StatementList prune(StatementList statements) {
+        StatementList live = new StatementList();
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = prune(statements.get(i));
+            if (statement == null) {
+                removed++;
+                continue;
+            }
+            live.add(statement);
+            if (!completes(statement)) {
+                // the rest can't be reached
+                removed += statements.size() - i - 1;
+                break;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * @return the statement with its dead parts removed, or null if nothing is left of it
+     */
+    private Statement prune(Statement stmt) {
+        if (stmt instanceof BlockStmt) {
+            ((BlockStmt) stmt).sl = prune(((BlockStmt) stmt).sl);
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            Boolean cond = Trees.booleanValue(ifStmt.cond);
+            if (cond != null) {
+                Statement taken = cond ? ifStmt.thenStmt : ifStmt.elseStmt;
+                return taken == null ? null : prune(taken);
+            }
+            ifStmt.thenStmt = pruneOrEmpty(ifStmt.thenStmt);
+            if (ifStmt.elseStmt != null) {
+                ifStmt.elseStmt = prune(ifStmt.elseStmt);
+            }
+            if (isEmpty(ifStmt.thenStmt) && (ifStmt.elseStmt == null || isEmpty(ifStmt.elseStmt))
+                    && isPure(ifStmt.cond)) {
+                return null;
+            }
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt whileStmt = (WhileStmt) stmt;
+            if (Boolean.FALSE.equals(Trees.booleanValue(whileStmt.cond))) {
+                return null;
+            }
+            whileStmt.body = pruneOrEmpty(whileStmt.body);
+        }
+        return stmt;
+    }
+
+    private static boolean isEmpty(Statement stmt) {
+        return stmt instanceof BlockStmt && ((BlockStmt) stmt).sl.size() == 0;
+    }
+
+    // A branch or loop body must stay a statement, if only an empty block.
+    private Statement pruneOrEmpty(Statement stmt) {
+        Statement pruned = prune(stmt);
+        return pruned != null ? pruned : new BlockStmt(new StatementList(), stmt.posn);
+    }
+
+    /**
+     * @return false if control never continues after the statement, as after a return
+     * or a loop whose condition is always true
+     */
+    private static boolean completes(Statement stmt) {
+        if (stmt instanceof ReturnStmt) {
+            return false;
+        } else if (stmt instanceof BlockStmt) {
+            for (Statement statement : ((BlockStmt) stmt).sl) {
+                if (!completes(statement)) {
+                    return false;
+                }
+            }
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return ifStmt.elseStmt == null || completes(ifStmt.thenStmt) || completes(ifStmt.elseStmt);
+        } else if (stmt instanceof WhileStmt) {
+            return !Boolean.TRUE.equals(Trees.booleanValue(((WhileStmt) stmt).cond));
+        }
+        return true;
+    }
+
+    // DEAD STORES
+
+    private void removeDeadStores(MethodDecl md) {
+        // removing one store can leave the locals it read unread, so repeat until none go
+        while (true) {
+            reads.clear();
+            HashMap<LocalDecl, Boolean> removable = new HashMap<>();
+            for (Statement statement : md.statementList) {
+                statement.visit(this, null);
+                findStores(statement, removable);
+            }
+            HashSet<LocalDecl> dead = new HashSet<>();
+            for (LocalDecl decl : removable.keySet()) {
+                if (removable.get(decl) && !reads.contains(decl)) {
+                    dead.add(decl);
+                }
+            }
+            if (dead.isEmpty()) {
+                return;
+            }
+            md.statementList = removeStores(md.statementList, dead);
+        }
+    }
+
+    /**
+     * Records for each local stored to whether every store to it may be dropped.
+     */
+    private static void findStores(Statement stmt, HashMap<LocalDecl, Boolean> removable) {
+        if (stmt instanceof VarDeclStmt) {
+            VarDeclStmt declStmt = (VarDeclStmt) stmt;
+            removable.merge(declStmt.varDecl, isPure(declStmt.initExp), Boolean::logicalAnd);
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assign = (AssignStmt) stmt;
+            if (assign.ref instanceof IdRef && assign.ref.decl instanceof LocalDecl) {
+                removable.merge((LocalDecl) assign.ref.decl, isPure(assign.val), Boolean::logicalAnd);
+            }
+        } else if (stmt instanceof BlockStmt) {
+            for (Statement statement : ((BlockStmt) stmt).sl) {
+                findStores(statement, removable);
+            }
+        } else if (stmt instanceof IfStmt) {
+            findStores(((IfStmt) stmt).thenStmt, removable);
+            if (((IfStmt) stmt).elseStmt != null) {
+                findStores(((IfStmt) stmt).elseStmt, removable);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            findStores(((WhileStmt) stmt).body, removable);
+        }
+    }
+
+    private StatementList removeStores(StatementList statements, HashSet<LocalDecl> dead) {
+        StatementList live = new StatementList();
+        for (Statement statement : statements) {
+            if (isStoreTo(statement, dead)) {
+                removed++;
+            } else {
+                live.add(removeStores(statement, dead));
+            }
+        }
+        return live;
+    }
+
+    private Statement removeStores(Statement stmt, HashSet<LocalDecl> dead) {
+        if (stmt instanceof BlockStmt) {
+            ((BlockStmt) stmt).sl = removeStores(((BlockStmt) stmt).sl, dead);
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            ifStmt.thenStmt = removeStoresOrEmpty(ifStmt.thenStmt, dead);
+            if (ifStmt.elseStmt != null) {
+                ifStmt.elseStmt = removeStoresOrEmpty(ifStmt.elseStmt, dead);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            ((WhileStmt) stmt).body = removeStoresOrEmpty(((WhileStmt) stmt).body, dead);
+        }
+        return stmt;
+    }
+
+    private Statement removeStoresOrEmpty(Statement stmt, HashSet<LocalDecl> dead) {
+        if (isStoreTo(stmt, dead)) {
+            removed++;
+            return new BlockStmt(new StatementList(), stmt.posn);
+        }
+        return removeStores(stmt, dead);
+    }
+
+    private static boolean isStoreTo(Statement stmt, HashSet<LocalDecl> locals) {
+        if (stmt instanceof VarDeclStmt) {
+            return locals.contains(((VarDeclStmt) stmt).varDecl);
+        }
+        return stmt instanceof AssignStmt && ((AssignStmt) stmt).ref instanceof IdRef
+                && locals.contains(((AssignStmt) stmt).ref.decl);
+    }
+
+    /**
+     * @return true if evaluating the expression can neither fail nor change anything:
+     * arithmetic may overflow or divide by zero, and calls, indexing and field accesses
+     * may fail or have effects
+     */
+    private static boolean isPure(Expression expr) {
+        if (expr instanceof LiteralExpr) {
+            return true;
+        } else if (expr instanceof RefExpr) {
+            Reference ref = ((RefExpr) expr).ref;
+            return ref instanceof ThisRef || (ref instanceof IdRef && ref.decl instanceof LocalDecl);
+        } else if (expr instanceof UnaryExpr) {
+            UnaryExpr unary = (UnaryExpr) expr;
+            return unary.operator.spelling.equals("!") && isPure(unary.expr);
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            switch (binary.operator.spelling) {
+                case "+":
+                case "-":
+                case "*":
+                case "/":
+                    return false;
+                default:
+                    return isPure(binary.left) && isPure(binary.right);
+            }
+        }
+        return false;
+    }
+
+    // REACHABLE METHODS
+
+    private void removeUnreachableMethods(Package ast) {
+        HashSet<MethodDecl> reachable = new HashSet<>();
+        ArrayDeque<MethodDecl> worklist = new ArrayDeque<>();
+        reachable.add(ast.mainDecl);
+        worklist.add(ast.mainDecl);
+        while (!worklist.isEmpty()) {
+            calls.clear();
+            for (Statement statement : worklist.remove().statementList) {
+                statement.visit(this, null);
+            }
+            for (MethodDecl called : calls) {
+                // println compiles to a primitive, not a call
+                if (called != Compiler.PRINTLN_DECL && reachable.add(called)) {
+                    worklist.add(called);
+                }
+            }
+        }
+        for (ClassDecl cd : ast.classDeclList) {
+            Iterator<MethodDecl> methods = cd.methodDeclList.iterator();
+            while (methods.hasNext()) {
+                if (!reachable.contains(methods.next())) {
+                    methods.remove();
+                    removed++;
+                }
+            }
+        }
+    }
+
+    // WALKING
+
+    private void visit(ExprList args) {
+        for (Expression argument : args) {
+            argument.visit(this, null);
+        }
+    }
+
+    @Override
+    public Object visitPackage(Package prog, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitClassDecl(ClassDecl cd, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitFieldDecl(FieldDecl fd, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitMethodDecl(MethodDecl md, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitParameterDecl(ParameterDecl pd, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitVarDecl(VarDecl decl, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitBaseType(BaseType type, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitClassType(ClassType type, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitArrayType(ArrayType type, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitBlockStmt(BlockStmt stmt, Object arg) {
+        for (Statement statement : stmt.sl) {
+            statement.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitVardeclStmt(VarDeclStmt stmt, Object arg) {
+        stmt.initExp.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitAssignStmt(AssignStmt stmt, Object arg) {
+        // storing to a local does not read it, but storing to a field reads the object
+        if (!(stmt.ref instanceof IdRef)) {
+            stmt.ref.visit(this, null);
+        }
+        stmt.val.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitIxAssignStmt(IxAssignStmt stmt, Object arg) {
+        stmt.ref.visit(this, null);
+        stmt.ix.visit(this, null);
+        stmt.exp.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitCallStmt(CallStmt stmt, Object arg) {
+        stmt.methodRef.visit(this, null);
+        visit(stmt.argList);
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStmt(ReturnStmt stmt, Object arg) {
+        if (stmt.returnExpr != null) {
+            stmt.returnExpr.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIfStmt(IfStmt stmt, Object arg) {
+        stmt.cond.visit(this, null);
+        stmt.thenStmt.visit(this, null);
+        if (stmt.elseStmt != null) {
+            stmt.elseStmt.visit(this, null);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitWhileStmt(WhileStmt stmt, Object arg) {
+        stmt.cond.visit(this, null);
+        stmt.body.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr expr, Object arg) {
+        expr.expr.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr expr, Object arg) {
+        expr.left.visit(this, null);
+        expr.right.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitRefExpr(RefExpr expr, Object arg) {
+        expr.ref.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitIxExpr(IxExpr expr, Object arg) {
+        expr.ref.visit(this, null);
+        expr.ixExpr.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitCallExpr(CallExpr expr, Object arg) {
+        expr.functionRef.visit(this, null);
+        visit(expr.argList);
+        return null;
+    }
+
+    @Override
+    public Object visitLiteralExpr(LiteralExpr expr, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitNewObjectExpr(NewObjectExpr expr, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitNewArrayExpr(NewArrayExpr expr, Object arg) {
+        expr.sizeExpr.visit(this, null);
+        return null;
+    }
+
+    @Override
+    public Object visitThisRef(ThisRef ref, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitIdRef(IdRef ref, Object arg) {
+        if (ref.decl instanceof LocalDecl) {
+            reads.add((LocalDecl) ref.decl);
+        } else if (ref.decl instanceof MethodDecl) {
+            calls.add((MethodDecl) ref.decl);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitQRef(QualRef ref, Object arg) {
+        ref.ref.visit(this, null);
+        if (ref.decl instanceof MethodDecl) {
+            calls.add((MethodDecl) ref.decl);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitIdentifier(Identifier id, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitOperator(Operator op, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitIntLiteral(IntLiteral num, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitBooleanLiteral(BooleanLiteral bool, Object arg) {
+        return null;
+    }
+
+    @Override
+    public Object visitNullLiteral(NullLiteral nullLiteral, Object arg) {
+        return null;
+    }
+}
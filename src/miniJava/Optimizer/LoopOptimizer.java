@@ -0,0 +1,631 @@
+package miniJava.Optimizer;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.AbstractSyntaxTrees.Package;
+import miniJava.Compiler;
+import miniJava.ContextualAnalyzer.Identification;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Moves loop-invariant computation out of while loops and strength-reduces products of
+ * induction variables, on a checked AST.
+ * <p>
+ * Loops are handled innermost first. An expression that calls nothing and reads only locals
+ * the loop never assigns, fields it never assigns when it makes no calls, and array
+ * elements when it also stores none, is computed once into a new local declared before the
+ * loop. Arithmetic, field and array accesses may trap in mJAM, so such an expression is only
+ * moved when the loop would evaluate it before anything else that may trap or be seen. One
+ * found in the body is computed after the condition first holds: either the condition is
+ * known to hold on entry, or the loop is wrapped in an if that tests it.
+ * <p>
+ * A product i * K of a literal and a local that the loop changes only by one unconditional
+ * i = i + c is kept in a new local that steps by c * K alongside i. This is done only when
+ * the literal start and bound of i prove that no product overflows, since an overflow
+ * trap the original would have raised must not be lost or moved.
+ */
+public class LoopOptimizer {
+    // what the loop being optimized assigns and calls
+    private HashSet<LocalDecl> assignedLocals = new HashSet<>();
+    private HashMap<LocalDecl, Integer> assignments = new HashMap<>();
+    private HashSet<FieldDecl> assignedFields = new HashSet<>();
+    private boolean calls, arrayStores;
+
+    // invariant expressions of the loop being optimized, in evaluation order
+    private List<Hoist> hoists = new ArrayList<>();
+    // set once the scan passes something that may trap or be seen
+    private boolean stopped;
+    private boolean inBody;
+
+    private int temporaries = 0;
+    private int optimized = 0;
+
+    private static final class Hoist {
+        final Expression expr;
+        final VarDecl temp;
+        // computed once the condition has held, rather than before the loop
+        final boolean afterTest;
+
+        Hoist(Expression expr, VarDecl temp, boolean afterTest) {
+            this.expr = expr;
+            this.temp = temp;
+            this.afterTest = afterTest;
+        }
+    }
+
+    /**
+     * @return the number of expressions hoisted or strength-reduced
+     */
+    public int optimize(Package ast) {
+        for (ClassDecl cd : ast.classDeclList) {
+            for (MethodDecl md : cd.methodDeclList) {
+                md.statementList = optimize(md.statementList);
+            }
+        }
+        return optimized;
+    }
+
+    private StatementList optimize(StatementList list) {
+        StatementList result = new StatementList();
+        List<Statement> preceding = new ArrayList<>();
+        for (Statement stmt : list) {
+            result.add(optimize(stmt, preceding));
+            preceding.add(stmt);
+        }
+        return result;
+    }
+
+    // preceding holds the statements before stmt in its list
+    private Statement optimize(Statement stmt, List<Statement> preceding) {
+        if (stmt instanceof BlockStmt) {
+            ((BlockStmt) stmt).sl = optimize(((BlockStmt) stmt).sl);
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            ifStmt.thenStmt = optimize(ifStmt.thenStmt, new ArrayList<>());
+            if (ifStmt.elseStmt != null) {
+                ifStmt.elseStmt = optimize(ifStmt.elseStmt, new ArrayList<>());
+            }
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt loop = (WhileStmt) stmt;
+            loop.body = optimize(loop.body, new ArrayList<>());
+            return optimizeLoop(loop, preceding);
+        }
+        return stmt;
+    }
+
+    private Statement optimizeLoop(WhileStmt loop, List<Statement> preceding) {
+        assignedLocals.clear();
+        assignments.clear();
+        assignedFields.clear();
+        calls = arrayStores = false;
+        collect(loop);
+
+        hoists = new ArrayList<>();
+        stopped = inBody = false;
+        scan(loop.cond, false);
+        inBody = true;
+        scan(loop.body, false);
+
+        // the condition can only use what is computed before the loop
+        loop.cond = replace(loop.cond, expr -> hoisted(expr, false));
+        replace(loop.body, expr -> hoisted(expr, true));
+
+        StatementList before = new StatementList(), afterTest = new StatementList();
+        for (Hoist hoist : hoists) {
+            (hoist.afterTest ? afterTest : before).add(new VarDeclStmt(hoist.temp, hoist.expr, loop.posn));
+        }
+        reduce(loop, preceding, before);
+        optimized += hoists.size();
+
+        if (before.size() == 0 && afterTest.size() == 0) {
+            return loop;
+        }
+        StatementList block = before;
+        if (afterTest.size() > 0 && !entered(loop, preceding)) {
+            // the body's invariants run only once the condition holds
+            afterTest.add(loop);
+            block.add(new IfStmt(loop.cond, new BlockStmt(afterTest, loop.posn), loop.posn));
+        } else {
+            for (Statement stmt : afterTest) {
+                block.add(stmt);
+            }
+            block.add(loop);
+        }
+        return new BlockStmt(block, loop.posn);
+    }
+
+    private Expression hoisted(Expression expr, boolean afterTest) {
+        for (Hoist hoist : hoists) {
+            if ((afterTest || !hoist.afterTest) && same(hoist.expr, expr)) {
+                return Trees.localExpr(hoist.temp, expr.posn);
+            }
+        }
+        return null;
+    }
+
+    private VarDecl temporary(TypeDenoter type, AST site) {
+        return new VarDecl(type, "loop$" + ++temporaries, site.posn);
+    }
+
+    // EFFECTS
+
+    private void collect(Statement stmt) {
+        if (stmt instanceof BlockStmt) {
+            for (Statement s : ((BlockStmt) stmt).sl) {
+                collect(s);
+            }
+        } else if (stmt instanceof VarDeclStmt) {
+            assignedLocals.add(((VarDeclStmt) stmt).varDecl);
+            collect(((VarDeclStmt) stmt).initExp);
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assign = (AssignStmt) stmt;
+            if (assign.ref.decl instanceof LocalDecl) {
+                assignedLocals.add((LocalDecl) assign.ref.decl);
+                assignments.merge((LocalDecl) assign.ref.decl, 1, Integer::sum);
+            } else if (assign.ref.decl instanceof FieldDecl) {
+                assignedFields.add((FieldDecl) assign.ref.decl);
+            }
+            collect(assign.val);
+        } else if (stmt instanceof IxAssignStmt) {
+            IxAssignStmt assign = (IxAssignStmt) stmt;
+            arrayStores = true;
+            collect(assign.ix);
+            collect(assign.exp);
+        } else if (stmt instanceof CallStmt) {
+            CallStmt call = (CallStmt) stmt;
+            calls |= call.methodRef.decl != Compiler.PRINTLN_DECL;
+            collect(call.argList);
+        } else if (stmt instanceof ReturnStmt) {
+            if (((ReturnStmt) stmt).returnExpr != null) {
+                collect(((ReturnStmt) stmt).returnExpr);
+            }
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            collect(ifStmt.cond);
+            collect(ifStmt.thenStmt);
+            if (ifStmt.elseStmt != null) {
+                collect(ifStmt.elseStmt);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            collect(((WhileStmt) stmt).cond);
+            collect(((WhileStmt) stmt).body);
+        }
+    }
+
+    private void collect(Expression expr) {
+        if (expr instanceof CallExpr) {
+            calls = true;
+            collect(((CallExpr) expr).argList);
+        } else if (expr instanceof BinaryExpr) {
+            collect(((BinaryExpr) expr).left);
+            collect(((BinaryExpr) expr).right);
+        } else if (expr instanceof UnaryExpr) {
+            collect(((UnaryExpr) expr).expr);
+        } else if (expr instanceof IxExpr) {
+            collect(((IxExpr) expr).ixExpr);
+        } else if (expr instanceof NewArrayExpr) {
+            collect(((NewArrayExpr) expr).sizeExpr);
+        }
+    }
+
+    private void collect(ExprList args) {
+        for (Expression argument : args) {
+            collect(argument);
+        }
+    }
+
+    private boolean isInvariant(Expression expr) {
+        if (expr instanceof LiteralExpr) {
+            return true;
+        } else if (expr instanceof RefExpr) {
+            return isInvariant(((RefExpr) expr).ref);
+        } else if (expr instanceof UnaryExpr) {
+            return isInvariant(((UnaryExpr) expr).expr);
+        } else if (expr instanceof BinaryExpr) {
+            return isInvariant(((BinaryExpr) expr).left) && isInvariant(((BinaryExpr) expr).right);
+        } else if (expr instanceof IxExpr) {
+            return !calls && !arrayStores && isInvariant(((IxExpr) expr).ref)
+                    && isInvariant(((IxExpr) expr).ixExpr);
+        }
+        return false;
+    }
+
+    private boolean isInvariant(Reference ref) {
+        if (ref instanceof ThisRef || ref.decl instanceof ClassDecl) {
+            return true;
+        } else if (ref.decl instanceof LocalDecl) {
+            return !assignedLocals.contains(ref.decl);
+        } else if (ref.decl == Identification.LENGTH_DECL) {
+            return isInvariant(((QualRef) ref).ref);
+        } else if (ref.decl instanceof FieldDecl) {
+            return !calls && !assignedFields.contains(ref.decl)
+                    && (ref instanceof IdRef || isInvariant(((QualRef) ref).ref));
+        }
+        return false;
+    }
+
+    // not worth a local of its own
+    private static boolean isTrivial(Expression expr) {
+        if (expr instanceof LiteralExpr) {
+            return true;
+        }
+        return expr instanceof RefExpr && !canTrap(((RefExpr) expr).ref);
+    }
+
+    private static boolean canTrap(Expression expr) {
+        if (expr instanceof LiteralExpr) {
+            return false;
+        } else if (expr instanceof RefExpr) {
+            return canTrap(((RefExpr) expr).ref);
+        } else if (expr instanceof UnaryExpr) {
+            UnaryExpr unary = (UnaryExpr) expr;
+            return unary.operator.spelling.equals("-") || canTrap(unary.expr);
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            return isArithmetic(binary.operator.spelling) || canTrap(binary.left) || canTrap(binary.right);
+        }
+        return true;
+    }
+
+    // a field or length through a reference that may be null
+    private static boolean canTrap(Reference ref) {
+        return ref instanceof QualRef && !(((QualRef) ref).ref.decl instanceof ClassDecl);
+    }
+
+    private static boolean isArithmetic(String op) {
+        return op.equals("+") || op.equals("-") || op.equals("*") || op.equals("/");
+    }
+
+    // SCANNING
+
+    /**
+     * Walks code in the order it is evaluated, choosing the invariants to hoist.
+     * @param conditional whether the code may not run every time the loop body starts
+     */
+    private void scan(Statement stmt, boolean conditional) {
+        if (stmt instanceof BlockStmt) {
+            for (Statement s : ((BlockStmt) stmt).sl) {
+                scan(s, conditional);
+            }
+        } else if (stmt instanceof VarDeclStmt) {
+            scan(((VarDeclStmt) stmt).initExp, conditional);
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assign = (AssignStmt) stmt;
+            scan(assign.val, conditional);
+            stopped |= canTrap(assign.ref);
+        } else if (stmt instanceof IxAssignStmt) {
+            IxAssignStmt assign = (IxAssignStmt) stmt;
+            scan(assign.ix, conditional);
+            scan(assign.exp, conditional);
+            stopped = true;
+        } else if (stmt instanceof CallStmt) {
+            for (Expression argument : ((CallStmt) stmt).argList) {
+                scan(argument, conditional);
+            }
+            stopped = true;
+        } else if (stmt instanceof ReturnStmt) {
+            if (((ReturnStmt) stmt).returnExpr != null) {
+                scan(((ReturnStmt) stmt).returnExpr, conditional);
+            }
+            stopped = true;
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            scan(ifStmt.cond, conditional);
+            scan(ifStmt.thenStmt, true);
+            if (ifStmt.elseStmt != null) {
+                scan(ifStmt.elseStmt, true);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            scan(((WhileStmt) stmt).cond, conditional);
+            scan(((WhileStmt) stmt).body, true);
+            // code after an inner loop may never be reached
+            stopped = true;
+        }
+    }
+
+    private void scan(Expression expr, boolean conditional) {
+        if (isInvariant(expr)) {
+            if (!isTrivial(expr)) {
+                consider(expr, conditional);
+            }
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            String op = binary.operator.spelling;
+            scan(binary.left, conditional);
+            scan(binary.right, conditional || op.equals("&&") || op.equals("||"));
+            stopped |= isArithmetic(op);
+        } else if (expr instanceof UnaryExpr) {
+            scan(((UnaryExpr) expr).expr, conditional);
+            stopped |= ((UnaryExpr) expr).operator.spelling.equals("-");
+        } else if (expr instanceof RefExpr) {
+            stopped |= canTrap(((RefExpr) expr).ref);
+        } else if (expr instanceof IxExpr) {
+            scan(((IxExpr) expr).ixExpr, conditional);
+            stopped = true;
+        } else if (expr instanceof CallExpr) {
+            for (Expression argument : ((CallExpr) expr).argList) {
+                scan(argument, conditional);
+            }
+            stopped = true;
+        } else if (expr instanceof NewArrayExpr) {
+            scan(((NewArrayExpr) expr).sizeExpr, conditional);
+            stopped = true;
+        } else if (expr instanceof NewObjectExpr) {
+            stopped = true;
+        }
+    }
+
+    private void consider(Expression expr, boolean conditional) {
+        for (Hoist hoist : hoists) {
+            if (same(hoist.expr, expr)) {
+                return;
+            }
+        }
+        if (!canTrap(expr)) {
+            hoists.add(new Hoist(expr, temporary(expr.type, expr), false));
+        } else if (!stopped && !conditional) {
+            hoists.add(new Hoist(expr, temporary(expr.type, expr), inBody));
+        } else {
+            // left in place, where it may trap
+            stopped = true;
+        }
+    }
+
+    private static boolean same(Expression a, Expression b) {
+        if (a.getClass() != b.getClass()) {
+            return false;
+        } else if (a instanceof LiteralExpr) {
+            Terminal litA = ((LiteralExpr) a).lit, litB = ((LiteralExpr) b).lit;
+            return litA.getClass() == litB.getClass() && litA.spelling.equals(litB.spelling);
+        } else if (a instanceof RefExpr) {
+            return same(((RefExpr) a).ref, ((RefExpr) b).ref);
+        } else if (a instanceof UnaryExpr) {
+            return ((UnaryExpr) a).operator.spelling.equals(((UnaryExpr) b).operator.spelling)
+                    && same(((UnaryExpr) a).expr, ((UnaryExpr) b).expr);
+        } else if (a instanceof BinaryExpr) {
+            BinaryExpr binA = (BinaryExpr) a, binB = (BinaryExpr) b;
+            return binA.operator.spelling.equals(binB.operator.spelling)
+                    && same(binA.left, binB.left) && same(binA.right, binB.right);
+        } else if (a instanceof IxExpr) {
+            return same(((IxExpr) a).ref, ((IxExpr) b).ref) && same(((IxExpr) a).ixExpr, ((IxExpr) b).ixExpr);
+        }
+        return false;
+    }
+
+    private static boolean same(Reference a, Reference b) {
+        if (a instanceof ThisRef || b instanceof ThisRef) {
+            return a instanceof ThisRef && b instanceof ThisRef;
+        } else if (a instanceof QualRef && b instanceof QualRef) {
+            return a.decl == b.decl && same(((QualRef) a).ref, ((QualRef) b).ref);
+        }
+        return a instanceof IdRef && b instanceof IdRef && a.decl == b.decl;
+    }
+
+    // STRENGTH REDUCTION
+
+    /**
+     * Replaces products of the loop's counter and a literal by locals stepped with it, whose
+     * starting values are added to before.
+     */
+    private void reduce(WhileStmt loop, List<Statement> preceding, StatementList before) {
+        LocalDecl counter = counter(loop);
+        if (counter == null || !(loop.body instanceof BlockStmt)) {
+            return;
+        }
+        Integer start = initialValue(counter, preceding);
+        StatementList body = ((BlockStmt) loop.body).sl;
+        int stepAt = -1;
+        for (int i = 0; i < body.size(); i++) {
+            if (step(body.get(i), counter) != null) {
+                stepAt = i;
+            }
+        }
+        if (start == null || stepAt < 0 || assignments.get(counter) != 1) {
+            return;
+        }
+        BinaryExpr cond = (BinaryExpr) loop.cond;
+        long step = step(body.get(stepAt), counter);
+        long bound = Trees.intValue(cond.right) - (cond.operator.spelling.equals("<") ? 1 : 0);
+        long last = Math.max(start, bound + step);
+
+        LinkedHashMap<Integer, VarDecl> products = new LinkedHashMap<>();
+        Function<Expression, Expression> reduced = expr -> {
+            Integer factor = factor(expr, counter);
+            if (factor == null || !fits(start * (long) factor) || !fits(last * factor) || !fits(step * factor)) {
+                return null;
+            }
+            VarDecl temp = products.get(factor);
+            if (temp == null) {
+                temp = temporary(expr.type, expr);
+                products.put(factor, temp);
+                before.add(new VarDeclStmt(temp, Trees.literal(start * factor, loop.posn), loop.posn));
+            }
+            return Trees.localExpr(temp, expr.posn);
+        };
+        replace(loop.body, reduced);
+        if (products.isEmpty()) {
+            return;
+        }
+
+        StatementList stepped = new StatementList();
+        for (int i = 0; i < body.size(); i++) {
+            stepped.add(body.get(i));
+            if (i == stepAt) {
+                for (Map.Entry<Integer, VarDecl> product : products.entrySet()) {
+                    VarDecl temp = product.getValue();
+                    Expression sum = Trees.binary("+", Trees.localExpr(temp, loop.posn),
+                            Trees.literal((int) step * product.getKey(), loop.posn), temp.type);
+                    stepped.add(new AssignStmt(Trees.localRef(temp, loop.posn), sum, loop.posn));
+                }
+            }
+        }
+        ((BlockStmt) loop.body).sl = stepped;
+        optimized += products.size();
+    }
+
+    private static boolean fits(long value) {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+
+    // the local of a condition i < L or i <= L with L a literal, or null
+    private static LocalDecl counter(WhileStmt loop) {
+        if (!(loop.cond instanceof BinaryExpr)) {
+            return null;
+        }
+        BinaryExpr cond = (BinaryExpr) loop.cond;
+        String op = cond.operator.spelling;
+        if ((op.equals("<") || op.equals("<=")) && Trees.intValue(cond.right) != null
+                && cond.left instanceof RefExpr && ((RefExpr) cond.left).ref instanceof IdRef
+                && ((RefExpr) cond.left).ref.decl instanceof LocalDecl) {
+            return (LocalDecl) ((RefExpr) cond.left).ref.decl;
+        }
+        return null;
+    }
+
+    // the literal a local holds after the given statements, as far as the last one assigning it shows, or null
+    private static Integer initialValue(LocalDecl local, List<Statement> preceding) {
+        for (int i = preceding.size() - 1; i >= 0; i--) {
+            Statement stmt = preceding.get(i);
+            if (stmt instanceof VarDeclStmt && ((VarDeclStmt) stmt).varDecl == local) {
+                return Trees.intValue(((VarDeclStmt) stmt).initExp);
+            } else if (stmt instanceof AssignStmt && ((AssignStmt) stmt).ref.decl == local) {
+                return Trees.intValue(((AssignStmt) stmt).val);
+            } else if (assigns(stmt, local)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean assigns(Statement stmt, LocalDecl local) {
+        if (stmt instanceof BlockStmt) {
+            for (Statement s : ((BlockStmt) stmt).sl) {
+                if (assigns(s, local)) {
+                    return true;
+                }
+            }
+            return false;
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            return assigns(ifStmt.thenStmt, local) || (ifStmt.elseStmt != null && assigns(ifStmt.elseStmt, local));
+        } else if (stmt instanceof WhileStmt) {
+            return assigns(((WhileStmt) stmt).body, local);
+        }
+        return stmt instanceof AssignStmt && ((AssignStmt) stmt).ref.decl == local;
+    }
+
+    // c for a statement i = i + c with c a positive literal, or null
+    private static Integer step(Statement stmt, LocalDecl local) {
+        if (!(stmt instanceof AssignStmt) || ((AssignStmt) stmt).ref.decl != local
+                || !(((AssignStmt) stmt).val instanceof BinaryExpr)) {
+            return null;
+        }
+        BinaryExpr sum = (BinaryExpr) ((AssignStmt) stmt).val;
+        Integer step = Trees.intValue(sum.right);
+        if (sum.operator.spelling.equals("+") && isLocal(sum.left, local) && step != null && step > 0) {
+            return step;
+        }
+        return null;
+    }
+
+    // K for a product i * K or K * i with K a literal, or null
+    private static Integer factor(Expression expr, LocalDecl local) {
+        if (!(expr instanceof BinaryExpr) || !((BinaryExpr) expr).operator.spelling.equals("*")) {
+            return null;
+        }
+        BinaryExpr product = (BinaryExpr) expr;
+        if (isLocal(product.left, local)) {
+            return Trees.intValue(product.right);
+        } else if (isLocal(product.right, local)) {
+            return Trees.intValue(product.left);
+        }
+        return null;
+    }
+
+    private static boolean isLocal(Expression expr, LocalDecl local) {
+        return expr instanceof RefExpr && ((RefExpr) expr).ref instanceof IdRef && ((RefExpr) expr).ref.decl == local;
+    }
+
+    // whether the condition is known to hold when the loop is reached
+    private static boolean entered(WhileStmt loop, List<Statement> preceding) {
+        if (Boolean.TRUE.equals(Trees.booleanValue(loop.cond))) {
+            return true;
+        }
+        LocalDecl counter = counter(loop);
+        Integer start = counter == null ? null : initialValue(counter, preceding);
+        if (start == null) {
+            return false;
+        }
+        BinaryExpr cond = (BinaryExpr) loop.cond;
+        int bound = Trees.intValue(cond.right);
+        return cond.operator.spelling.equals("<") ? start < bound : start <= bound;
+    }
+
+    // REWRITING
+
+    /**
+     * Replaces each outermost subexpression for which the rewrite gives an expression.
+     */
+    private static Expression replace(Expression expr, Function<Expression, Expression> rewrite) {
+        Expression replacement = rewrite.apply(expr);
+        if (replacement != null) {
+            return replacement;
+        }
+        if (expr instanceof BinaryExpr) {
+            ((BinaryExpr) expr).left = replace(((BinaryExpr) expr).left, rewrite);
+            ((BinaryExpr) expr).right = replace(((BinaryExpr) expr).right, rewrite);
+        } else if (expr instanceof UnaryExpr) {
+            ((UnaryExpr) expr).expr = replace(((UnaryExpr) expr).expr, rewrite);
+        } else if (expr instanceof IxExpr) {
+            ((IxExpr) expr).ixExpr = replace(((IxExpr) expr).ixExpr, rewrite);
+        } else if (expr instanceof CallExpr) {
+            replace(((CallExpr) expr).argList, rewrite);
+        } else if (expr instanceof NewArrayExpr) {
+            ((NewArrayExpr) expr).sizeExpr = replace(((NewArrayExpr) expr).sizeExpr, rewrite);
+        }
+        return expr;
+    }
+
+    private static void replace(ExprList args, Function<Expression, Expression> rewrite) {
+        for (int i = 0; i < args.size(); i++) {
+            args.set(i, replace(args.get(i), rewrite));
+        }
+    }
+
+    private static void replace(Statement stmt, Function<Expression, Expression> rewrite) {
+        if (stmt instanceof BlockStmt) {
+            for (Statement s : ((BlockStmt) stmt).sl) {
+                replace(s, rewrite);
+            }
+        } else if (stmt instanceof VarDeclStmt) {
+            ((VarDeclStmt) stmt).initExp = replace(((VarDeclStmt) stmt).initExp, rewrite);
+        } else if (stmt instanceof AssignStmt) {
+            ((AssignStmt) stmt).val = replace(((AssignStmt) stmt).val, rewrite);
+        } else if (stmt instanceof IxAssignStmt) {
+            ((IxAssignStmt) stmt).ix = replace(((IxAssignStmt) stmt).ix, rewrite);
+            ((IxAssignStmt) stmt).exp = replace(((IxAssignStmt) stmt).exp, rewrite);
+        } else if (stmt instanceof CallStmt) {
+            replace(((CallStmt) stmt).argList, rewrite);
+        } else if (stmt instanceof ReturnStmt) {
+            if (((ReturnStmt) stmt).returnExpr != null) {
+                ((ReturnStmt) stmt).returnExpr = replace(((ReturnStmt) stmt).returnExpr, rewrite);
+            }
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            ifStmt.cond = replace(ifStmt.cond, rewrite);
+            replace(ifStmt.thenStmt, rewrite);
+            if (ifStmt.elseStmt != null) {
+                replace(ifStmt.elseStmt, rewrite);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            ((WhileStmt) stmt).cond = replace(((WhileStmt) stmt).cond, rewrite);
+            replace(((WhileStmt) stmt).body, rewrite);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package miniJava.Optimizer;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.AbstractSyntaxTrees.Package;
+import miniJava.ContextualAnalyzer.Identification;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Replaces objects and small arrays that never escape the method allocating them by plain
+ * locals, one per field or element, on a checked AST.
+ * <p>
+ * A candidate is a local declared with a new object, or with a new array of a literal size,
+ * whose value is only ever used to reach its fields or, for an array, its length and
+ * elements at literal indexes in bounds. Any other use, such as passing it to a method,
+ * calling a method on it, returning, comparing or storing it, or indexing it with a computed
+ * index, lets the reference escape and keeps the allocation. An object local may be assigned
+ * another new object of its class, which resets its field locals. The locals start with the
+ * field's or element's default value, so the program behaves as before except that it no
+ * longer allocates on the heap, and cannot fail where the allocation would have found it full.
+ */
+public class ScalarReplacer {
+    // largest array split into locals
+    private static final int MAX_ELEMENTS = 8;
+
+    private HashMap<LocalDecl, Scalar> candidates = new HashMap<>();
+    private int replaced = 0;
+
+    private static final class Scalar {
+        // the instance fields of the object's class, or null for an array
+        final List<FieldDecl> fields;
+        // the locals replacing each field or element, in order
+        final List<VarDecl> parts = new ArrayList<>();
+
+        Scalar(List<FieldDecl> fields) {
+            this.fields = fields;
+        }
+
+        VarDecl part(FieldDecl field) {
+            return parts.get(fields.indexOf(field));
+        }
+    }
+
+    /**
+     * @return the number of allocations replaced by locals
+     */
+    public int replace(Package ast) {
+        for (ClassDecl cd : ast.classDeclList) {
+            for (MethodDecl md : cd.methodDeclList) {
+                candidates.clear();
+                find(md.statementList);
+                check(md.statementList);
+                if (!candidates.isEmpty()) {
+                    replaced += candidates.size();
+                    md.statementList = rewrite(md.statementList);
+                }
+            }
+        }
+        return replaced;
+    }
+
+    // CANDIDATES
+
+    private void find(StatementList list) {
+        for (Statement stmt : list) {
+            find(stmt);
+        }
+    }
+
+    private void find(Statement stmt) {
+        if (stmt instanceof BlockStmt) {
+            find(((BlockStmt) stmt).sl);
+        } else if (stmt instanceof VarDeclStmt) {
+            VarDeclStmt decl = (VarDeclStmt) stmt;
+            Scalar scalar = null;
+            if (decl.initExp instanceof NewObjectExpr) {
+                ClassDecl cd = (ClassDecl) ((NewObjectExpr) decl.initExp).classtype.className.decl;
+                List<FieldDecl> fields = new ArrayList<>();
+                for (FieldDecl fd : cd.fieldDeclList) {
+                    if (!fd.isStatic) {
+                        fields.add(fd);
+                    }
+                }
+                scalar = new Scalar(fields);
+                for (FieldDecl fd : fields) {
+                    scalar.parts.add(new VarDecl(fd.type, decl.varDecl.name + "$" + fd.name, stmt.posn));
+                }
+            } else if (decl.initExp instanceof NewArrayExpr) {
+                NewArrayExpr array = (NewArrayExpr) decl.initExp;
+                Integer size = Trees.intValue(array.sizeExpr);
+                if (size != null && size > 0 && size <= MAX_ELEMENTS) {
+                    scalar = new Scalar(null);
+                    for (int i = 0; i < size; i++) {
+                        scalar.parts.add(new VarDecl(array.eltType, decl.varDecl.name + "$" + i, stmt.posn));
+                    }
+                }
+            }
+            if (scalar != null) {
+                candidates.put(decl.varDecl, scalar);
+            }
+        } else if (stmt instanceof IfStmt) {
+            find(((IfStmt) stmt).thenStmt);
+            if (((IfStmt) stmt).elseStmt != null) {
+                find(((IfStmt) stmt).elseStmt);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            find(((WhileStmt) stmt).body);
+        }
+    }
+
+    // the candidate a reference names, or null
+    private Scalar scalarOf(Reference ref) {
+        return ref instanceof IdRef ? candidates.get(ref.decl) : null;
+    }
+
+    // ESCAPES
+
+    private void check(StatementList list) {
+        for (Statement stmt : list) {
+            check(stmt);
+        }
+    }
+
+    private void check(Statement stmt) {
+        if (stmt instanceof BlockStmt) {
+            check(((BlockStmt) stmt).sl);
+        } else if (stmt instanceof VarDeclStmt) {
+            check(((VarDeclStmt) stmt).initExp);
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assign = (AssignStmt) stmt;
+            Scalar scalar = scalarOf(assign.ref);
+            if (scalar != null) {
+                if (scalar.fields == null || !(assign.val instanceof NewObjectExpr)) {
+                    candidates.remove(assign.ref.decl);
+                }
+            } else {
+                check(assign.ref);
+            }
+            check(assign.val);
+        } else if (stmt instanceof IxAssignStmt) {
+            IxAssignStmt assign = (IxAssignStmt) stmt;
+            checkIndexed(assign.ref, assign.ix);
+            check(assign.ix);
+            check(assign.exp);
+        } else if (stmt instanceof CallStmt) {
+            check(((CallStmt) stmt).methodRef);
+            check(((CallStmt) stmt).argList);
+        } else if (stmt instanceof ReturnStmt) {
+            if (((ReturnStmt) stmt).returnExpr != null) {
+                check(((ReturnStmt) stmt).returnExpr);
+            }
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            check(ifStmt.cond);
+            check(ifStmt.thenStmt);
+            if (ifStmt.elseStmt != null) {
+                check(ifStmt.elseStmt);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            check(((WhileStmt) stmt).cond);
+            check(((WhileStmt) stmt).body);
+        }
+    }
+
+    private void check(Expression expr) {
+        if (expr instanceof RefExpr) {
+            check(((RefExpr) expr).ref);
+        } else if (expr instanceof IxExpr) {
+            checkIndexed(((IxExpr) expr).ref, ((IxExpr) expr).ixExpr);
+            check(((IxExpr) expr).ixExpr);
+        } else if (expr instanceof CallExpr) {
+            check(((CallExpr) expr).functionRef);
+            check(((CallExpr) expr).argList);
+        } else if (expr instanceof UnaryExpr) {
+            check(((UnaryExpr) expr).expr);
+        } else if (expr instanceof BinaryExpr) {
+            check(((BinaryExpr) expr).left);
+            check(((BinaryExpr) expr).right);
+        } else if (expr instanceof NewArrayExpr) {
+            check(((NewArrayExpr) expr).sizeExpr);
+        }
+    }
+
+    private void check(ExprList args) {
+        for (Expression argument : args) {
+            check(argument);
+        }
+    }
+
+    // a reference used as a value, or as the base of a field, method or length
+    private void check(Reference ref) {
+        if (ref instanceof IdRef) {
+            candidates.remove(ref.decl);
+        } else if (ref instanceof QualRef) {
+            QualRef qualRef = (QualRef) ref;
+            Scalar scalar = scalarOf(qualRef.ref);
+            if (scalar == null) {
+                check(qualRef.ref);
+            } else if (scalar.fields != null ? !scalar.fields.contains(qualRef.decl)
+                    : qualRef.decl != Identification.LENGTH_DECL) {
+                candidates.remove(qualRef.ref.decl);
+            }
+        }
+    }
+
+    private void checkIndexed(Reference ref, Expression ix) {
+        Scalar scalar = scalarOf(ref);
+        if (scalar == null) {
+            check(ref);
+        } else if (scalar.fields != null || index(scalar, ix) == null) {
+            candidates.remove(ref.decl);
+        }
+    }
+
+    // the element a literal index selects, or null when it is computed or out of bounds
+    private static Integer index(Scalar scalar, Expression ix) {
+        Integer index = Trees.intValue(ix);
+        return index != null && index >= 0 && index < scalar.parts.size() ? index : null;
+    }
+
+    // REWRITING
+
+    private StatementList rewrite(StatementList list) {
+        StatementList result = new StatementList();
+        for (Statement stmt : list) {
+            Scalar scalar = allocation(stmt);
+            if (scalar == null) {
+                result.add(rewrite(stmt));
+                continue;
+            }
+            // the allocation becomes its parts starting over at their defaults
+            for (VarDecl part : scalar.parts) {
+                Expression value = Trees.defaultValue(part.type, stmt.posn);
+                result.add(stmt instanceof VarDeclStmt ? new VarDeclStmt(part, value, stmt.posn)
+                        : new AssignStmt(Trees.localRef(part, stmt.posn), value, stmt.posn));
+            }
+        }
+        return result;
+    }
+
+    // the candidate a statement allocates, or null
+    private Scalar allocation(Statement stmt) {
+        if (stmt instanceof VarDeclStmt) {
+            return candidates.get(((VarDeclStmt) stmt).varDecl);
+        } else if (stmt instanceof AssignStmt) {
+            return scalarOf(((AssignStmt) stmt).ref);
+        }
+        return null;
+    }
+
+    // a statement standing alone as the branch of an if or the body of a loop
+    private Statement rewriteNested(Statement stmt) {
+        StatementList single = new StatementList();
+        single.add(stmt);
+        StatementList result = rewrite(single);
+        return result.size() == 1 ? result.get(0) : new BlockStmt(result, stmt.posn);
+    }
+
+    private Statement rewrite(Statement stmt) {
+        if (stmt instanceof BlockStmt) {
+            ((BlockStmt) stmt).sl = rewrite(((BlockStmt) stmt).sl);
+        } else if (stmt instanceof VarDeclStmt) {
+            VarDeclStmt decl = (VarDeclStmt) stmt;
+            decl.initExp = rewrite(decl.initExp);
+        } else if (stmt instanceof AssignStmt) {
+            AssignStmt assign = (AssignStmt) stmt;
+            assign.ref = rewrite(assign.ref);
+            assign.val = rewrite(assign.val);
+        } else if (stmt instanceof IxAssignStmt) {
+            IxAssignStmt assign = (IxAssignStmt) stmt;
+            Scalar scalar = scalarOf(assign.ref);
+            if (scalar != null) {
+                VarDecl part = scalar.parts.get(index(scalar, assign.ix));
+                return new AssignStmt(Trees.localRef(part, assign.ref.posn), rewrite(assign.exp), stmt.posn);
+            }
+            assign.ref = rewrite(assign.ref);
+            assign.ix = rewrite(assign.ix);
+            assign.exp = rewrite(assign.exp);
+        } else if (stmt instanceof CallStmt) {
+            CallStmt call = (CallStmt) stmt;
+            call.methodRef = rewrite(call.methodRef);
+            rewrite(call.argList);
+        } else if (stmt instanceof ReturnStmt) {
+            ReturnStmt ret = (ReturnStmt) stmt;
+            if (ret.returnExpr != null) {
+                ret.returnExpr = rewrite(ret.returnExpr);
+            }
+        } else if (stmt instanceof IfStmt) {
+            IfStmt ifStmt = (IfStmt) stmt;
+            ifStmt.cond = rewrite(ifStmt.cond);
+            ifStmt.thenStmt = rewriteNested(ifStmt.thenStmt);
+            if (ifStmt.elseStmt != null) {
+                ifStmt.elseStmt = rewriteNested(ifStmt.elseStmt);
+            }
+        } else if (stmt instanceof WhileStmt) {
+            WhileStmt loop = (WhileStmt) stmt;
+            loop.cond = rewrite(loop.cond);
+            loop.body = rewriteNested(loop.body);
+        }
+        return stmt;
+    }
+
+    private Expression rewrite(Expression expr) {
+        if (expr instanceof RefExpr) {
+            RefExpr refExpr = (RefExpr) expr;
+            if (refExpr.ref instanceof QualRef) {
+                QualRef qualRef = (QualRef) refExpr.ref;
+                Scalar scalar = scalarOf(qualRef.ref);
+                if (scalar != null && scalar.fields == null) {
+                    // the length of an array of literal size
+                    return Trees.literal(scalar.parts.size(), expr.posn);
+                }
+            }
+            refExpr.ref = rewrite(refExpr.ref);
+        } else if (expr instanceof IxExpr) {
+            IxExpr ixExpr = (IxExpr) expr;
+            Scalar scalar = scalarOf(ixExpr.ref);
+            if (scalar != null) {
+                return Trees.localExpr(scalar.parts.get(index(scalar, ixExpr.ixExpr)), expr.posn);
+            }
+            ixExpr.ref = rewrite(ixExpr.ref);
+            ixExpr.ixExpr = rewrite(ixExpr.ixExpr);
+        } else if (expr instanceof CallExpr) {
+            CallExpr call = (CallExpr) expr;
+            call.functionRef = rewrite(call.functionRef);
+            rewrite(call.argList);
+        } else if (expr instanceof UnaryExpr) {
+            ((UnaryExpr) expr).expr = rewrite(((UnaryExpr) expr).expr);
+        } else if (expr instanceof BinaryExpr) {
+            BinaryExpr binary = (BinaryExpr) expr;
+            binary.left = rewrite(binary.left);
+            binary.right = rewrite(binary.right);
+        } else if (expr instanceof NewArrayExpr) {
+            NewArrayExpr array = (NewArrayExpr) expr;
+            array.sizeExpr = rewrite(array.sizeExpr);
+        }
+        return expr;
+    }
+
+    private void rewrite(ExprList args) {
+        for (int i = 0; i < args.size(); i++) {
+            args.set(i, rewrite(args.get(i)));
+        }
+    }
+
+    // a field of a candidate becomes its local
+    private Reference rewrite(Reference ref) {
+        if (ref instanceof QualRef) {
+            QualRef qualRef = (QualRef) ref;
+            Scalar scalar = scalarOf(qualRef.ref);
+            if (scalar != null) {
+                return Trees.localRef(scalar.part((FieldDecl) qualRef.decl), ref.posn);
+            }
+            qualRef.ref = rewrite(qualRef.ref);
+        }
+        return ref;
+    }
+}
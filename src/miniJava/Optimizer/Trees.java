@@ -0,0 +1,97 @@
+package miniJava.Optimizer;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.SyntacticAnalyzer.SourcePosition;
+import miniJava.SyntacticAnalyzer.Token;
+import miniJava.SyntacticAnalyzer.Token.TokenKind;
+
+/**
+ * Reads literal values from, and builds typed nodes for, the ASTs the optimizer rewrites.
+ */
+final class Trees {
+
+    private Trees() {
+    }
+
+    /**
+     * @return the value of an int literal, or null for any other expression
+     */
+    static Integer intValue(Expression expr) {
+        if (expr instanceof LiteralExpr && ((LiteralExpr) expr).lit instanceof IntLiteral) {
+            try {
+                return Integer.parseInt(((LiteralExpr) expr).lit.spelling);
+            } catch (NumberFormatException e) {
+                // out of range, reported when code is generated
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the value of a boolean literal, or null for any other expression
+     */
+    static Boolean booleanValue(Expression expr) {
+        if (expr instanceof LiteralExpr && ((LiteralExpr) expr).lit instanceof BooleanLiteral) {
+            return ((LiteralExpr) expr).lit.spelling.equals("true");
+        }
+        return null;
+    }
+
+    static LiteralExpr literal(int value, SourcePosition posn) {
+        IntLiteral lit = new IntLiteral(new Token(TokenKind.NUM, Integer.toString(value), posn));
+        lit.type = new BaseType(TypeKind.INT, posn);
+        return literal(lit);
+    }
+
+    static LiteralExpr literal(boolean value, SourcePosition posn) {
+        BooleanLiteral lit = new BooleanLiteral(value ? new Token(TokenKind.TRUE, "true", posn)
+                : new Token(TokenKind.FALSE, "false", posn));
+        lit.type = new BaseType(TypeKind.BOOLEAN, posn);
+        return literal(lit);
+    }
+
+    /**
+     * @return the literal a new field or array element of the given type starts as
+     */
+    static LiteralExpr defaultValue(TypeDenoter type, SourcePosition posn) {
+        if (type.typeKind == TypeKind.INT) {
+            return literal(0, posn);
+        } else if (type.typeKind == TypeKind.BOOLEAN) {
+            return literal(false, posn);
+        }
+        NullLiteral lit = new NullLiteral(new Token(TokenKind.NULL, "null", posn));
+        lit.type = new BaseType(TypeKind.NULL, posn);
+        return literal(lit);
+    }
+
+    private static LiteralExpr literal(Terminal lit) {
+        LiteralExpr expr = new LiteralExpr(lit, lit.posn);
+        expr.type = lit.type;
+        return expr;
+    }
+
+    /**
+     * @return a reference to a local, resolved as identification would
+     */
+    static IdRef localRef(LocalDecl decl, SourcePosition posn) {
+        Identifier id = new Identifier(new Token(TokenKind.ID, decl.name, posn));
+        id.decl = decl;
+        IdRef ref = new IdRef(id, posn);
+        ref.decl = decl;
+        return ref;
+    }
+
+    static RefExpr localExpr(LocalDecl decl, SourcePosition posn) {
+        RefExpr expr = new RefExpr(localRef(decl, posn), posn);
+        expr.type = decl.type;
+        return expr;
+    }
+
+    static BinaryExpr binary(String op, Expression left, Expression right, TypeDenoter type) {
+        BinaryExpr expr = new BinaryExpr(new Operator(new Token(TokenKind.BINOP, op, left.posn)),
+                left, right, left.posn);
+        expr.type = type;
+        return expr;
+    }
+}
@@ -0,0 +1,246 @@
+package miniJava;
+
+import miniJava.AbstractSyntaxTrees.Package;
+import miniJava.CodeGenerator.CodeGenerator;
+import miniJava.IR.CfgSimplifier;
+import miniJava.IR.ConstantPropagator;
+import miniJava.IR.DeadValueEliminator;
+import miniJava.IR.Function;
+import miniJava.IR.ValueNumberer;
+import miniJava.IR.Verifier;
+import miniJava.Optimizer.CheckEliminator;
+import miniJava.Optimizer.ConstantFolder;
+import miniJava.Optimizer.DeadCodeEliminator;
+import miniJava.Optimizer.LoopOptimizer;
+import miniJava.Optimizer.ScalarReplacer;
+import miniJava.mJAM.Emitter;
+import miniJava.mJAM.Peephole;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Runs the optimization passes of a compilation as a configurable pipeline, and records
+ * what each one costs.
+ * <p>
+ * A pass rewrites one form of the program: the checked AST, the SSA form of each method
+ * as its code is generated, or the finished object code. A pipeline lists passes by name;
+ * AST passes run first, then the IR passes on each method in turn, then the code passes,
+ * each group in the order listed, and a pass may be listed more than once. Code is
+ * generated through the SSA form only when the pipeline has IR passes.
+ * <p>
+ * Each pass in the pipeline records how often it ran, its wall time, the bytes the
+ * compiling thread allocated meanwhile where the JVM can tell, the changes it reported,
+ * and the instructions of what it rewrote before and after. With verification on, the
+ * SSA form is checked after every IR pass and the object code after code generation and
+ * after every code pass.
+ */
+public final class PassManager {
+
+    /**
+     * The form of the program a pass rewrites.
+     */
+    public enum Stage {
+        AST, IR, CODE
+    }
+
+    private static final LinkedHashMap<String, ToIntFunction<Package>> AST_PASSES = new LinkedHashMap<>();
+    private static final LinkedHashMap<String, ToIntFunction<Function>> IR_PASSES = new LinkedHashMap<>();
+    private static final LinkedHashMap<String, ToIntFunction<Emitter>> CODE_PASSES = new LinkedHashMap<>();
+
+    static {
+        AST_PASSES.put("fold", ast -> new ConstantFolder().fold(ast));
+        AST_PASSES.put("scalar", ast -> new ScalarReplacer().replace(ast));
+        AST_PASSES.put("dce", ast -> new DeadCodeEliminator().eliminate(ast));
+        AST_PASSES.put("loops", ast -> new LoopOptimizer().optimize(ast));
+        AST_PASSES.put("checks", ast -> new CheckEliminator().eliminate(ast));
+        IR_PASSES.put("sccp", function -> new ConstantPropagator().propagate(function));
+        IR_PASSES.put("gvn", function -> new ValueNumberer().number(function));
+        IR_PASSES.put("dve", function -> new DeadValueEliminator().eliminate(function));
+        IR_PASSES.put("cfg", function -> new CfgSimplifier().simplify(function));
+        CODE_PASSES.put("peephole", Peephole::optimize);
+    }
+
+    // the pipelines of -O0, -O1 and -O2; scalar replacement leaves constants in locals
+    // that were fields, so folding runs again after it
+    private static final String[] LEVELS = {
+            "",
+            "fold,scalar,fold,dce,loops,checks,peephole",
+            "fold,scalar,fold,dce,loops,checks,sccp,gvn,dve,cfg,peephole"
+    };
+
+    /** The optimization level a compilation uses unless told otherwise. */
+    public static final int DEFAULT_LEVEL = 2;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * A pass at one place in the pipeline, and what it has cost there so far.
+     */
+    private static final class Pass {
+        final String name;
+        final Stage stage;
+        int runs;
+        long nanos;
+        // bytes allocated, or -1 where they can't be measured
+        long bytes;
+        int changes;
+        long sizeBefore, sizeAfter;
+
+        Pass(String name, Stage stage) {
+            this.name = name;
+            this.stage = stage;
+        }
+    }
+
+    private final List<Pass> pipeline = new ArrayList<>();
+    private int inlineBudget;
+    private boolean verify;
+
+    /**
+     * Creates the pipeline of an optimization level: 0 generates code straight from the
+     * AST and inlines nothing, 1 adds the AST and code passes and inlining, 2 generates
+     * code through the SSA form and adds the IR passes.
+     */
+    public PassManager(int level) {
+        if (level < 0 || level >= LEVELS.length)
+            throw new IllegalArgumentException("no optimization level " + level);
+        setPipeline(LEVELS[level]);
+        inlineBudget = level == 0 ? 0 : CodeGenerator.DEFAULT_INLINE_BUDGET;
+    }
+
+    /**
+     * Replaces the pipeline with the passes named in a comma-separated list.
+     * @throws IllegalArgumentException if a name is not a pass
+     */
+    public void setPipeline(String passes) {
+        pipeline.clear();
+        for (String name : passes.split(",")) {
+            name = name.trim();
+            if (name.isEmpty())
+                continue;
+            if (AST_PASSES.containsKey(name))
+                pipeline.add(new Pass(name, Stage.AST));
+            else if (IR_PASSES.containsKey(name))
+                pipeline.add(new Pass(name, Stage.IR));
+            else if (CODE_PASSES.containsKey(name))
+                pipeline.add(new Pass(name, Stage.CODE));
+            else
+                throw new IllegalArgumentException("unknown pass " + name + "; the passes are "
+                        + String.join(",", AST_PASSES.keySet()) + "," + String.join(",", IR_PASSES.keySet())
+                        + "," + String.join(",", CODE_PASSES.keySet()));
+        }
+    }
+
+    /**
+     * Sets the largest method body, in statements and expressions, inlined at its call
+     * sites; 0 inlines nothing.
+     */
+    public void setInlineBudget(int budget) {
+        inlineBudget = budget;
+    }
+
+    /**
+     * Sets whether the SSA form and object code are checked after each pass.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * Runs the AST passes on the checked AST.
+     */
+    public void optimize(Package ast) {
+        for (Pass pass : pipeline) {
+            if (pass.stage == Stage.AST) {
+                ToIntFunction<Package> body = AST_PASSES.get(pass.name);
+                measure(pass, 0, () -> body.applyAsInt(ast), () -> 0);
+            }
+        }
+    }
+
+    /**
+     * Generates code, running the IR passes on each method, then runs the code passes on
+     * the result.
+     * @return the emitter holding the code
+     */
+    public Emitter generateCode(Package ast) {
+        CodeGenerator codeGenerator = new CodeGenerator(ast);
+        codeGenerator.setInlineBudget(inlineBudget);
+        if (pipeline.stream().anyMatch(pass -> pass.stage == Stage.IR))
+            codeGenerator.setIRPasses(this::runIRPasses);
+        Emitter emitter = codeGenerator.generateCode();
+        if (verify)
+            emitter.verify();
+        for (Pass pass : pipeline) {
+            if (pass.stage == Stage.CODE) {
+                ToIntFunction<Emitter> body = CODE_PASSES.get(pass.name);
+                measure(pass, emitter.nextInstrAddr(), () -> body.applyAsInt(emitter), emitter::nextInstrAddr);
+                if (verify)
+                    emitter.verify();
+            }
+        }
+        return emitter;
+    }
+
+    private void runIRPasses(Function function) {
+        if (verify)
+            Verifier.verify(function);
+        for (Pass pass : pipeline) {
+            if (pass.stage == Stage.IR) {
+                ToIntFunction<Function> body = IR_PASSES.get(pass.name);
+                measure(pass, function.size(), () -> body.applyAsInt(function), function::size);
+                if (verify)
+                    Verifier.verify(function);
+            }
+        }
+    }
+
+    private static void measure(Pass pass, int sizeBefore, IntSupplier body, IntSupplier size) {
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        int changes = body.getAsInt();
+        pass.nanos += System.nanoTime() - start;
+        if (bytes >= 0 && pass.bytes >= 0)
+            pass.bytes += allocatedBytes() - bytes;
+        else
+            pass.bytes = -1;
+        pass.runs++;
+        pass.changes += changes;
+        pass.sizeBefore += sizeBefore;
+        pass.sizeAfter += size.getAsInt();
+    }
+
+    // bytes the current thread has allocated, or -1 if the JVM can't say
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+                return threads.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /**
+     * Prints a line for each pass in the pipeline: its runs, time, allocation, changes
+     * and, for IR and code passes, instructions before and after.
+     */
+    public void printStatistics() {
+        System.out.println(String.format("%-10s %-5s %5s %10s %10s %8s %16s",
+                "pass", "stage", "runs", "time(ms)", "alloc(KB)", "changes", "instructions"));
+        long nanos = 0;
+        for (Pass pass : pipeline) {
+            nanos += pass.nanos;
+            System.out.println(String.format("%-10s %-5s %5d %10.3f %10s %8d %16s",
+                    pass.name, pass.stage.name().toLowerCase(), pass.runs, pass.nanos / 1e6,
+                    pass.bytes < 0 ? "-" : Long.toString(pass.bytes / 1024), pass.changes,
+                    pass.stage == Stage.AST || pass.runs == 0 ? "-" : pass.sizeBefore + " -> " + pass.sizeAfter));
+        }
+        System.out.println(String.format("%-10s %-5s %5s %10.3f", "total", "", "", nanos / 1e6));
+    }
+}
@@ -0,0 +1,382 @@
+package miniJava.mJAM;
+
+/**
+ * The code store decoded into packed primitive arrays, ready for the interpreter's run loop.
+ * <p>
+ * Each instruction becomes one word in {@code code} holding the opcode, register and length
+ * fields, and one word in {@code operand} holding the displacement. The opcodes are the
+ * interpreter's own internal numbering rather than {@link Machine.Op} ordinals, so the run
+ * loop can switch directly on int constants.
+ * <p>
+ * After decoding, a quickening pass rewrites instructions into register- and
+ * primitive-specialized forms, and fuses common instruction sequences into
+ * superinstructions. A superinstruction replaces only the first instruction of its
+ * sequence; the instructions after it are left in place (quickened individually), so
+ * no code address changes, jumps into the middle of a sequence still work, and the
+ * superinstruction can read the operands of the instructions it covers from their own
+ * slots.
+ * <p>
+ * A decoded program is never modified once built. The debugger runs a copy made by
+ * {@link #withTraps}, with breakpoint and watchpoint sites patched to {@code TRAP}.
+ */
+final class DecodedProgram {
+
+    // Internal opcodes. The first sixteen mirror Machine.Op and are only left
+    // in the code when the quickening pass has no specialized form for them;
+    // the run loop hands those to the reference interpreter.  The later
+    // Machine.Op instructions are numbered from JUMPCMP below.
+    static final int
+            LOAD = 0,
+            LOADA = 1,
+            LOADI = 2,
+            LOADL = 3,
+            STORE = 4,
+            STOREI = 5,
+            CALL = 6,
+            CALLI = 7,
+            CALLD = 8,
+            RETURN = 9,
+            PUSH = 10,
+            POP = 11,
+            JUMP = 12,
+            JUMPI = 13,
+            JUMPIF = 14,
+            HALT = 15,
+            // not an mJAM instruction: op field out of range
+            ILLEGAL = 16,
+            // sentinel placed just past the last instruction, reached by running off the end of the code
+            END = 17,
+            // patched over an instruction by the debugger: the run loop returns with CP at the trap
+            TRAP = 18;
+
+    // Register-specialized forms
+    static final int
+            LOAD_LB = 20,
+            LOAD_SB = 21,
+            LOAD_OB = 22,
+            LOADA_OB = 23,
+            STORE_LB = 24,
+            STORE_SB = 25,
+            STORE_OB = 26,
+            JUMP_CB = 27,
+            JUMPIF_CB = 28,   // n field kept: jump if popped value == n
+            CALL_CB = 29,
+            CALLI_CB = 30,
+            CALL_PRIM = 31,   // any primitive without a specialized form below
+            RETURN_0 = 32,
+            RETURN_1 = 33;
+
+    // Compare-and-branch, literal arithmetic and field access
+    static final int
+            JUMPCMP = 34,     // JUMPEQ .. JUMPGE; n: condition, 0 .. 5 for EQ, NE, LT, LE, GT, GE
+            JUMPCMP_CB = 35,  // the same, to a code address
+            ADDL = 36,
+            SUBL = 37,
+            LOADF = 38,       // n kept, though it only records a proof and changes nothing
+            STOREF = 39;
+
+    // CALL p[PB] specialized by primitive
+    static final int
+            PRIM_NOT = 40,
+            PRIM_AND = 41,
+            PRIM_OR = 42,
+            PRIM_NEG = 43,
+            PRIM_ADD = 44,
+            PRIM_SUB = 45,
+            PRIM_MULT = 46,
+            PRIM_DIV = 47,
+            PRIM_MOD = 48,
+            PRIM_LT = 49,
+            PRIM_LE = 50,
+            PRIM_GE = 51,
+            PRIM_GT = 52,
+            PRIM_EQ = 53,
+            PRIM_NE = 54,
+            PRIM_PUTINTNL = 55,
+            PRIM_NEWOBJ = 56,
+            PRIM_NEWARR = 57,
+            PRIM_ARRAYLEN = 58,
+            PRIM_ARRAYREF = 59,
+            PRIM_ARRAYUPD = 60,
+            PRIM_FIELDREF = 61,
+            PRIM_FIELDUPD = 62,
+            PRIM_UARRAYREF = 63,
+            PRIM_UARRAYUPD = 64;
+
+    // Superinstructions. Operands of the covered instructions are read from
+    // operand[CP + 1 ..]; the n field of the fused word carries any flag.
+    static final int
+            // LOAD x[LB]; LOADL c; CALL add/sub; STORE y[LB]   (n: 0 = add, 1 = sub)
+            LB_ARITHL_STORE_LB = 80,
+            // LOAD x[LB]; LOADL c; CALL add/sub                (n: 0 = add, 1 = sub)
+            LB_ARITHL = 81,
+            // LOAD x[LB]; LOAD y[LB]; CALL cmp; JUMPIF(k) t[CB]   (n: value of x cmp y that jumps)
+            LB_LB_LT_JUMPIF = 82,
+            LB_LB_GT_JUMPIF = 83,
+            LB_LB_EQ_JUMPIF = 84,
+            // LOAD x[LB]; LOADL c; CALL cmp; JUMPIF(k) t[CB]      (n: value of x cmp c that jumps)
+            LB_L_LT_JUMPIF = 85,
+            LB_L_GT_JUMPIF = 86,
+            LB_L_EQ_JUMPIF = 87,
+            // LOAD a[LB]; LOAD i[LB]; CALL arrayref
+            LB_LB_ARRAYREF = 88,
+            // LOAD x[LB]; LOAD y[LB]; JUMPcc t[CB]                (n: condition)
+            LB_LB_JUMPCMP = 89,
+            // LOAD x[LB]; LOADL c; JUMPcc t[CB]                   (n: condition)
+            LB_L_JUMPCMP = 90,
+            // LOAD x[LB]; ADDL/SUBL c; STORE y[LB]                (n: 0 = add, 1 = sub)
+            LB_ADDL_STORE_LB = 91,
+            // LOAD a[LB]; LOAD i[LB]; CALL uarrayref
+            LB_LB_UARRAYREF = 92;
+
+    // Packed instruction word: op in bits 0-7, r in bits 8-15, n in bits 16-31.
+    static int pack(int op, int n, int r) {
+        return op | (r << 8) | (n << 16);
+    }
+
+    static int opOf(int word) {
+        return word & 0xFF;
+    }
+
+    static int rOf(int word) {
+        return (word >> 8) & 0xFF;
+    }
+
+    static int nOf(int word) {
+        return word >>> 16;
+    }
+
+    final int[] code;
+    final int[] operand;
+    // number of real instructions; code[length] is the END sentinel
+    final int length;
+
+    private DecodedProgram(int length) {
+        this.length = length;
+        code = new int[length + 1];
+        operand = new int[length + 1];
+    }
+
+    /**
+     * Returns a copy of this program with a TRAP at each of the given code addresses.
+     * A superinstruction covering a trapped address other than its first is reverted to
+     * the LOAD it starts with, so execution cannot run past the trap inside it.
+     */
+    DecodedProgram withTraps(Iterable<Integer> addresses) {
+        DecodedProgram patched = new DecodedProgram(length);
+        System.arraycopy(code, 0, patched.code, 0, code.length);
+        System.arraycopy(operand, 0, patched.operand, 0, operand.length);
+        for (int addr : addresses) {
+            if (!isCodeAddress(addr))
+                continue;
+            for (int first = Math.max(0, addr - 3); first < addr; first++) {
+                if (first + span(opOf(code[first])) > addr)
+                    patched.code[first] = pack(LOAD_LB, 0, REG_LB);
+            }
+        }
+        for (int addr : addresses) {
+            if (isCodeAddress(addr))
+                patched.code[addr] = pack(TRAP, 0, 0);
+        }
+        return patched;
+    }
+
+    // number of instructions covered by an instruction with the given opcode
+    private static int span(int op) {
+        switch (op) {
+            case LB_ARITHL_STORE_LB:
+            case LB_LB_LT_JUMPIF:
+            case LB_LB_GT_JUMPIF:
+            case LB_LB_EQ_JUMPIF:
+            case LB_L_LT_JUMPIF:
+            case LB_L_GT_JUMPIF:
+            case LB_L_EQ_JUMPIF:
+                return 4;
+            case LB_ARITHL:
+            case LB_LB_ARRAYREF:
+            case LB_LB_UARRAYREF:
+            case LB_LB_JUMPCMP:
+            case LB_L_JUMPCMP:
+            case LB_ADDL_STORE_LB:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Decodes and quickens the instructions in code store locations CB .. ct-1, packed as
+     * op | r << 8 | n << 16 with their d in operands.
+     */
+    static DecodedProgram decode(int[] words, int[] operands, int ct) {
+        DecodedProgram program = new DecodedProgram(ct - Machine.CB);
+        for (int addr = Machine.CB; addr < ct; addr++) {
+            int word = words[addr];
+            int op = word & 0xFF, n = word >> 16;
+            if (op >= FIRST_JUMPCMP && op <= FIRST_JUMPCMP + 5) {
+                n = op - FIRST_JUMPCMP;
+                op = JUMPCMP;
+            } else if (op == OP_ADDL || op == OP_SUBL) {
+                op = op == OP_ADDL ? ADDL : SUBL;
+            } else if (op == OP_LOADF || op == OP_STOREF) {
+                op = op == OP_LOADF ? LOADF : STOREF;
+            } else if (op > HALT) {
+                op = ILLEGAL;
+            }
+            program.code[addr] = pack(op, n & 0xFFFF, word >> 8 & 0xFF);
+            program.operand[addr] = operands[addr];
+        }
+        program.code[ct] = pack(END, 0, 0);
+        program.quicken();
+        program.fuse();
+        return program;
+    }
+
+    private static final int
+            FIRST_JUMPCMP = Machine.Op.JUMPEQ.ordinal(),
+            OP_ADDL = Machine.Op.ADDL.ordinal(),
+            OP_SUBL = Machine.Op.SUBL.ordinal(),
+            OP_LOADF = Machine.Op.LOADF.ordinal(),
+            OP_STOREF = Machine.Op.STOREF.ordinal();
+
+    private static final int
+            REG_CB = Machine.Reg.CB.ordinal(),
+            REG_PB = Machine.Reg.PB.ordinal(),
+            REG_SB = Machine.Reg.SB.ordinal(),
+            REG_LB = Machine.Reg.LB.ordinal(),
+            REG_OB = Machine.Reg.OB.ordinal();
+
+    private boolean isCodeAddress(int addr) {
+        return addr >= 0 && addr < length;
+    }
+
+    /**
+     * Rewrites each instruction into its register- or primitive-specialized form, where one exists
+     * and its operands were valid when the program was loaded.
+     */
+    private void quicken() {
+        for (int addr = 0; addr < length; addr++) {
+            int word = code[addr];
+            int r = rOf(word), n = nOf(word), d = operand[addr];
+            int quick = -1;
+            switch (opOf(word)) {
+                case LOAD:
+                    quick = r == REG_LB ? LOAD_LB : r == REG_SB ? LOAD_SB : r == REG_OB ? LOAD_OB : -1;
+                    break;
+                case LOADA:
+                    quick = r == REG_OB ? LOADA_OB : -1;
+                    break;
+                case STORE:
+                    quick = r == REG_LB ? STORE_LB : r == REG_SB ? STORE_SB : r == REG_OB ? STORE_OB : -1;
+                    break;
+                case JUMP:
+                    quick = r == REG_CB && isCodeAddress(d) ? JUMP_CB : -1;
+                    break;
+                case JUMPIF:
+                    quick = r == REG_CB && isCodeAddress(d) ? JUMPIF_CB : -1;
+                    break;
+                case JUMPCMP:
+                    quick = r == REG_CB && isCodeAddress(d) ? JUMPCMP_CB : -1;
+                    break;
+                case CALL:
+                    if (r == REG_CB && isCodeAddress(d))
+                        quick = CALL_CB;
+                    else if (r == REG_PB && d >= 0 && d < Machine.intToPrim.length)
+                        quick = primitive(Machine.intToPrim[d]);
+                    break;
+                case CALLI:
+                    quick = r == REG_CB && isCodeAddress(d) ? CALLI_CB : -1;
+                    break;
+                case LOADL:
+                case PUSH:
+                case POP:
+                    quick = opOf(word);
+                    break;
+                case RETURN:
+                    quick = n == 0 ? RETURN_0 : n == 1 ? RETURN_1 : -1;
+                    break;
+                default:
+                    break;
+            }
+            if (quick != -1)
+                code[addr] = pack(quick, n, r);
+        }
+    }
+
+    private static int primitive(Machine.Prim prim) {
+        switch (prim) {
+            case not: return PRIM_NOT;
+            case and: return PRIM_AND;
+            case or: return PRIM_OR;
+            case neg: return PRIM_NEG;
+            case add: return PRIM_ADD;
+            case sub: return PRIM_SUB;
+            case mult: return PRIM_MULT;
+            case div: return PRIM_DIV;
+            case mod: return PRIM_MOD;
+            case lt: return PRIM_LT;
+            case le: return PRIM_LE;
+            case ge: return PRIM_GE;
+            case gt: return PRIM_GT;
+            case eq: return PRIM_EQ;
+            case ne: return PRIM_NE;
+            case putintnl: return PRIM_PUTINTNL;
+            case newobj: return PRIM_NEWOBJ;
+            case newarr: return PRIM_NEWARR;
+            case arraylen: return PRIM_ARRAYLEN;
+            case arrayref: return PRIM_ARRAYREF;
+            case arrayupd: return PRIM_ARRAYUPD;
+            case fieldref: return PRIM_FIELDREF;
+            case fieldupd: return PRIM_FIELDUPD;
+            case uarrayref: return PRIM_UARRAYREF;
+            case uarrayupd: return PRIM_UARRAYUPD;
+            default: return CALL_PRIM;
+        }
+    }
+
+    private int opAt(int addr) {
+        return addr < length ? opOf(code[addr]) : END;
+    }
+
+    /**
+     * Replaces the first instruction of each recognized sequence with a superinstruction.
+     */
+    private void fuse() {
+        for (int addr = 0; addr < length; addr++) {
+            if (opAt(addr) != LOAD_LB)
+                continue;
+            int second = opAt(addr + 1), third = opAt(addr + 2), fourth = opAt(addr + 3);
+            int fused = -1, flag = 0;
+            if (second == LOADL && (third == PRIM_ADD || third == PRIM_SUB)) {
+                flag = third == PRIM_SUB ? 1 : 0;
+                fused = fourth == STORE_LB ? LB_ARITHL_STORE_LB : LB_ARITHL;
+            } else if ((second == LOAD_LB || second == LOADL) && third == JUMPCMP_CB) {
+                fused = second == LOAD_LB ? LB_LB_JUMPCMP : LB_L_JUMPCMP;
+                flag = nOf(code[addr + 2]);
+            } else if ((second == LOAD_LB || second == LOADL) && fourth == JUMPIF_CB) {
+                int jumpOn = nOf(code[addr + 3]);
+                // x ge y == !(x lt y), x le y == !(x gt y), x ne y == !(x eq y)
+                int kind = -1;
+                switch (third) {
+                    case PRIM_LT: kind = 0; break;
+                    case PRIM_GE: kind = 0; jumpOn ^= 1; break;
+                    case PRIM_GT: kind = 1; break;
+                    case PRIM_LE: kind = 1; jumpOn ^= 1; break;
+                    case PRIM_EQ: kind = 2; break;
+                    case PRIM_NE: kind = 2; jumpOn ^= 1; break;
+                }
+                if (kind != -1 && jumpOn <= 1) {
+                    fused = (second == LOAD_LB ? LB_LB_LT_JUMPIF : LB_L_LT_JUMPIF) + kind;
+                    flag = jumpOn;
+                }
+            } else if (second == LOAD_LB && (third == PRIM_ARRAYREF || third == PRIM_UARRAYREF)) {
+                fused = third == PRIM_ARRAYREF ? LB_LB_ARRAYREF : LB_LB_UARRAYREF;
+            } else if ((second == ADDL || second == SUBL) && third == STORE_LB) {
+                fused = LB_ADDL_STORE_LB;
+                flag = second == SUBL ? 1 : 0;
+            }
+            if (fused != -1)
+                code[addr] = pack(fused, flag, REG_LB);
+        }
+    }
+}
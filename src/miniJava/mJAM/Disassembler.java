@@ -28,6 +28,9 @@ public class Disassembler {
     private FileWriter asmOut;
     private boolean error = false;
     private Map<Integer, String> addrToLabel;
+    // the object file's instructions and method names
+    private ObjectFile.Contents code;
+    private Map<Integer, String> symbols;
 
     public Disassembler(String objectFileName) {
         this.objectFileName = objectFileName;
@@ -175,6 +178,28 @@ public class Disassembler {
                 writeN(instr.n);
                 break;
 
+            case JUMPEQ:
+            case JUMPNE:
+            case JUMPLT:
+            case JUMPLE:
+            case JUMPGT:
+            case JUMPGE:
+                blankN();
+                asmWrite(targetLabel);
+                break;
+
+            case ADDL:
+            case SUBL:
+                blankN();
+                writeD(instr.d);
+                break;
+
+            case LOADF:
+            case STOREF:
+                writeN(instr.n);
+                writeD(instr.d);
+                break;
+
             default:
                 asmWrite("????  ");
                 writeN(instr.n);
@@ -185,7 +210,7 @@ public class Disassembler {
     }
 
     /**
-     * disassembles program held in code store
+     * disassembles program read from the object file
      */
     void disassembleProgram(String asmFileName) {
 
@@ -200,8 +225,8 @@ public class Disassembler {
 
         // collect all addresses that may be the target of a jump instruction
         SortedSet<Integer> targets = new TreeSet<Integer>();
-        for (int addr = Machine.CB; addr < Machine.CT; addr++) {
-            Instruction inst = Machine.code[addr];
+        for (int addr = Machine.CB; addr < code.ct; addr++) {
+            Instruction inst = code.instruction(addr);
             Machine.Op op = Machine.intToOp[inst.op];
             switch (op) {
                 case CALL:
@@ -216,6 +241,12 @@ public class Disassembler {
                     targets.add(inst.d);
                     break;
                 case JUMPIF:
+                case JUMPEQ:
+                case JUMPNE:
+                case JUMPLT:
+                case JUMPLE:
+                case JUMPGT:
+                case JUMPGE:
                     // a jump of any sort creates a branch target
                     targets.add(inst.d);
                     break;
@@ -233,7 +264,7 @@ public class Disassembler {
         }
 
         // disassemble each instruction
-        for (int addr = Machine.CB; addr < Machine.CT; addr++) {
+        for (int addr = Machine.CB; addr < code.ct; addr++) {
 
             // generate instruction address
             asmWrite(String.format("%3d  ", addr));
@@ -245,7 +276,11 @@ public class Disassembler {
                 asmWrite("       ");
 
             // instruction
-            writeInstruction(Machine.code[addr]);
+            writeInstruction(code.instruction(addr));
+
+            // name method entries on the same line, keeping one line per instruction
+            if (symbols.containsKey(addr))
+                asmWrite("    ; " + symbols.get(addr));
 
             // newline
             asmWrite("\n");
@@ -283,8 +318,12 @@ public class Disassembler {
     public boolean disassemble() {
         ObjectFile objectFile = new ObjectFile(objectFileName);
 
-        // read object file into code store
-        if (objectFile.read()) {
+        // read object file
+        try {
+            ObjectFile.Contents contents = objectFile.readContents();
+            code = contents;
+            symbols = contents.symbols;
+        } catch (IOException e) {
             System.out.println("Disassembler: unable to read object file"
                     + objectFileName);
             return true;
@@ -0,0 +1,256 @@
+package miniJava.mJAM;
+
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import miniJava.mJAM.Machine.Op;
+import miniJava.mJAM.Machine.Prim;
+import miniJava.mJAM.Machine.Reg;
+
+/**
+ * Builds mJAM code for one compilation.
+ * <p>
+ * Instructions are packed into two growable int arrays, op, r and n in one word and d in
+ * the other, so code size is limited only by memory. Jumps and calls to code not yet
+ * generated refer to a {@link Label}; the label chains its unresolved references through
+ * their d fields and fills them all in when it is bound.
+ */
+public final class Emitter {
+
+    /**
+     * A code address that may be referred to before it is known.
+     */
+    public static final class Label {
+        // bound address, or -1 until the label is bound
+        private int address = -1;
+        // last instruction referring to the label while it is unbound; the d field of
+        // each such instruction holds the one before, and the first holds -1
+        private int fixups = -1;
+
+        public boolean isBound() {
+            return address >= 0;
+        }
+
+        /**
+         * @return the bound address
+         * @throws IllegalStateException if the label is not bound yet
+         */
+        public int address() {
+            if (address < 0)
+                throw new IllegalStateException("label not bound");
+            return address;
+        }
+    }
+
+    // op | r << 8 | n << 16 and d of the instructions at code addresses CB .. CT-1
+    int[] words = new int[256];
+    int[] operands = new int[256];
+    int CT = Machine.CB;
+    // labels referred to but not yet bound
+    private int unresolved = 0;
+
+    // method entry addresses to method names, and the first address generated for each source line
+    final TreeMap<Integer, String> symbols = new TreeMap<Integer, String>();
+    final TreeMap<Integer, Integer> lines = new TreeMap<Integer, Integer>();
+
+    /**
+     * emit operation with single literal argument d (n,r not used).  These are
+     * operations like LOADL 44, PUSH 3, and CALLD 1
+     */
+    public void emit(Op op, int d) {
+        emit(op.ordinal(), 0, 0, d);
+    }
+
+    /**
+     * emit "call primitive operation" (operation built-in to mJAM).  This
+     * generates  CALL primitiveop[PB]
+     */
+    public void emit(Prim d) {
+        emit(Op.CALL.ordinal(), 0, Reg.PB.ordinal(), d.ordinal());
+    }
+
+    /**
+     * emit operations without arguments.  These are operations like
+     * LOADI and STOREI
+     */
+    public void emit(Op op) {
+        emit(op.ordinal(), 0, 0, 0);
+    }
+
+    /**
+     * emit operation with register r and integer displacement.  These are
+     * operations like JUMP 25[CB] and LOAD 6[LB]
+     */
+    public void emit(Op op, Reg r, int d) {
+        emit(op.ordinal(), 0, r.ordinal(), d);
+    }
+
+    /**
+     * emit operation with n field, and register r and integer displacement.  These are
+     * operations like JUMPIF (1) 25[CB].
+     */
+    public void emit(Op op, int n, Reg r, int d) {
+        emit(op.ordinal(), n, r.ordinal(), d);
+    }
+
+    /**
+     * emit operation with integer n, r, d.  These are operations
+     * like RETURN (1) 3  and HALT (4) 0.
+     */
+    public void emit(Op op, int n, int r, int d) {
+        emit(op.ordinal(), n, r, d);
+    }
+
+    /**
+     * emit jump or call to a label, such as JUMP L[CB]
+     */
+    public void emit(Op op, Reg r, Label target) {
+        emit(op, 0, r, target);
+    }
+
+    /**
+     * emit jump or call to a label with n field, such as JUMPIF (0) L[CB]
+     */
+    public void emit(Op op, int n, Reg r, Label target) {
+        if (target.isBound()) {
+            emit(op.ordinal(), n, r.ordinal(), target.address);
+        } else {
+            if (target.fixups < 0)
+                unresolved++;
+            int addr = CT;
+            emit(op.ordinal(), n, r.ordinal(), target.fixups);
+            target.fixups = addr;
+        }
+    }
+
+    private void emit(int op, int n, int r, int d) {
+        if (n > 255) {
+            System.out.println("length of operand can't exceed 255 words");
+            n = 255; // to allow code generation to continue
+        }
+        if (CT == words.length) {
+            words = Arrays.copyOf(words, 2 * CT);
+            operands = Arrays.copyOf(operands, 2 * CT);
+        }
+        words[CT] = op | r << 8 | n << 16;
+        operands[CT] = d;
+        CT = CT + 1;
+    }
+
+    /**
+     * @return a new unbound label
+     */
+    public Label newLabel() {
+        return new Label();
+    }
+
+    /**
+     * Binds the label to the next instruction to be generated and fills in every earlier
+     * reference to it.
+     */
+    public void bind(Label label) {
+        if (label.isBound())
+            throw new IllegalStateException("label already bound");
+        label.address = CT;
+        if (label.fixups >= 0)
+            unresolved--;
+        for (int addr = label.fixups; addr >= 0; ) {
+            int next = operands[addr];
+            operands[addr] = CT;
+            addr = next;
+        }
+        label.fixups = -1;
+    }
+
+    /**
+     * @return a new label bound to the next instruction to be generated
+     */
+    public Label here() {
+        Label label = new Label();
+        bind(label);
+        return label;
+    }
+
+    /**
+     * @return address (relative to CB) of next instruction to be generated
+     */
+    public int nextInstrAddr() {
+        return CT;
+    }
+
+    /**
+     * Update the displacement component of the (JUMP or CALL) instruction at addr
+     */
+    public void patch(int addr, int displacement) {
+        if (addr < 0 || addr >= CT) {
+            System.out.println("patch:  address of instruction to be patched is out of range");
+            return;
+        }
+        if (displacement < 0 || displacement > CT) {
+            System.out.println("patch:  target address of patch is out of range");
+            return;
+        }
+        operands[addr] = displacement;
+    }
+
+    /**
+     * Names the next instruction to be generated as the entry of a method
+     */
+    public void defineSymbol(String name) {
+        symbols.put(CT, name);
+    }
+
+    /**
+     * Records that code generated from here on comes from the given source line
+     */
+    public void markLine(int line) {
+        Integer previous = lines.isEmpty() ? null : lines.lastEntry().getValue();
+        if (previous == null || previous != line)
+            lines.put(CT, line);
+    }
+
+    /**
+     * Replaces the code with instructions CB .. ct-1 of the given arrays, after an optimizer
+     * has rewritten it
+     */
+    void replaceCode(int[] words, int[] operands, int ct) {
+        this.words = words;
+        this.operands = operands;
+        CT = ct;
+    }
+
+    /**
+     * @return true if every label referred to has been bound
+     */
+    public boolean isResolved() {
+        return unresolved == 0;
+    }
+
+    /**
+     * Checks that the code is well formed: every label bound, every op and register known,
+     * every jump and call inside the code, every primitive called known, and no way for
+     * control to run off its end.
+     * @throws IllegalStateException describing the first problem found
+     */
+    public void verify() {
+        if (!isResolved())
+            throw new IllegalStateException("code refers to unbound labels");
+        for (int addr = Machine.CB; addr < CT; addr++) {
+            int op = words[addr] & 0xFF, r = words[addr] >> 8 & 0xFF, d = operands[addr];
+            if (op >= Machine.intToOp.length || r >= Machine.intToReg.length)
+                throw new IllegalStateException("bad instruction at " + addr);
+            Op operation = Machine.intToOp[op];
+            boolean transfer = operation == Op.JUMP || operation == Op.JUMPIF || operation == Op.CALL
+                    || operation == Op.CALLI || (operation.compareTo(Op.JUMPEQ) >= 0 && operation.compareTo(Op.JUMPGE) <= 0);
+            if (r == Reg.CB.ordinal() && (!transfer || d < Machine.CB || d >= CT))
+                throw new IllegalStateException("bad code address " + d + " at " + addr);
+            if (operation == Op.CALL && r == Reg.PB.ordinal() && (d < 0 || d >= Machine.intToPrim.length))
+                throw new IllegalStateException("bad primitive " + d + " at " + addr);
+        }
+        if (CT > Machine.CB) {
+            Op last = Machine.intToOp[words[CT - 1] & 0xFF];
+            if (last != Op.HALT && last != Op.JUMP && last != Op.RETURN)
+                throw new IllegalStateException("code runs off its end");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package miniJava.mJAM;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A local socket endpoint for an {@link ExecutionService}.
+ * <p>
+ * Listens on the loopback interface only. Each connection carries a sequence of
+ * requests, each a header line followed by any binary payload it announces:
+ * <pre>
+ *   RUN limitMillis codeBytes inputBytes   then the object code and the input
+ *       --> DONE status runMicros outputBytes truncated(0|1)   then the output
+ *   STATS
+ *       --> STATS completed runsPerSecond p50Micros p90Micros p99Micros maxMicros failed
+ *   QUIT
+ * </pre>
+ * A malformed request is answered with {@code ERROR message} and the connection closed,
+ * as is a header line longer than {@link #MAX_HEADER_BYTES} or a payload larger than
+ * {@link #MAX_CODE_BYTES} of code or {@link #MAX_INPUT_BYTES} of input. A run may take at most {@link #MAX_LIMIT_MILLIS}, which is also its limit
+ * when it asks for none, so a client that goes away can't leave a program running.
+ * Requests on one connection run one at a time; clients open several connections
+ * to run programs concurrently.
+ */
+public class ExecutionServer {
+
+    public static final int DEFAULT_PORT = 7520;
+    public static final int MAX_HEADER_BYTES = 256;
+    public static final int MAX_CODE_BYTES = 8 << 20;
+    public static final int MAX_INPUT_BYTES = ExecutionService.MAX_OUTPUT;
+    public static final long MAX_LIMIT_MILLIS = 60000;
+
+    private final ExecutionService service;
+    private final ServerSocket serverSocket;
+
+    public ExecutionServer(ExecutionService service, int port) throws IOException {
+        this.service = service;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server is closed, serving each on its own thread.
+     */
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread handler = new Thread(new Runnable() {
+                public void run() {
+                    handle(socket);
+                }
+            }, "mJAM connection " + socket.getPort());
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void handle(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            try {
+                String line;
+                while ((line = readLine(in)) != null) {
+                    String[] words = line.trim().split("\\s+");
+                    if (words[0].equals("RUN") && words.length == 4) {
+                        long limit = Long.parseLong(words[1]);
+                        if (limit <= 0 || limit > MAX_LIMIT_MILLIS)
+                            limit = MAX_LIMIT_MILLIS;
+                        int codeBytes = Integer.parseInt(words[2]), inputBytes = Integer.parseInt(words[3]);
+                        if (codeBytes < 0 || codeBytes > MAX_CODE_BYTES || inputBytes < 0 || inputBytes > MAX_INPUT_BYTES) {
+                            // refuse before allocating what the client announced
+                            write(out, "ERROR payload of " + codeBytes + " code and " + inputBytes
+                                    + " input bytes; at most " + MAX_CODE_BYTES + " and " + MAX_INPUT_BYTES + "\n");
+                            break;
+                        }
+                        byte[] code = new byte[codeBytes];
+                        byte[] input = new byte[inputBytes];
+                        in.readFully(code);
+                        in.readFully(input);
+                        Program program;
+                        try {
+                            program = Program.fromBytes(code);
+                        } catch (IOException e) {
+                            // the connection is fine; the object code is not
+                            write(out, "ERROR bad object code " + e + "\n");
+                            break;
+                        }
+                        ExecutionService.RunResult result =
+                                service.submit("connection " + socket.getPort(), program, input, limit).get();
+                        byte[] output = result.output.getBytes();
+                        write(out, "DONE " + result.result.status + " " + result.runNanos / 1000 + " "
+                                + output.length + " " + (result.outputTruncated ? 1 : 0) + "\n");
+                        out.write(output);
+                    } else if (words[0].equals("STATS")) {
+                        ExecutionService.Stats stats = service.stats();
+                        write(out, String.format("STATS %d %.1f %d %d %d %d %d%n", stats.completed, stats.runsPerSecond,
+                                stats.p50Micros, stats.p90Micros, stats.p99Micros, stats.maxMicros, stats.failed));
+                    } else if (words[0].equals("QUIT")) {
+                        break;
+                    } else {
+                        write(out, "ERROR unknown request '" + line.trim() + "'\n");
+                        break;
+                    }
+                    out.flush();
+                }
+            } catch (RuntimeException e) {
+                // bad numbers in a header, a header too long, or a run that threw
+                write(out, "ERROR " + e + "\n");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.flush();
+        } catch (IOException e) {
+            // connection lost; nothing to report to
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        // Reads one '\n'-terminated header line, or returns null at end of stream.
+        // A line that runs past MAX_HEADER_BYTES is refused rather than buffered.
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1)
+                return line.size() == 0 ? null : line.toString();
+            if (line.size() == MAX_HEADER_BYTES)
+                throw new IllegalArgumentException("header longer than " + MAX_HEADER_BYTES + " bytes");
+            line.write(c);
+        }
+        return line.toString();
+    }
+
+    private static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes());
+    }
+
+    // RUNNING
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length >= 1 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        ExecutionService service = new ExecutionService();
+        ExecutionServer server = new ExecutionServer(service, port);
+        System.out.println("mJAM execution server listening on localhost:" + server.getPort()
+                + (service.usesVirtualThreads() ? " (virtual threads)" : ""));
+        server.serve();
+    }
+}
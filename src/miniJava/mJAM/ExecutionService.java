@@ -0,0 +1,338 @@
+package miniJava.mJAM;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many mJAM programs at once in this JVM, each on its own {@link VM}.
+ * <p>
+ * Every run gets a fresh machine, its own captured output and input, and a wall-clock
+ * time limit counted from when it starts executing. Runs are executed on virtual threads
+ * when the JVM provides them, and otherwise on a pool with one thread per processor.
+ * The service records the latency of every finished run for {@link #stats()}: those that
+ * halt, fail, run out of time or are cancelled, and those whose machine throws.
+ */
+public class ExecutionService implements AutoCloseable {
+
+    /** Output kept per run; anything past this is dropped and the run marked truncated. */
+    public static final int MAX_OUTPUT = 1 << 20;
+
+    /**
+     * One submitted run. {@link #cancel()} stops it at the machine's next poll.
+     */
+    public static final class Run {
+        public final String name;
+        private final VM vm;
+        private final CompletableFuture<RunResult> result = new CompletableFuture<RunResult>();
+
+        private Run(String name, VM vm) {
+            this.name = name;
+            this.vm = vm;
+        }
+
+        public void cancel() {
+            vm.cancel();
+        }
+
+        public CompletableFuture<RunResult> result() {
+            return result;
+        }
+
+        /**
+         * Waits for the run to finish.
+         */
+        public RunResult get() throws InterruptedException {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * The outcome of one run: machine status, captured output and timings.
+     */
+    public static final class RunResult {
+        public final String name;
+        public final VM.Result result;
+        public final String output;
+        public final boolean outputTruncated;
+        // from submission to completion, and of execution alone
+        public final long latencyNanos, runNanos;
+
+        RunResult(String name, VM.Result result, String output, boolean outputTruncated,
+                  long latencyNanos, long runNanos) {
+            this.name = name;
+            this.result = result;
+            this.output = output;
+            this.outputTruncated = outputTruncated;
+            this.latencyNanos = latencyNanos;
+            this.runNanos = runNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + result + ", " + TimeUnit.NANOSECONDS.toMicros(runNanos) + " us";
+        }
+    }
+
+    /**
+     * Throughput and latency over all runs finished so far, and how many of them did not
+     * halt normally.
+     */
+    public static final class Stats {
+        public final int completed;
+        public final int failed;
+        public final double runsPerSecond;
+        public final long p50Micros, p90Micros, p99Micros, maxMicros;
+
+        Stats(int completed, int failed, double runsPerSecond, long p50Micros, long p90Micros, long p99Micros,
+              long maxMicros) {
+            this.completed = completed;
+            this.failed = failed;
+            this.runsPerSecond = runsPerSecond;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d runs, %d failed, %.1f runs/s, latency p50 %d us, p90 %d us, p99 %d us, max %d us",
+                    completed, failed, runsPerSecond, p50Micros, p90Micros, p99Micros, maxMicros);
+        }
+    }
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    // split data store of each run's machine, or 0 for the shared store
+    private final int stackWords, heapWords;
+    private final long startNanos = System.nanoTime();
+    // latency of each finished run, in completion order, and the number that did not halt
+    private long[] latencies = new long[256];
+    private int completed = 0;
+    private int failed = 0;
+    private long lastCompletionNanos;
+
+    public ExecutionService() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates a service whose machines have a split data store of the given sizes in words,
+     * or the default shared store if both are 0.
+     */
+    public ExecutionService(int stackWords, int heapWords) {
+        if (stackWords < 0 || heapWords < 0 || (long) stackWords + heapWords > VM.MAX_DATA_STORE
+                || (stackWords == 0 && heapWords > 0))
+            throw new IllegalArgumentException("bad data store size " + stackWords + " + " + heapWords);
+        this.stackWords = stackWords;
+        this.heapWords = heapWords;
+        ExecutorService virtual = newVirtualThreadExecutor();
+        virtualThreads = virtual != null;
+        executor = virtualThreads ? virtual
+                : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // Executors.newVirtualThreadPerTaskExecutor exists from Java 21 on
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if runs execute on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Starts a run of the program with no input.
+     * @param timeLimitMillis  wall-clock limit on execution, or 0 for none
+     */
+    public Run submit(String name, Program program, long timeLimitMillis) {
+        return submit(name, program, new byte[0], timeLimitMillis);
+    }
+
+    /**
+     * Starts a run of the program reading the given bytes as its input.
+     * @param timeLimitMillis  wall-clock limit on execution, or 0 for none
+     */
+    public Run submit(String name, Program program, byte[] input, final long timeLimitMillis) {
+        final long submitted = System.nanoTime();
+        final CappedOutput captured = new CappedOutput(MAX_OUTPUT);
+        PrintStream out = new PrintStream(captured, true);
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        final Run run = new Run(name, stackWords == 0 ? new VM(program, out, in)
+                : new VM(program, out, in, stackWords, heapWords));
+        executor.execute(new Runnable() {
+            public void run() {
+                long started = System.nanoTime();
+                if (timeLimitMillis > 0)
+                    run.vm.setDeadline(started + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis));
+                try {
+                    VM.Result result = run.vm.run();
+                    long finished = System.nanoTime();
+                    record(finished - submitted, finished, !result.halted());
+                    run.result.complete(new RunResult(run.name, result, captured.toString(),
+                            captured.truncated, finished - submitted, finished - started));
+                } catch (Throwable t) {
+                    // e.g. an address outside the data store in a malformed program
+                    long finished = System.nanoTime();
+                    record(finished - submitted, finished, true);
+                    run.result.completeExceptionally(t);
+                }
+            }
+        });
+        return run;
+    }
+
+    /**
+     * Starts a run of each program, in order, with the same time limit.
+     */
+    public List<Run> submitAll(List<String> names, List<Program> programs, long timeLimitMillis) {
+        List<Run> runs = new ArrayList<Run>();
+        for (int i = 0; i < programs.size(); i++)
+            runs.add(submit(names.get(i), programs.get(i), timeLimitMillis));
+        return runs;
+    }
+
+    private synchronized void record(long latencyNanos, long now, boolean failed) {
+        if (completed == latencies.length)
+            latencies = Arrays.copyOf(latencies, 2 * completed);
+        latencies[completed++] = latencyNanos;
+        if (failed)
+            this.failed++;
+        lastCompletionNanos = now;
+    }
+
+    public synchronized Stats stats() {
+        if (completed == 0)
+            return new Stats(0, 0, 0, 0, 0, 0, 0);
+        long[] sorted = Arrays.copyOf(latencies, completed);
+        Arrays.sort(sorted);
+        double seconds = (lastCompletionNanos - startNanos) / 1e9;
+        return new Stats(completed, failed, seconds > 0 ? completed / seconds : 0,
+                micros(sorted, 50), micros(sorted, 90), micros(sorted, 99), sorted[completed - 1] / 1000);
+    }
+
+    private static long micros(long[] sorted, int percentile) {
+        // nearest-rank percentile
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1000;
+    }
+
+    /**
+     * Stops accepting runs; runs already submitted still complete.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Output buffer that keeps at most limit bytes.
+     */
+    private static final class CappedOutput extends OutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int limit;
+        boolean truncated = false;
+
+        CappedOutput(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) {
+            if (bytes.size() < limit)
+                bytes.write(b);
+            else
+                truncated = true;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            int room = Math.min(len, limit - bytes.size());
+            bytes.write(b, off, room);
+            if (room < len)
+                truncated = true;
+        }
+
+        @Override
+        public String toString() {
+            return bytes.toString();
+        }
+    }
+
+    // RUNNING
+
+    /**
+     * Runs each object file named on the command line, then prints the results and stats.
+     * Usage: ExecutionService [-limit millis] [-repeat n] [-stack words -heap words] file.mJAM ...
+     */
+    public static void main(String[] args) throws InterruptedException {
+        long limit = 10000;
+        int repeat = 1;
+        int stack = 0, heap = 0;
+        int arg = 0;
+        while (arg < args.length && args[arg].startsWith("-")) {
+            if (args[arg].equals("-limit") && arg + 1 < args.length)
+                limit = Long.parseLong(args[++arg]);
+            else if (args[arg].equals("-repeat") && arg + 1 < args.length)
+                repeat = Integer.parseInt(args[++arg]);
+            else if (args[arg].equals("-stack") && arg + 1 < args.length)
+                stack = Interpreter.parseWords(args[++arg]);
+            else if (args[arg].equals("-heap") && arg + 1 < args.length)
+                heap = Interpreter.parseWords(args[++arg]);
+            else
+                System.out.println("Ignoring unknown option " + args[arg]);
+            arg++;
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<Program> programs = new ArrayList<Program>();
+        for (; arg < args.length; arg++) {
+            try {
+                Program program = Program.load(args[arg]);
+                for (int i = 0; i < repeat; i++) {
+                    names.add(args[arg]);
+                    programs.add(program);
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to load object file " + args[arg]);
+            }
+        }
+
+        if (heap > 0 && stack == 0)
+            stack = VM.DEFAULT_DATA_STORE;
+        ExecutionService service = new ExecutionService(stack, heap);
+        List<Run> runs = service.submitAll(names, programs, limit);
+        for (int i = 0; i < runs.size(); i++) {
+            RunResult result = runs.get(i).get();
+            if (i % repeat == 0) {
+                System.out.print(result.output);
+                System.out.println(result);
+            }
+        }
+        service.close();
+        System.out.println(service.stats());
+    }
+}
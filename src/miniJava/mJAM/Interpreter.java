@@ -13,29 +13,27 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 // import mJAM.Machine.Reg;
 
+/**
+ * Command-line front end and debugger for the mJAM {@link VM}.
+ */
 public class Interpreter {
 
-    // DATA STORE
-    static int[] data = new int[1024];
-
-    // DATA STORE REGISTERS AND OTHER REGISTERS
-    final static int CB = 0, SB = 0, HB = 1024; // = upper bound of data array + 1
-
-
-    static int CT, CP, ST, HT, LB, OB, status, temp;
-
-    // machine status values
-    final static int running = 0, halted = 1, failedDataStoreFull = 2,
-            failedInvalidCodeAddress = 3, failedInvalidInstruction = 4,
-            failedOverflow = 5, failedZeroDivide = 6, failedIOError = 7,
-            failedArrayIndex = 8, failedNullRef = 9, failedHeapRef = 10,
-            failedFieldIndex = 11, failedMethodIndex = 12;
-
-    static long accumulator;
+    // the machine run from the command line, and its run-loop option
+    static VM vm;
+    static boolean cacheStackTop = false;
+    // sizes of a split data store in words, or 0 for the shared store
+    static int stackWords = 0, heapWords = 0;
+    // report collector activity after the run
+    static boolean gcStats = false;
 
     // Debugger state
     enum DebuggerStatus {
@@ -43,683 +41,185 @@ public class Interpreter {
     }
 
     static DebuggerStatus debuggerStatus = DebuggerStatus.PAUSED;
-    static ArrayList<Integer> breakpoints = new ArrayList<Integer>();
+    // breakpoint address -> condition, or null if unconditional
+    static TreeMap<Integer, Condition> breakpoints = new TreeMap<Integer, Condition>();
+    // watched data address -> value when last checked
+    static TreeMap<Integer, Integer> watchpoints = new TreeMap<Integer, Integer>();
     static ArrayList<String> sourceLines;
-
-    static int content(int r) {
-        // Returns the current content of register r,
-        Machine.Reg reg = Machine.intToReg[r];
-        switch (reg) {
-            case CB:
-                return CB;
-            case CT:
-                return CT;
-            case PB:
-                return Machine.PB;
-            case PT:
-                return Machine.PT;
-            case SB:
-                return SB;
-            case ST:
-                return ST;
-            case HB:
-                return HB;
-            case HT:
-                return HT;
-            case LB:
-                return LB;
-            case OB:
-                return OB;
-            case CP:
-                return CP;
-            default:
-                return 0;
+    // the program with breakpoint and watchpoint sites trapped (rebuilt when they change)
+    static DecodedProgram trappedCode;
+
+    /**
+     * A debugger operand: a literal, a register, or the data store word at a
+     * register plus offset or at an absolute address.  Written {@code 12},
+     * {@code ST}, {@code [LB+3]}, {@code [OB]} or {@code [100]}.
+     */
+    static class Operand {
+        private static final Pattern FORM = Pattern.compile("([A-Za-z]+)?\\s*([+-]?\\s*\\d+)?");
+
+        final int reg; // -1 if none
+        final int offset;
+        final boolean indirect;
+
+        private Operand(int reg, int offset, boolean indirect) {
+            this.reg = reg;
+            this.offset = offset;
+            this.indirect = indirect;
         }
-    }
 
-    // PROGRAM STATUS
-
-    static void dump() {
-        // Writes a summary of the machine state.
-        int addr, dynamicLink;
-        System.out.println("");
-        System.out.println("At instruction " + CP
-                + ", state of mJAM data store and registers is:");
-        System.out.println("");
-        if (HT == HB)
-            System.out.println("            |--------|          (heap is empty)");
-        else {
-            System.out.println("      HB--> ");
-            System.out.println("            |--------|");
-            for (addr = HB - 1; addr >= HT; addr--) {
-                System.out.print(rightPad(6, addr + ":"));
-                if (addr == OB)
-                    System.out.print("OB--> ");
-                else if (addr == HT)
-                    System.out.print("HT--> ");
-                else
-                    System.out.print("      ");
-                System.out.println("|" + leftPad(8, String.valueOf(data[addr]))
-                        + "|");
-            }
-            System.out.println("            |--------|");
-        }
-        System.out.println("            |////////|");
-        System.out.println("            |////////|");
-        if (ST == SB)
-            System.out.println("            |--------|          (stack is empty)");
-        else {
-            dynamicLink = LB;
-            System.out.println("      ST--> |////////|");
-            System.out.println("            |--------|");
-            for (addr = ST - 1; addr >= SB; addr--) {
-                System.out.print(rightPad(6, addr + ": "));
-                if (addr == SB)
-                    System.out.print("SB--> ");
-                else if (addr == LB)
-                    System.out.print("LB--> ");
-                else
-                    System.out.print("      ");
-                if ((addr == dynamicLink) && (dynamicLink != SB))
-                    System.out.print("|OB="
-                            + leftPad(5, String.valueOf(data[addr])) + "|");
-                else if ((addr == dynamicLink + 1) && (dynamicLink != SB))
-                    System.out.print("|DL="
-                            + leftPad(5, String.valueOf(data[addr])) + "|");
-                else if ((addr == dynamicLink + 2) && (dynamicLink != SB))
-                    System.out.print("|RA="
-                            + leftPad(5, String.valueOf(data[addr])) + "|");
-                else
-                    System.out.print("|"
-                            + leftPad(8, String.valueOf(data[addr])) + "|");
-                System.out.println("");
-                if (addr == dynamicLink) {
-                    System.out.println("            |--------|");
-                    dynamicLink = data[addr + 1];
+        static Operand parse(String text) {
+            text = text.trim();
+            boolean indirect = text.startsWith("[") && text.endsWith("]");
+            if (indirect)
+                text = text.substring(1, text.length() - 1).trim();
+            Matcher m = FORM.matcher(text);
+            if (text.isEmpty() || !m.matches())
+                throw new IllegalArgumentException("bad operand '" + text + "'");
+            int reg = -1;
+            if (m.group(1) != null) {
+                try {
+                    reg = Machine.Reg.valueOf(m.group(1).toUpperCase()).ordinal();
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("unknown register " + m.group(1));
                 }
             }
+            int offset = m.group(2) == null ? 0 : Integer.parseInt(m.group(2).replace(" ", ""));
+            return new Operand(reg, offset, indirect);
         }
-        System.out.println("");
-    }
 
-    private static String leftPad(int len, String s) {
-        int aLen = Math.max(len, s.length());
-        StringBuffer buf = new StringBuffer(s);
-        String r = buf.insert(0, "        ").toString();
-        return r.substring(r.length() - aLen, r.length());
-    }
-
-    private static String rightPad(int len, String s) {
-        int aLen = Math.max(len, s.length());
-        String r = s + "        ";
-        return r.substring(0, aLen);
-    }
+        int address() {
+            return (reg == -1 ? 0 : vm.content(reg)) + offset;
+        }
 
-    static void showStatus() {
-        // Writes an indication of whether and why the program has terminated.
-        System.out.println("");
-        System.out.print("*** ");
-        switch (status) {
-            case running:
-                System.out.println("Program is running.");
-                break;
-            case halted:
-                System.out.println("Program has halted normally.");
-                break;
-            case failedDataStoreFull:
-                System.out.println("Program has failed due to exhaustion of Data Store.");
-                break;
-            case failedInvalidCodeAddress:
-                System.out.println("Program has failed due to an invalid code address.");
-                break;
-            case failedInvalidInstruction:
-                System.out.println("Program has failed due to an invalid instruction.");
-                break;
-            case failedOverflow:
-                System.out.println("Program has failed due to overflow.");
-                break;
-            case failedZeroDivide:
-                System.out.println("Program has failed due to division by zero.");
-                break;
-            case failedIOError:
-                System.out.println("Program has failed due to an IO error.");
-                break;
-            case failedArrayIndex:
-                System.out.println("Program has failed due to an array index error.");
-                break;
-            case failedNullRef:
-                System.out.println("Program has failed due to a null pointer reference.");
-                break;
-            case failedHeapRef:
-                System.out.println("Program has failed due to an invalid Heap reference.");
-                break;
-            case failedFieldIndex:
-                System.out.println("Program has failed due to a field index error.");
-                break;
-            case failedMethodIndex:
-                System.out.println("Program has failed due to an improper method index in CALLD.");
-                break;
-            default:
-                System.out.println("Machine is in an unknown state.");
-                break;
+        // words outside the data store read as 0
+        int value() {
+            int addr = address();
+            if (!indirect)
+                return addr;
+            return addr >= 0 && addr < vm.data.length ? vm.data[addr] : 0;
         }
-        if (status != halted)
-            dump();
     }
 
-    // INTERPRETATION
+    /**
+     * A breakpoint condition {@code operand relop operand}, e.g. {@code [LB+3] >= 10}.
+     */
+    static class Condition {
+        private static final Pattern FORM = Pattern.compile("(.+?)\\s*(==|!=|<=|>=|<|>)\\s*(.+)");
 
-    static void checkSpace(int spaceNeeded) {
-        // Signals failure if there is not enough space to expand the stack or
-        // heap by spaceNeeded.
-        if (HT - ST < spaceNeeded)
-            status = failedDataStoreFull;
-    }
-
-    static boolean invalidHeapRef(int addr) {
-        // if addr is null ptr or outside of heap bounds, sets status to failure
-        if (addr == Machine.nullRep)
-            status = failedNullRef;
-        else if (addr < HT + 2 || addr > HB)
-            status = failedHeapRef;
-        return (status != running);
-    }
+        final Operand left, right;
+        final String relop, text;
 
-    static boolean isTrue(int datum) {
-        // Tests whether the given datum represents true.
-        return (datum == Machine.trueRep);
-    }
+        private Condition(Operand left, String relop, Operand right, String text) {
+            this.left = left;
+            this.relop = relop;
+            this.right = right;
+            this.text = text;
+        }
 
-    static int overflowChecked(long datum) {
-        // Signals failure if the datum is too large to fit into a single word,
-        // otherwise returns the datum as a single word.
-        if ((Machine.minintRep <= datum) && (datum <= Machine.maxintRep))
-            return (int) datum;
-        else {
-            status = failedOverflow;
-            return 0;
+        static Condition parse(String text) {
+            Matcher m = FORM.matcher(text.trim());
+            if (!m.matches())
+                throw new IllegalArgumentException("bad condition '" + text.trim() + "'");
+            return new Condition(Operand.parse(m.group(1)), m.group(2), Operand.parse(m.group(3)), text.trim());
         }
-    }
 
-    static int toInt(boolean b) {
-        return b ? Machine.trueRep : Machine.falseRep;
+        boolean holds() {
+            int x = left.value(), y = right.value();
+            switch (relop) {
+                case "==": return x == y;
+                case "!=": return x != y;
+                case "<": return x < y;
+                case "<=": return x <= y;
+                case ">": return x > y;
+                default: return x >= y;
+            }
+        }
     }
 
-    static int currentChar;
-
-    static int readInt() throws IOException {
-        int temp = 0;
-        int sign = 1;
-
-        do {
-            currentChar = System.in.read();
-        } while (Character.isWhitespace((char) currentChar));
-
-        if ((currentChar == '-') || (currentChar == '+'))
-            do {
-                sign = (currentChar == '-') ? -1 : 1;
-                currentChar = System.in.read();
-            } while ((currentChar == '-') || currentChar == '+');
-
-        if (Character.isDigit((char) currentChar))
-            do {
-                temp = temp * 10 + (currentChar - '0');
-                currentChar = System.in.read();
-            } while (Character.isDigit((char) currentChar));
-
-        return sign * temp;
+    static void runProgramFromStart() {
+        vm.initMachine();
+        for (Map.Entry<Integer, Integer> watch : watchpoints.entrySet())
+            watch.setValue(vm.data[watch.getKey()]);
+        continueProgram();
     }
 
-    // Invoke primitive operation with argument(s) on the stack
-    // primitives are static and are not supplied an instance on the stack.
-    static void callPrimitive(int id) {
-
-        int addr, size, index;
-        char ch;
-
-        Machine.Prim prim = Machine.intToPrim[id];
-        switch (prim) {
-            case id:
-                break; // nothing to be done
-            case not:
-                data[ST - 1] = toInt(!isTrue(data[ST - 1]));
-                break;
-            case and:
-                ST = ST - 1;
-                data[ST - 1] = toInt(isTrue(data[ST - 1]) & isTrue(data[ST]));
-                break;
-            case or:
-                ST = ST - 1;
-                data[ST - 1] = toInt(isTrue(data[ST - 1]) | isTrue(data[ST]));
-                break;
-            case succ:
-                data[ST - 1] = overflowChecked(data[ST - 1] + 1);
-                break;
-            case pred:
-                data[ST - 1] = overflowChecked(data[ST - 1] - 1);
-                break;
-            case neg:
-                data[ST - 1] = overflowChecked(-data[ST - 1]);
-                break;
-            case add:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                data[ST - 1] = overflowChecked(accumulator + data[ST]);
-                break;
-            case sub:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                data[ST - 1] = overflowChecked(accumulator - data[ST]);
-                break;
-            case mult:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                data[ST - 1] = overflowChecked(accumulator * data[ST]);
-                break;
-            case div:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                if (data[ST] != 0)
-                    data[ST - 1] = (int) (accumulator / data[ST]);
-                else
-                    status = failedZeroDivide;
-                break;
-            case mod:
-                ST = ST - 1;
-                accumulator = data[ST - 1];
-                if (data[ST] != 0)
-                    data[ST - 1] = (int) (accumulator % data[ST]);
-                else
-                    status = failedZeroDivide;
-                break;
-            case lt:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] < data[ST]);
-                break;
-            case le:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] <= data[ST]);
-                break;
-            case ge:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] >= data[ST]);
-                break;
-            case gt:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] > data[ST]);
-                break;
-            case eq:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] == data[ST]);
-                break;
-            case ne:
-                ST = ST - 1;
-                data[ST - 1] = toInt(data[ST - 1] != data[ST]);
-                break;
-            case eol:
-                data[ST] = toInt(currentChar == '\n');
-                ST = ST + 1;
-                break;
-            case eof:
-                data[ST] = toInt(currentChar == -1);
-                ST = ST + 1;
-                break;
-            case get:
-                ST = ST - 1;
-                addr = data[ST];
-                try {
-                    currentChar = System.in.read();
-                } catch (IOException s) {
-                    status = failedIOError;
-                }
-                data[addr] = (int) currentChar;
-                break;
-            case put:
-                ST = ST - 1;
-                ch = (char) data[ST];
-                System.out.print(ch);
-                break;
-            case geteol:
-                try {
-                    while ((currentChar = System.in.read()) != '\n')
-                        ;
-                } catch (IOException s) {
-                    status = failedIOError;
-                }
-                break;
-            case puteol:
-                System.out.println("");
-                break;
-            case getint:
-                ST = ST - 1;
-                addr = data[ST];
-                try {
-                    accumulator = readInt();
-                } catch (IOException s) {
-                    status = failedIOError;
-                }
-                data[addr] = (int) accumulator;
-                break;
-            case putint:
-                ST = ST - 1;
-                accumulator = data[ST];
-                System.out.print(accumulator);
-                break;
-            // output with prefix for tester
-            case putintnl:
-                ST = ST - 1;
-                accumulator = data[ST];
-                System.out.print(">>> " + accumulator + "\n");
-                break;
-            case alloc:
-                size = data[ST - 1];
-                checkSpace(size);
-                HT = HT - size;
-                data[ST - 1] = HT;
-                break;
-            case dispose:
-                ST = ST - 1; // no action taken at present
-                break;
-            case newobj:
-                // ..., class obj addr, number of fields ==> ..., new obj addr
-                size = data[ST - 1] + 2; // number of fields + 2 word descriptor
-                checkSpace(size);
-                HT = HT - size;          // reserve space
-                data[HT] = data[ST - 2]; // set class object addr
-                data[HT + 1] = size - 2; // set size of object
-                data[ST - 2] = HT + 2;   // addr of new object instance, returned on stack
-                ST = ST - 1;             // net effect of pop 2 args, push 1 result
-                for (int i = 2; i < size; i++) {
-                    data[HT + i] = 0;    // zero all fields of new object
-                }
-                break;
-            case newarr:
-                // ..., number of elements ==> ..., new int[] addr
-                size = data[ST - 1] + 2;  // array  + 2 word descriptor
-                checkSpace(size);
-                HT = HT - size;
-                data[HT] = -2;            // tag for array
-                data[HT + 1] = size - 2;  // size of array
-                data[ST - 1] = HT + 2;    // addr of array instance, returned on stack
-                for (int i = 2; i < size; i++) {
-                    data[HT + i] = 0;     // zero all elements of new array
-                }
-                break;
-            case arraylen:
-                // ..., array addr a ==> ... , array.length
-                addr = data[ST - 1];
-                if (invalidHeapRef(addr))
-                    break;                   // invalid heap address
-                if (data[addr - 2] != -2) {
-                    status = failedHeapRef;  // not tagged as array in heap
-                    break;
-                }
-                data[ST - 1] = data[addr - 1]; // return array length field
-                break;
-            case arrayref:
-                // ..., array addr a, element index i ==> ..., a[i]
-                addr = data[ST - 2];
-                if (invalidHeapRef(addr))
-                    break;
-                index = data[ST - 1];
-                if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) {
-                    status = failedArrayIndex;
-                    break;
-                }
-                data[ST - 2] = data[addr + index];  // result element, returned on stack
-                ST = ST - 1;                        // pop two args, return one result
-                break;
-            case arrayupd:
-                // ..., array addr a, element index i, new value v ==> ...
-                // and a[i] := v
-                addr = data[ST - 3];
-                if (invalidHeapRef(addr))
-                    break;
-                index = data[ST - 2];
-                if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) {
-                    status = failedArrayIndex;
-                    break;
-                }
-                data[addr + index] = data[ST - 1]; // update array element
-                ST = ST - 3;                       // pop 3 args, return no result
-                break;
-            case fieldref:
-                // ..., obj addr a, field index i ==> ..., value of ith field of a
-                addr = data[ST - 2];
-                if (invalidHeapRef(addr))
-                    break;
-                index = data[ST - 1];
-                if (index < 0 || index >= data[addr - 1]) {
-                    status = failedFieldIndex;
-                    break;
-                }
-                data[ST - 2] = data[addr + index];   // field to stack top
-                ST = ST - 1;                         // pop two args, return one result
-                break;
-            case fieldupd:
-                // ..., obj addr a, field index i, new value v ==> ...
-                // and a.i := v
-                addr = data[ST - 3];
-                if (invalidHeapRef(addr))
-                    break;
-                index = data[ST - 2];
-                if (index < 0 || index >= data[addr - 1]) {
-                    status = failedFieldIndex;
-                    break;
-                }
-                data[addr + index] = data[ST - 1];    // update field to new value
-                ST = ST - 3;                        // pop 3 args, return no result
-                break;
+    static void continueProgram() {
+        // Runs the trapped copy of the program at full speed; the run loop
+        // returns at each trap.  The trapped instruction is then executed on
+        // its own, which is also how a watched word's change is noticed.
+        debuggerStatus = DebuggerStatus.RUNNING;
+        if (trappedCode == null)
+            trappedCode = vm.program.decoded.withTraps(trapSites());
+        while (vm.status == VM.running) {
+            stepOneOperation();
+            if (vm.status != VM.running || debuggerStatus == DebuggerStatus.PAUSED)
+                return;
+            vm.run(trappedCode);
+            if (vm.status != VM.running || atBreakpoint())
+                return;
         }
     }
 
-    static void interpretOneOperation() {
-        // Fetch instruction ...
-        Instruction currentInstr = Machine.code[CP];
-        // Decode instruction ...
-        int op = currentInstr.op;
-        int r = currentInstr.r;
-        int n = currentInstr.n;
-        int d = currentInstr.d;
-        int addr;
-        // Execute instruction ...
-
-        Machine.Op operation = Machine.intToOp[op];
-
-        switch (operation) {
-            case LOAD:
-                addr = d + content(r);
-                checkSpace(1);
-                data[ST] = data[addr];
-                ST = ST + 1;
-                CP = CP + 1;
-                break;
-            case LOADA:
-                addr = d + content(r);
-                checkSpace(1);
-                data[ST] = addr;
-                ST = ST + 1;
-                CP = CP + 1;
-                break;
-            case LOADI:
-                ST = ST - 1;
-                addr = data[ST];
-                checkSpace(1);
-                data[ST] = data[addr];
-                ST = ST + 1;
-                CP = CP + 1;
-                break;
-            case LOADL:
-                checkSpace(1);
-                data[ST] = d;
-                ST = ST + 1;
-                CP = CP + 1;
-                break;
-            case STORE:
-                addr = d + content(r);
-                ST = ST - 1;
-                data[addr] = data[ST];
-                CP = CP + 1;
-                break;
-            case STOREI:
-                ST = ST - 1;
-                addr = data[ST];
-                ST = ST - 1;
-                data[addr] = data[ST];
-                CP = CP + 1;
-                break;
-
-            case CALL:
-                // call static method, including primitives
-                // arguments are on stack
-                addr = d + content(r);      // effective address
-                if (addr >= Machine.PB) {
-                    callPrimitive(addr - Machine.PB);
-                    CP = CP + 1;
-                } else {
-                    // static method in code segment, no instance addr on stack
-                    checkSpace(3);
-                    data[ST] = OB;         // save caller OB in callee frame
-                    data[ST + 1] = LB;     // save caller LB in callee frame (dynamic link)
-                    data[ST + 2] = CP + 1; // save caller return address in callee frame
-                    OB = Machine.nullRep;  // set callee OB (null since no instance)
-                    LB = ST;               // set LB = start of callee frame
-                    ST = ST + 3;           // set ST = end of callee frame
-                    CP = addr;             // execution resumes at addr specified in CALL inst
-                }
-                break;
-
-            case CALLI:
-                // call instance method
-                // arguments on stack, followed by instance address
-                addr = d + content(r);      // effective address
-                if (addr >= Machine.CT) {
-                    // no instance methods outside of code segment
-                    status = failedInvalidInstruction;
-                    break;
-                }
-                // instance address is last arg on stack and is overwritten by frame
-                checkSpace(2);
-                temp = data[ST - 1];   // save instance address temporarily
-                data[ST - 1] = OB;     // save caller OB in callee frame
-                data[ST] = LB;         // save caller LB in callee frame (dynamic link)
-                data[ST + 1] = CP + 1; // save caller return address in callee frame
-                OB = temp;             // set OB for callee
-                LB = ST - 1;           // set LB = start of callee frame
-                ST = ST + 2;           // set ST = end of callee frame
-                CP = addr;             // execution resumes at addr specified in CALL inst
-                break;
-
-            case RETURN:
-                // d = number of method args (does not include instance addr for CALLI)
-                // n = size of result (0 or 1)
-                if (n < 0 || n > 1) {
-                    status = failedInvalidInstruction;
-                    break;
-                }
-                addr = LB - d;          // addr of caller args
-                OB = data[LB];          // restore caller OB, LB, CP
-                CP = data[LB + 2];
-                LB = data[LB + 1];
-                if (n == 1)
-                    data[addr] = data[ST - 1];  // return value if any
-                ST = addr + n;          // caller stack top
-                break;
-
-            case CALLD:
-                // dynamic method dispatch of method with index d (origin 0)
-                // arguments on stack, followed by instance addr
-            {
-                addr = data[ST - 1];    // instance addr
-                if (invalidHeapRef(addr))
-                    break;
-                int classDescAddr = data[addr - 2];
-                if (classDescAddr >= ST || classDescAddr <= SB || d >= data[classDescAddr + 1] || d < 0) {
-                    status = failedMethodIndex;
-                    break;
-                }
-                ST = ST - 1;
-                checkSpace(3);
-                data[ST] = OB;
-                data[ST + 1] = LB;
-                data[ST + 2] = CP + 1;
-                OB = addr;
-                LB = ST;
-                ST = ST + 3;
-                CP = data[classDescAddr + 2 + n];
+    static TreeSet<Integer> trapSites() {
+        // Breakpoints, plus every instruction that may write a watched word:
+        // stores and the primitives that write the heap.  Words written by
+        // pushing onto the stack are not watched.
+        TreeSet<Integer> sites = new TreeSet<Integer>(breakpoints.keySet());
+        if (watchpoints.isEmpty())
+            return sites;
+        for (int addr = Machine.CB; addr < vm.program.CT; addr++) {
+            int op = vm.program.words[addr] & 0xFF, r = vm.program.words[addr] >> 8 & 0xFF;
+            int d = vm.program.operands[addr];
+            if (op == Machine.Op.STORE.ordinal()) {
+                if (r != Machine.Reg.SB.ordinal() || watchpoints.containsKey(VM.SB + d))
+                    sites.add(addr);
+            } else if (op == Machine.Op.STOREI.ordinal() || op == Machine.Op.STOREF.ordinal()) {
+                sites.add(addr);
+            } else if (op == Machine.Op.CALL.ordinal() && r == Machine.Reg.PB.ordinal()
+                    && (d == Machine.Prim.arrayupd.ordinal() || d == Machine.Prim.fieldupd.ordinal()
+                    || d == Machine.Prim.uarrayupd.ordinal()
+                    || d == Machine.Prim.newobj.ordinal() || d == Machine.Prim.newarr.ordinal())) {
+                sites.add(addr);
             }
-            break;
-            case PUSH: // push d elements on stack
-                checkSpace(d);
-                ST = ST + d;
-                CP = CP + 1;
-                break;
-            case POP: // pop d elements off stack
-                ST = ST - d;
-                CP = CP + 1;
-                break;
-            case JUMP:
-                CP = d + content(r);
-                break;
-            case JUMPI:
-                ST = ST - 1;
-                CP = data[ST];
-                break;
-            case JUMPIF:
-                ST = ST - 1;
-                if (data[ST] == n)
-                    CP = d + content(r);
-                else
-                    CP = CP + 1;
-                break;
-            case HALT:
-                if (n > 0) {
-                    // halt n > 0 --> snapshot machine state and continue execution
-                    dump();
-                    CP = CP + 1;
-                } else
-                    status = halted;
-                break;
-        }
-
-        if ((CP < CB) || (CP >= CT))
-            status = failedInvalidCodeAddress;
-
-        if (breakpoints.indexOf(CP) != -1) {
-            debuggerStatus = DebuggerStatus.PAUSED;
-            System.out.println("Breakpoint hit: " + sourceLines.get(CP));
         }
+        return sites;
     }
 
-    static void initMachine() {
-        // Initialize registers ...
-        ST = SB;
-        HT = HB;
-        LB = SB;
-        CP = CB;
-        OB = -1; // invalid instance addr
-        CT = Machine.CT;
-        status = running;
+    static void stepOneOperation() {
+        // Executes one instruction and reports any watched word it changed.
+        int addr = vm.CP;
+        vm.interpretOneOperation();
+        for (Map.Entry<Integer, Integer> watch : watchpoints.entrySet()) {
+            int value = vm.data[watch.getKey()];
+            if (value != watch.getValue()) {
+                System.out.println("Watchpoint hit: data[" + watch.getKey() + "] "
+                        + watch.getValue() + " -> " + value + " at " + sourceLines.get(addr));
+                watch.setValue(value);
+                debuggerStatus = DebuggerStatus.PAUSED;
+            }
+        }
     }
 
-    static void interpretProgram() {
-        // Runs the program in code store.
-        initMachine();
-        do {
-            interpretOneOperation();
-        } while (status == running);
+    static boolean atBreakpoint() {
+        if (!breakpoints.containsKey(vm.CP))
+            return false;
+        Condition condition = breakpoints.get(vm.CP);
+        if (condition != null && !condition.holds())
+            return false;
+        debuggerStatus = DebuggerStatus.PAUSED;
+        System.out.println("Breakpoint hit: " + sourceLines.get(vm.CP) + location(vm.CP));
+        return true;
     }
 
-    static void runProgramFromStart() {
-        initMachine();
-        continueProgram();
-    }
-
-    static void continueProgram() {
-        debuggerStatus = DebuggerStatus.RUNNING;
-        do {
-            interpretOneOperation();
-        } while (status == running && debuggerStatus == DebuggerStatus.RUNNING);
+    /**
+     * Describes the method and source line of a code address, when the object file records them
+     */
+    static String location(int addr) {
+        String method = vm.program.methodAt(addr);
+        int line = vm.program.lineAt(addr);
+        if (method == null)
+            return "";
+        return "  (" + method + (line > 0 ? ", line " + line : "") + ")";
     }
 
     static void printHelp() {
@@ -729,18 +229,23 @@ public class Interpreter {
                 "l or list [offset] [size]:",
                 "     print the instructions around CP + offset, with size lines on either side",
                 "     offset = 0 and size = 2 by default",
-                "b or break [address]:",
-                "     set a breakpoint at address",
-                "     address = CP by default",
+                "b or break [address] [if condition]:",
+                "     set a breakpoint at address, optionally stopping only when condition holds",
+                "     address = CP by default; a condition compares two operands, e.g. [LB+3] >= 10",
+                "     an operand is a number, a register, or a data word such as [LB+3], [OB] or [100]",
                 "del:",
                 "     delete one or more breakpoints",
+                "w or watch operand:",
+                "     stop when a store changes the data word at operand, e.g. [LB+3] or 100",
+                "unwatch:",
+                "     delete one or more watchpoints",
                 "n or next:",
                 "     execute one instruction",
                 "c or continue:",
                 "     continue running the program from current position, until next breakpoint or completion",
                 "r or run:",
                 "     run the program from start, until next breakpoint or completion",
-                "i or info:", "     list the current breakpoints",
+                "i or info:", "     list the current breakpoints and watchpoints",
                 "q, quit or <EOF>:", "     quit the debugger",
                 "Simply press enter to repeat the last command", "? or help:",
                 "     print this help"};
@@ -751,7 +256,8 @@ public class Interpreter {
     }
 
     static void debugProgram() {
-        initMachine();
+        vm.initMachine();
+        trappedCode = null;
 
         BufferedReader inputReader = new BufferedReader(new InputStreamReader(
                 System.in));
@@ -779,7 +285,7 @@ public class Interpreter {
                 printHelp();
             } else if (command.equalsIgnoreCase("p")
                     || command.equalsIgnoreCase("print")) {
-                dump();
+                vm.dump();
             } else if (command.equalsIgnoreCase("l")
                     || command.equalsIgnoreCase("list")) {
                 int offset = 0, size = 2;
@@ -788,32 +294,77 @@ public class Interpreter {
                 if (scanner.hasNextInt())
                     size = scanner.nextInt();
 
-                for (int i = CP + offset - size; i <= CP + offset + size; ++i) {
+                for (int i = vm.CP + offset - size; i <= vm.CP + offset + size; ++i) {
                     if (i >= 0 && i < sourceLines.size())
-                        System.out.println((i == CP ? " >" : "  ")
+                        System.out.println((i == vm.CP ? " >" : "  ")
                                 + sourceLines.get(i));
                 }
             } else if (command.equalsIgnoreCase("b")
                     || command.equalsIgnoreCase("break")) {
-                int addr = scanner.hasNextInt() ? scanner.nextInt() : CP;
-                if (!breakpoints.contains(addr))
-                    breakpoints.add(addr);
+                int addr = scanner.hasNextInt() ? scanner.nextInt() : vm.CP;
+                Condition condition = null;
+                if (addr < Machine.CB || addr >= vm.program.CT) {
+                    System.out.println("No instruction at " + addr);
+                    scanner.close();
+                    continue;
+                }
+                if (scanner.hasNext("if")) {
+                    scanner.next();
+                    try {
+                        condition = Condition.parse(scanner.hasNextLine() ? scanner.nextLine() : "");
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Breakpoint not set: " + e.getMessage());
+                        scanner.close();
+                        continue;
+                    }
+                }
+                breakpoints.put(addr, condition);
+                trappedCode = null;
                 System.out.println("Added breakpoint at "
-                        + sourceLines.get(addr));
+                        + sourceLines.get(addr)
+                        + (condition != null ? " if " + condition.text : ""));
             } else if (command.equalsIgnoreCase("del")) {
                 while (scanner.hasNextInt()) {
-                    int addr = scanner.nextInt(), idx = breakpoints
-                            .indexOf(addr);
-                    if (idx != -1) {
-                        breakpoints.remove(idx);
+                    int addr = scanner.nextInt();
+                    if (breakpoints.containsKey(addr)) {
+                        breakpoints.remove(addr);
+                        trappedCode = null;
                     } else {
                         System.out.println("No breakpoint at " + addr);
                     }
                 }
+            } else if (command.equalsIgnoreCase("w")
+                    || command.equalsIgnoreCase("watch")) {
+                int addr;
+                try {
+                    addr = Operand.parse(scanner.hasNextLine() ? scanner.nextLine() : "").address();
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Watchpoint not set: " + e.getMessage());
+                    scanner.close();
+                    continue;
+                }
+                if (addr < 0 || addr >= vm.data.length) {
+                    System.out.println("No data word at " + addr);
+                } else {
+                    watchpoints.put(addr, vm.data[addr]);
+                    trappedCode = null;
+                    System.out.println("Watching data[" + addr + "] = " + vm.data[addr]);
+                }
+            } else if (command.equalsIgnoreCase("unwatch")) {
+                while (scanner.hasNextInt()) {
+                    int addr = scanner.nextInt();
+                    if (watchpoints.containsKey(addr)) {
+                        watchpoints.remove(addr);
+                        trappedCode = null;
+                    } else {
+                        System.out.println("No watchpoint at " + addr);
+                    }
+                }
             } else if (command.equalsIgnoreCase("n")
                     || command.equalsIgnoreCase("next")) {
-                if (status == running) {
-                    interpretOneOperation();
+                if (vm.status == VM.running) {
+                    stepOneOperation();
+                    atBreakpoint();
                 } else {
                     System.out.println("Program is not running");
                 }
@@ -826,8 +377,13 @@ public class Interpreter {
             } else if (command.equalsIgnoreCase("i")
                     || command.equalsIgnoreCase("info")) {
                 System.out.println("Breakpoints:");
-                for (int b : breakpoints) {
-                    System.out.println("\t" + sourceLines.get(b));
+                for (Map.Entry<Integer, Condition> b : breakpoints.entrySet()) {
+                    System.out.println("\t" + sourceLines.get(b.getKey())
+                            + (b.getValue() != null ? " if " + b.getValue().text : ""));
+                }
+                System.out.println("Watchpoints:");
+                for (Map.Entry<Integer, Integer> w : watchpoints.entrySet()) {
+                    System.out.println("\tdata[" + w.getKey() + "] = " + w.getValue());
                 }
             } else if (command.equalsIgnoreCase("q")
                     || command.equalsIgnoreCase("quit")) {
@@ -846,15 +402,31 @@ public class Interpreter {
     public static void main(String[] args) {
         System.out.println("********** mJAM Interpreter (Version 2.3) **********");
 
+        // options precede the file names
+        int arg = 0;
+        while (arg < args.length && args[arg].startsWith("-")) {
+            if (args[arg].equals("-tos"))
+                cacheStackTop = true;
+            else if (args[arg].equals("-gcstats"))
+                gcStats = true;
+            else if (args[arg].equals("-stack") && arg + 1 < args.length)
+                stackWords = parseWords(args[++arg]);
+            else if (args[arg].equals("-heap") && arg + 1 < args.length)
+                heapWords = parseWords(args[++arg]);
+            else
+                System.out.println("Ignoring unknown option " + args[arg]);
+            arg++;
+        }
+
         String objectFileName;
-        if (args.length >= 1)
-            objectFileName = args[0];
+        if (args.length - arg >= 1)
+            objectFileName = args[arg];
         else
             objectFileName = "obj.mJAM";
 
         String sourceFileName;
-        if (args.length >= 2) {
-            sourceFileName = args[1];
+        if (args.length - arg >= 2) {
+            sourceFileName = args[arg + 1];
             debug(objectFileName, sourceFileName);
         } else {
             interpret(objectFileName);
@@ -862,27 +434,68 @@ public class Interpreter {
     }
 
     public static void interpret(String objectFileName) {
-
-        ObjectFile objectFile = new ObjectFile(objectFileName);
-        if (objectFile.read()) {
-            System.out.println("Unable to load object file " + objectFileName);
+        if (!load(objectFileName))
             return;
-        }
-        interpretProgram();
-        showStatus();
+        VM.Result result = vm.run();
+        vm.showStatus();
+        if (gcStats)
+            System.out.println("GC: " + vm.gcStats());
         // mJAM exit code reflects normal termination or mJAM failure
-        if (status == halted)
+        if (result.halted())
             System.exit(0);
         else
             System.exit(4);
     }
 
-    public static void debug(String objectFileName, String sourceFileName) {
-        ObjectFile objectFile = new ObjectFile(objectFileName);
-        if (objectFile.read()) {
+    static int parseWords(String size) {
+        // A number of words, optionally with suffix K (x 1024) or M (x 1024 * 1024).
+        long scale = 1;
+        String digits = size.toUpperCase();
+        if (digits.endsWith("K") || digits.endsWith("M")) {
+            scale = digits.endsWith("K") ? 1024 : 1024 * 1024;
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        long words;
+        try {
+            words = Long.parseLong(digits) * scale;
+        } catch (NumberFormatException e) {
+            words = -1;
+        }
+        if (words <= 0 || words > VM.MAX_DATA_STORE) {
+            System.out.println("Ignoring bad size " + size);
+            return 0;
+        }
+        return (int) words;
+    }
+
+    static boolean load(String objectFileName) {
+        // Loads the object file into a new command-line machine.
+        Program program;
+        try {
+            program = Program.load(objectFileName);
+        } catch (IOException e) {
             System.out.println("Unable to load object file " + objectFileName);
-            return;
+            return false;
+        }
+        if (stackWords == 0 && heapWords == 0) {
+            vm = new VM(program);
+        } else {
+            try {
+                vm = new VM(program, System.out, System.in,
+                        stackWords > 0 ? stackWords : VM.DEFAULT_DATA_STORE,
+                        heapWords > 0 ? heapWords : VM.DEFAULT_DATA_STORE);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unable to create data store: " + e.getMessage());
+                return false;
+            }
         }
+        vm.setCacheStackTop(cacheStackTop);
+        return true;
+    }
+
+    public static void debug(String objectFileName, String sourceFileName) {
+        if (!load(objectFileName))
+            return;
 
         sourceLines = new ArrayList<String>();
         try {
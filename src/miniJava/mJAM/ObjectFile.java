@@ -6,13 +6,48 @@
  */
 package miniJava.mJAM;
 
-import java.io.FileInputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.FileOutputStream;
-import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
 
+/*
+ * Object file format, versions 1 to 4 (all values big-endian):
+ *
+ *   header    int magic 'mJAM', short version, short 0, int instruction count, int section count
+ *   code      per instruction, int op | r << 8 | n << 16, then int d
+ *   sections  per section, int kind, int length in bytes, then the contents
+ *
+ *   SYMBOLS   int count, per symbol int address, short name length, UTF-8 name
+ *   LINES     int count, per entry int address, int source line
+ *
+ * Version 2 has the same layout as version 1 but may use the compare-and-branch and
+ * literal arithmetic instructions, JUMPEQ .. SUBL, version 3 the unchecked access
+ * primitives uarrayref and uarrayupd, and version 4 the field access instructions
+ * LOADF and STOREF, so older interpreters refuse them.  Version 3 also had unchecked
+ * field primitives, ufieldref and ufieldupd, numbered just after uarrayupd; they always
+ * did what fieldref and fieldupd do, and are read as those.  A file is written with
+ * the lowest version its code needs, so plain programs still load in older readers.
+ * Sections are optional and readers skip kinds they don't know.  The legacy format,
+ * four ints op, n, r, d per instruction and nothing else, is still read: its first
+ * word is an op code and never the magic number.
+ */
 public class ObjectFile {
 
+    static final int MAGIC = 0x6D4A414D; // "mJAM"
+    // the highest version read
+    static final int VERSION = 4;
+    static final int HEADER_SIZE = 16;
+
+    static final int SYMBOLS = 1, LINES = 2;
+
     String objectFileName;
 
     public ObjectFile(String objectFileName) {
@@ -21,23 +56,51 @@ public class ObjectFile {
     }
 
     /**
-     * Write mJAM code in code store into a binary object file
-     * @param output  object file
+     * Contents of an object file: instructions at CB .. ct-1, packed as the emitter packs
+     * them, and any debugging information
+     */
+    static final class Contents {
+        // op | r << 8 | n << 16 and d of each instruction
+        final int[] words;
+        final int[] operands;
+        final int ct;
+        final TreeMap<Integer, String> symbols;
+        final TreeMap<Integer, Integer> lines;
+
+        Contents(int[] words, int[] operands, int ct, TreeMap<Integer, String> symbols,
+                 TreeMap<Integer, Integer> lines) {
+            this.words = words;
+            this.operands = operands;
+            this.ct = ct;
+            this.symbols = symbols;
+            this.lines = lines;
+        }
+
+        /**
+         * @return the instruction at a code address, unpacked
+         */
+        Instruction instruction(int addr) {
+            int word = words[addr];
+            return new Instruction(word & 0xFF, word >> 16, word >> 8 & 0xFF, operands[addr]);
+        }
+    }
+
+    /**
+     * Write the code generated by an emitter into a binary object file
      * @return true if write fails
      */
-    public boolean write() {
+    public boolean write(Emitter emitter) {
         boolean failed = false;
         try {
+            ByteBuffer image = encode(emitter);
             FileOutputStream objectFile = new FileOutputStream(objectFileName);
-            DataOutputStream is = new DataOutputStream(objectFile);
-            for (int i = Machine.CB; i < Machine.CT; i++) {
-                Instruction inst = Machine.code[i];
-                is.writeInt(inst.op);
-                is.writeInt(inst.n);
-                is.writeInt(inst.r);
-                is.writeInt(inst.d);
+            try {
+                FileChannel channel = objectFile.getChannel();
+                while (image.hasRemaining())
+                    channel.write(image);
+            } finally {
+                objectFile.close();
             }
-            objectFile.close();
         } catch (Exception e) {
             failed = true;
         }
@@ -45,28 +108,182 @@ public class ObjectFile {
     }
 
     /**
-     * Read binary object file into code store, setting CT
-     * @return true if object code read fails
+     * Encode the emitter's code and debugging information in the current format
      */
-    public boolean read() {
-        boolean failed = false;
-        try {
-            FileInputStream objectFile = new FileInputStream(objectFileName);
-            DataInputStream is = new DataInputStream(objectFile);
-
-            Machine.CT = Machine.CB;
-            while (is.available() > 0 && Machine.CT < Machine.PB) {
-                Instruction inst = new Instruction();
-                inst.op = is.readInt();
-                inst.n = is.readInt();
-                inst.r = is.readInt();
-                inst.d = is.readInt();
-                Machine.code[Machine.CT++] = inst;
+    static ByteBuffer encode(Emitter emitter) throws IOException {
+        int ct = emitter.CT;
+        Map<Integer, String> symbols = emitter.symbols;
+        Map<Integer, Integer> lines = emitter.lines;
+        byte[][] names = new byte[symbols.size()][];
+        int symbolsSize = 4;
+        int i = 0;
+        for (String name : symbols.values()) {
+            names[i] = name.getBytes(StandardCharsets.UTF_8);
+            if (names[i].length > Short.MAX_VALUE)
+                throw new IOException("symbol name too long");
+            symbolsSize += 6 + names[i++].length;
+        }
+        int linesSize = 4 + 8 * lines.size();
+        int sections = (symbols.isEmpty() ? 0 : 1) + (lines.isEmpty() ? 0 : 1);
+        int size = HEADER_SIZE + 8 * (ct - Machine.CB)
+                + (symbols.isEmpty() ? 0 : 8 + symbolsSize) + (lines.isEmpty() ? 0 : 8 + linesSize);
+
+        ByteBuffer image = ByteBuffer.allocate(size);
+        image.putInt(MAGIC).putShort((short) versionOf(emitter.words, emitter.operands, ct)).putShort((short) 0)
+                .putInt(ct - Machine.CB).putInt(sections);
+        // the emitter packs instructions the same way
+        for (int addr = Machine.CB; addr < ct; addr++)
+            image.putInt(emitter.words[addr]).putInt(emitter.operands[addr]);
+        if (!symbols.isEmpty()) {
+            image.putInt(SYMBOLS).putInt(symbolsSize).putInt(symbols.size());
+            i = 0;
+            for (int addr : symbols.keySet()) {
+                image.putInt(addr).putShort((short) names[i].length).put(names[i++]);
             }
+        }
+        if (!lines.isEmpty()) {
+            image.putInt(LINES).putInt(linesSize).putInt(lines.size());
+            for (Map.Entry<Integer, Integer> line : lines.entrySet())
+                image.putInt(line.getKey()).putInt(line.getValue());
+        }
+        image.flip();
+        return image;
+    }
+
+    /**
+     * @return the lowest version that can hold the instructions at CB .. ct-1
+     */
+    static int versionOf(int[] words, int[] operands, int ct) {
+        int version = 1;
+        for (int addr = Machine.CB; addr < ct; addr++) {
+            int op = words[addr] & 0xFF;
+            if (op == Machine.Op.LOADF.ordinal() || op == Machine.Op.STOREF.ordinal())
+                return 4;
+            if (op >= Machine.Op.JUMPEQ.ordinal() && op <= Machine.Op.SUBL.ordinal())
+                version = Math.max(version, 2);
+            else if (op == Machine.Op.CALL.ordinal() && (words[addr] >> 8 & 0xFF) == Machine.Reg.PB.ordinal()
+                    && (operands[addr] == Machine.Prim.uarrayref.ordinal()
+                    || operands[addr] == Machine.Prim.uarrayupd.ordinal()))
+                version = 3;
+        }
+        return version;
+    }
+
+    /**
+     * Read binary object file, mapping it rather than reading it through a stream
+     */
+    Contents readContents() throws IOException {
+        RandomAccessFile objectFile = new RandomAccessFile(objectFileName, "r");
+        try {
+            FileChannel channel = objectFile.getChannel();
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
             objectFile.close();
-        } catch (Exception e) {
-            failed = true;
         }
-        return failed;
+    }
+
+    /**
+     * Decode object code in either format
+     * @throws EOFException if the code is truncated
+     */
+    static Contents decode(ByteBuffer image) throws IOException {
+        TreeMap<Integer, String> symbols = new TreeMap<Integer, String>();
+        TreeMap<Integer, Integer> lines = new TreeMap<Integer, Integer>();
+        if (image.remaining() < 4 || image.getInt(image.position()) != MAGIC)
+            return decodeLegacy(image, symbols, lines);
+
+        if (image.remaining() < HEADER_SIZE)
+            throw new EOFException();
+        image.getInt();
+        int version = image.getShort();
+        image.getShort();
+        if (version < 1 || version > VERSION)
+            throw new IOException("unsupported object file version " + version);
+        int count = image.getInt();
+        int sections = image.getInt();
+        if (count < 0)
+            throw new IOException("bad instruction count " + count);
+        if (image.remaining() < 8L * count)
+            throw new EOFException();
+
+        // the code is already packed as the emitter packs it; split it straight into the
+        // arrays the interpreter decodes from
+        int[] words = new int[count];
+        int[] operands = new int[count];
+        IntBuffer ints = image.asIntBuffer();
+        for (int i = 0; i < count; i++) {
+            words[i] = ints.get(2 * i);
+            operands[i] = ints.get(2 * i + 1);
+        }
+        image.position(image.position() + 8 * count);
+        if (version == 3)
+            readFieldPrimitives(words, operands);
+
+        try {
+            decodeSections(image, sections, symbols, lines);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("malformed section");
+        }
+        return new Contents(words, operands, count, symbols, lines);
+    }
+
+    // the removed ufieldref and ufieldupd of version 3 become fieldref and fieldupd
+    private static void readFieldPrimitives(int[] words, int[] operands) {
+        int call = Machine.Op.CALL.ordinal() | Machine.Reg.PB.ordinal() << 8;
+        int ufieldref = Machine.Prim.uarrayupd.ordinal() + 1;
+        for (int i = 0; i < words.length; i++) {
+            if ((words[i] & 0xFFFF) == call && (operands[i] == ufieldref || operands[i] == ufieldref + 1))
+                operands[i] = operands[i] == ufieldref ? Machine.Prim.fieldref.ordinal() : Machine.Prim.fieldupd.ordinal();
+        }
+    }
+
+    private static void decodeSections(ByteBuffer image, int sections, TreeMap<Integer, String> symbols,
+                                       TreeMap<Integer, Integer> lines) throws IOException {
+        for (int s = 0; s < sections; s++) {
+            if (image.remaining() < 8)
+                throw new EOFException();
+            int kind = image.getInt();
+            int length = image.getInt();
+            if (length < 0 || length > image.remaining())
+                throw new EOFException();
+            ByteBuffer section = image.slice();
+            section.limit(length);
+            image.position(image.position() + length);
+            if (kind == SYMBOLS) {
+                for (int n = section.getInt(); n > 0; n--) {
+                    int addr = section.getInt();
+                    byte[] name = new byte[section.getShort()];
+                    section.get(name);
+                    symbols.put(addr, new String(name, StandardCharsets.UTF_8));
+                }
+            } else if (kind == LINES) {
+                for (int n = section.getInt(); n > 0; n--) {
+                    int addr = section.getInt();
+                    lines.put(addr, section.getInt());
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode object code in the legacy format, four ints op, n, r, d per instruction
+     */
+    private static Contents decodeLegacy(ByteBuffer image, TreeMap<Integer, String> symbols,
+                                         TreeMap<Integer, Integer> lines) throws IOException {
+        if (image.remaining() % 16 != 0)
+            throw new EOFException();
+        int count = image.remaining() / 16;
+        int[] words = new int[count];
+        int[] operands = new int[count];
+        IntBuffer ints = image.asIntBuffer();
+        for (int i = 0; i < count; i++) {
+            int op = ints.get(4 * i), n = ints.get(4 * i + 1), r = ints.get(4 * i + 2);
+            // fields too wide to pack make an instruction no machine runs
+            if (op < 0 || op > 0xFF || r < 0 || r > 0xFF || n != (short) n)
+                op = 0xFF;
+            words[i] = op | (r & 0xFF) << 8 | n << 16;
+            operands[i] = ints.get(4 * i + 3);
+        }
+        return new Contents(words, operands, count, symbols, lines);
     }
 }
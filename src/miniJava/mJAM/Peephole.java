@@ -0,0 +1,347 @@
+package miniJava.mJAM;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import miniJava.mJAM.Machine.Op;
+import miniJava.mJAM.Machine.Prim;
+import miniJava.mJAM.Machine.Reg;
+
+/**
+ * Peephole optimizer over the code in an {@link Emitter}.
+ * <p>
+ * Rewrites short windows of instructions into cheaper equivalents, threads jumps to
+ * jumps, and drops unreachable code, then compacts the code and renumbers every jump,
+ * call, symbol and line entry. A window is only rewritten when no branch lands inside
+ * it after its first instruction, so every path into the window sees the same effect.
+ * <p>
+ * The rewrites assume code as the code generator produces it: conditions are 0 or 1,
+ * and CB-relative addresses appear only in jumps and calls.
+ */
+public final class Peephole {
+
+    private static final int
+            LOAD = Op.LOAD.ordinal(),
+            LOADA = Op.LOADA.ordinal(),
+            LOADL = Op.LOADL.ordinal(),
+            STORE = Op.STORE.ordinal(),
+            CALL = Op.CALL.ordinal(),
+            CALLI = Op.CALLI.ordinal(),
+            RETURN = Op.RETURN.ordinal(),
+            POP = Op.POP.ordinal(),
+            JUMP = Op.JUMP.ordinal(),
+            JUMPI = Op.JUMPI.ordinal(),
+            JUMPIF = Op.JUMPIF.ordinal(),
+            HALT = Op.HALT.ordinal(),
+            JUMPEQ = Op.JUMPEQ.ordinal(),
+            JUMPGE = Op.JUMPGE.ordinal(),
+            ADDL = Op.ADDL.ordinal(),
+            SUBL = Op.SUBL.ordinal();
+
+    private static final int
+            REG_CB = Reg.CB.ordinal(),
+            REG_PB = Reg.PB.ordinal(),
+            REG_SB = Reg.SB.ordinal(),
+            REG_LB = Reg.LB.ordinal(),
+            REG_OB = Reg.OB.ordinal();
+
+    private int[] words, operands;
+    private int length;
+    private final Emitter emitter;
+    // instructions some jump or call may reach other than by falling through
+    private boolean[] target;
+    private boolean[] removed;
+
+    private Peephole(Emitter emitter) {
+        this.emitter = emitter;
+        words = emitter.words;
+        operands = emitter.operands;
+        length = emitter.CT;
+    }
+
+    /**
+     * Optimizes the emitter's code in place. Labels bound earlier no longer hold valid
+     * addresses afterwards, so this runs once code generation is finished.
+     * @return the number of instructions removed
+     */
+    public static int optimize(Emitter emitter) {
+        if (!emitter.isResolved())
+            throw new IllegalStateException("code refers to unbound labels");
+        Peephole peephole = new Peephole(emitter);
+        if (!peephole.isSafe())
+            return 0;
+        int before = peephole.length;
+        boolean changed;
+        do {
+            peephole.findTargets();
+            changed = peephole.threadJumps();
+            changed |= peephole.rewrite();
+            if (changed)
+                peephole.compact();
+        } while (changed);
+        peephole.emitter.replaceCode(peephole.words, peephole.operands, peephole.length);
+        return before - peephole.length;
+    }
+
+    private static int opOf(int word) {
+        return word & 0xFF;
+    }
+
+    private static int rOf(int word) {
+        return word >> 8 & 0xFF;
+    }
+
+    private static int nOf(int word) {
+        return word >> 16;
+    }
+
+    private static int pack(int op, int n, int r) {
+        return op | r << 8 | n << 16;
+    }
+
+    private boolean isCodeReference(int addr) {
+        int op = opOf(words[addr]);
+        return (op == JUMP || op == JUMPIF || isCompareJump(op) || op == CALL || op == CALLI)
+                && rOf(words[addr]) == REG_CB;
+    }
+
+    private static boolean isCompareJump(int op) {
+        return op >= JUMPEQ && op <= JUMPGE;
+    }
+
+    // the compare-and-branch taken exactly when the given one is not: EQ/NE, LT/GE, LE/GT
+    private static int negate(int op) {
+        switch (op - JUMPEQ) {
+            case 0: return JUMPEQ + 1;
+            case 1: return JUMPEQ;
+            case 2: return JUMPEQ + 5;
+            case 3: return JUMPEQ + 4;
+            case 4: return JUMPEQ + 3;
+            default: return JUMPEQ + 2;
+        }
+    }
+
+    private boolean isPrimitive(int addr, Prim prim) {
+        return words[addr] == pack(CALL, 0, REG_PB) && operands[addr] == prim.ordinal();
+    }
+
+    private boolean isLoadL(int addr, int value) {
+        return opOf(words[addr]) == LOADL && operands[addr] == value;
+    }
+
+    /**
+     * Code that computes code addresses other than through jumps and calls can't be renumbered.
+     */
+    private boolean isSafe() {
+        for (int addr = 0; addr < length; addr++) {
+            int op = opOf(words[addr]);
+            if (op == JUMPI || (rOf(words[addr]) == REG_CB && !isCodeReference(addr)))
+                return false;
+            if (isCodeReference(addr) && (operands[addr] < 0 || operands[addr] >= length))
+                return false;
+        }
+        return true;
+    }
+
+    private void findTargets() {
+        target = new boolean[length + 1];
+        removed = new boolean[length];
+        target[Machine.CB] = true;
+        for (int addr = 0; addr < length; addr++)
+            if (isCodeReference(addr))
+                target[operands[addr]] = true;
+        for (int addr : emitter.symbols.keySet())
+            if (addr < length)
+                target[addr] = true;
+    }
+
+    /**
+     * Points each jump whose target is an unconditional jump, or a constant followed by a
+     * conditional jump, at where control finally goes.
+     */
+    private boolean threadJumps() {
+        boolean changed = false;
+        for (int addr = 0; addr < length; addr++) {
+            int op = opOf(words[addr]);
+            if (!isCodeReference(addr) || (op != JUMP && op != JUMPIF && !isCompareJump(op)))
+                continue;
+            int dest = operands[addr];
+            // bounded, in case of a loop of jumps
+            for (int hops = 0; hops < length; hops++) {
+                if (isUnconditionalJump(dest) && operands[dest] != dest) {
+                    dest = operands[dest];
+                } else if (dest + 1 < length && opOf(words[dest]) == LOADL && opOf(words[dest + 1]) == JUMPIF
+                        && isCodeReference(dest + 1)) {
+                    // a constant condition, as short-circuit code leaves before a test
+                    dest = operands[dest] == nOf(words[dest + 1]) ? operands[dest + 1] : dest + 2;
+                } else {
+                    break;
+                }
+            }
+            if (dest != operands[addr]) {
+                operands[addr] = dest;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean isUnconditionalJump(int addr) {
+        return addr < length && opOf(words[addr]) == JUMP && rOf(words[addr]) == REG_CB;
+    }
+
+    /**
+     * @return the instruction after addr that has not been removed, provided no branch
+     * lands on it or on a removed instruction before it, or -1
+     */
+    private int next(int addr) {
+        int next = addr + 1;
+        while (next < length && removed[next] && !target[next])
+            next++;
+        return next < length && !removed[next] && !target[next] ? next : -1;
+    }
+
+    private boolean rewrite() {
+        boolean changed = false;
+        for (int addr = 0; addr < length; addr++) {
+            if (removed[addr])
+                continue;
+            int word = words[addr], op = opOf(word), d = operands[addr];
+
+            // unreachable code
+            if ((op == JUMP || op == RETURN || (op == HALT && nOf(word) == 0))) {
+                for (int dead = addr + 1; dead < length && !target[dead]; dead++) {
+                    if (!removed[dead]) {
+                        removed[dead] = true;
+                        changed = true;
+                    }
+                }
+            }
+
+            // jump to the next instruction
+            if (op == JUMP && isCodeReference(addr) && firstLiveFrom(addr + 1) == firstLiveFrom(d)) {
+                removed[addr] = true;
+                changed = true;
+                continue;
+            }
+
+            // adding or subtracting a literal 0
+            if ((op == ADDL || op == SUBL) && d == 0) {
+                removed[addr] = true;
+                changed = true;
+                continue;
+            }
+
+            int second = next(addr);
+            if (second < 0)
+                continue;
+            int word2 = words[second], op2 = opOf(word2), d2 = operands[second];
+
+            // JUMPIF (n) L1; JUMP L2; L1:  becomes  JUMPIF (1-n) L2
+            if (op == JUMPIF && isCodeReference(addr) && isUnconditionalJump(second)
+                    && (nOf(word) == Machine.falseRep || nOf(word) == Machine.trueRep)
+                    && firstLiveFrom(second + 1) == firstLiveFrom(d)) {
+                words[addr] = pack(JUMPIF, Machine.trueRep + Machine.falseRep - nOf(word), REG_CB);
+                operands[addr] = d2;
+                removed[second] = true;
+                changed = true;
+                continue;
+            }
+
+            // JUMPcc L1; JUMP L2; L1:  becomes  JUMP!cc L2
+            if (isCompareJump(op) && isCodeReference(addr) && isUnconditionalJump(second)
+                    && firstLiveFrom(second + 1) == firstLiveFrom(d)) {
+                words[addr] = pack(negate(op), 0, REG_CB);
+                operands[addr] = d2;
+                removed[second] = true;
+                changed = true;
+                continue;
+            }
+
+            // algebraic identities: x + 0, x - 0, x * 1, x / 1
+            if ((isLoadL(addr, 0) && (isPrimitive(second, Prim.add) || isPrimitive(second, Prim.sub)))
+                    || (isLoadL(addr, 1) && (isPrimitive(second, Prim.mult) || isPrimitive(second, Prim.div)))) {
+                removed[addr] = removed[second] = true;
+                changed = true;
+                continue;
+            }
+
+            // constant condition
+            if (op == LOADL && op2 == JUMPIF && isCodeReference(second)) {
+                if (d == nOf(word2))
+                    words[second] = pack(JUMP, 0, REG_CB);
+                else
+                    removed[second] = true;
+                removed[addr] = true;
+                changed = true;
+                continue;
+            }
+
+            // storing back the value just loaded from the same word
+            if (op == LOAD && op2 == STORE && rOf(word) == rOf(word2) && d == d2
+                    && (rOf(word) == REG_LB || rOf(word) == REG_SB || rOf(word) == REG_OB)) {
+                removed[addr] = removed[second] = true;
+                changed = true;
+                continue;
+            }
+
+            // pushing a value only to pop it
+            if ((op == LOAD || op == LOADA || op == LOADL) && word2 == pack(POP, 0, 0) && d2 >= 1) {
+                removed[addr] = true;
+                operands[second] = d2 - 1;
+                if (d2 == 1)
+                    removed[second] = true;
+                changed = true;
+                continue;
+            }
+
+            // consecutive pops
+            if (word == pack(POP, 0, 0) && word2 == pack(POP, 0, 0) && d >= 0 && d2 >= 0) {
+                operands[addr] = d + d2;
+                removed[second] = true;
+                changed = true;
+                addr--; // the merged pop may merge again
+            }
+        }
+        return changed;
+    }
+
+    private int firstLiveFrom(int addr) {
+        while (addr < length && removed[addr])
+            addr++;
+        return addr;
+    }
+
+    /**
+     * Drops removed instructions and renumbers code addresses. A reference to a removed
+     * instruction moves to the instruction that followed it.
+     */
+    private void compact() {
+        int[] newAddr = new int[length + 1];
+        int count = 0;
+        for (int addr = 0; addr < length; addr++) {
+            newAddr[addr] = count;
+            if (!removed[addr]) {
+                words[count] = words[addr];
+                operands[count] = operands[addr];
+                count++;
+            }
+        }
+        newAddr[length] = count;
+        for (int addr = 0; addr < count; addr++)
+            if (isCodeReference(addr))
+                operands[addr] = newAddr[operands[addr]];
+        length = count;
+        remap(emitter.symbols, newAddr);
+        remap(emitter.lines, newAddr);
+    }
+
+    private static <T> void remap(TreeMap<Integer, T> table, int[] newAddr) {
+        TreeMap<Integer, T> old = new TreeMap<Integer, T>(table);
+        table.clear();
+        // later entries win when several collapse onto one address
+        for (Map.Entry<Integer, T> entry : old.entrySet())
+            if (entry.getKey() < newAddr.length)
+                table.put(newAddr[entry.getKey()], entry.getValue());
+    }
+}
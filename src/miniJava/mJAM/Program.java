@@ -0,0 +1,88 @@
+package miniJava.mJAM;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A loaded mJAM program: a private copy of its instructions, packed as the emitter packs
+ * them, and their decoded form.
+ * <p>
+ * A Program never changes after it is built, so one Program can be shared by any
+ * number of {@link VM}s, on any threads.
+ */
+public final class Program {
+
+    // op | r << 8 | n << 16 and d of the instructions at code addresses CB .. CT-1,
+    // and their decoded form
+    final int[] words;
+    final int[] operands;
+    final int CT;
+    final DecodedProgram decoded;
+    // debugging information from the compiler, possibly empty
+    private final TreeMap<Integer, String> symbols;
+    private final TreeMap<Integer, Integer> lines;
+
+    private Program(ObjectFile.Contents contents) {
+        // the instructions are freshly read or copied and not shared, so they need no copy
+        words = contents.words;
+        operands = contents.operands;
+        CT = contents.ct;
+        decoded = DecodedProgram.decode(words, operands, CT);
+        symbols = contents.symbols;
+        lines = contents.lines;
+    }
+
+    /**
+     * Returns the program generated so far by an emitter.
+     * @throws IllegalStateException if it still refers to unbound labels
+     */
+    public static Program fromEmitter(Emitter emitter) {
+        if (!emitter.isResolved())
+            throw new IllegalStateException("program refers to unbound labels");
+        return new Program(new ObjectFile.Contents(Arrays.copyOf(emitter.words, emitter.CT),
+                Arrays.copyOf(emitter.operands, emitter.CT), emitter.CT,
+                new TreeMap<Integer, String>(emitter.symbols), new TreeMap<Integer, Integer>(emitter.lines)));
+    }
+
+    /**
+     * Loads a program from an object file, leaving the code store untouched.
+     * @throws IOException if the file cannot be read
+     */
+    public static Program load(String objectFileName) throws IOException {
+        return new Program(new ObjectFile(objectFileName).readContents());
+    }
+
+    /**
+     * Loads a program from object code in either object file format.
+     * @throws IOException if the code is truncated or malformed
+     */
+    public static Program fromBytes(byte[] objectCode) throws IOException {
+        return new Program(ObjectFile.decode(ByteBuffer.wrap(objectCode)));
+    }
+
+    /**
+     * @return the number of instructions in the program
+     */
+    public int size() {
+        return CT;
+    }
+
+    /**
+     * @return the name of the method containing the code address, or null if unknown
+     */
+    public String methodAt(int addr) {
+        Map.Entry<Integer, String> entry = symbols.floorEntry(addr);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * @return the source line the code at the address was generated from, or 0 if unknown
+     */
+    public int lineAt(int addr) {
+        Map.Entry<Integer, Integer> entry = lines.floorEntry(addr);
+        return entry == null ? 0 : entry.getValue();
+    }
+}
@@ -0,0 +1,2207 @@
+package miniJava.mJAM;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An mJAM machine: registers and a data store of its own, running one loaded
+ * {@link Program}.
+ * <p>
+ * A machine shares nothing mutable with other machines, so any number of them
+ * can run at once on different threads, including several running the same
+ * Program. A single machine is not thread-safe.
+ */
+public class VM {
+
+    /**
+     * How a run ended: the final machine status and the code address it stopped at.
+     */
+    public static final class Result {
+        public final int status;
+        public final int codeAddress;
+
+        Result(int status, int codeAddress) {
+            this.status = status;
+            this.codeAddress = codeAddress;
+        }
+
+        public boolean halted() {
+            return status == halted;
+        }
+
+        public String message() {
+            return statusMessage(status);
+        }
+
+        @Override
+        public String toString() {
+            return message() + " (status " + status + ", at instruction " + codeAddress + ")";
+        }
+    }
+
+    // DATA STORE
+    // Either shared, as in the original machine: the stack grows up from SB
+    // and the heap down from HB, and the program fails when they meet.  Or
+    // split: the stack has SB .. SL-1 to itself, and the heap grows up from SL
+    // towards HB, with data enlarged as it does.
+    int[] data;
+    final boolean splitStore;
+
+    public static final int DEFAULT_DATA_STORE = 1024;
+    // largest data store, in words
+    public static final int MAX_DATA_STORE = Integer.MAX_VALUE - 8;
+
+    // DATA STORE REGISTERS AND OTHER REGISTERS
+    final static int CB = 0, SB = 0;
+    final int HB; // = upper bound of data store + 1
+    final int SL; // = upper bound of stack + 1
+
+
+    int CT, CP, ST, HT, LB, OB, status, temp;
+
+    // machine status values
+    public final static int running = 0, halted = 1, failedDataStoreFull = 2,
+            failedInvalidCodeAddress = 3, failedInvalidInstruction = 4,
+            failedOverflow = 5, failedZeroDivide = 6, failedIOError = 7,
+            failedArrayIndex = 8, failedNullRef = 9, failedHeapRef = 10,
+            failedFieldIndex = 11, failedMethodIndex = 12,
+            failedTimeLimit = 13, cancelled = 14;
+
+    long accumulator;
+
+    // run with the top of the stack cached in locals (runCached)
+    boolean cacheStackTop = false;
+
+    // Stopping a run from outside: checked every POLL_INTERVAL calls,
+    // backward jumps and slow-path instructions.
+    static final int POLL_INTERVAL = 4096;
+    private volatile boolean cancelRequested = false;
+    private long deadline; // System.nanoTime() value, if hasDeadline
+    private boolean hasDeadline = false;
+
+    // the program run by this machine, and where its input and output go
+    final Program program;
+    final PrintStream out;
+    final InputStream in;
+
+    public VM(Program program) {
+        this(program, System.out, System.in);
+    }
+
+    public VM(Program program, PrintStream out, InputStream in) {
+        this.program = program;
+        this.out = out;
+        this.in = in;
+        splitStore = false;
+        HB = SL = DEFAULT_DATA_STORE;
+        data = new int[HB];
+    }
+
+    /**
+     * Creates a machine with a split data store: a stack of stackWords words, and a heap
+     * of up to heapWords words that is allocated as it fills.
+     */
+    public VM(Program program, PrintStream out, InputStream in, int stackWords, int heapWords) {
+        if (stackWords <= 0 || heapWords < 0 || (long) stackWords + heapWords > MAX_DATA_STORE)
+            throw new IllegalArgumentException("data store of " + stackWords + " + " + heapWords
+                    + " words is not between 1 and " + MAX_DATA_STORE + " words");
+        this.program = program;
+        this.out = out;
+        this.in = in;
+        splitStore = true;
+        SL = stackWords;
+        HB = stackWords + heapWords;
+        data = new int[SL + Math.min(heapWords, DEFAULT_DATA_STORE)];
+    }
+
+    /**
+     * Stops the program at its next poll with status cancelled. May be called from any thread,
+     * and before the run starts.
+     */
+    public void cancel() {
+        cancelRequested = true;
+    }
+
+    /**
+     * Stops a run still going after the given time with status failedTimeLimit.
+     * @param nanoTime  a System.nanoTime() value
+     */
+    public void setDeadline(long nanoTime) {
+        deadline = nanoTime;
+        hasDeadline = true;
+    }
+
+    boolean stopRequested() {
+        // Sets the status and returns true if the run should stop now.
+        if (cancelRequested)
+            status = cancelled;
+        else if (hasDeadline && System.nanoTime() - deadline >= 0)
+            status = failedTimeLimit;
+        return status != running;
+    }
+
+    /**
+     * Selects the top-of-stack caching run loop (see runCached) for later runs.
+     */
+    public void setCacheStackTop(boolean cacheStackTop) {
+        this.cacheStackTop = cacheStackTop;
+    }
+
+    int content(int r) {
+        // Returns the current content of register r,
+        Machine.Reg reg = Machine.intToReg[r];
+        switch (reg) {
+            case CB:
+                return CB;
+            case CT:
+                return CT;
+            case PB:
+                return CT;
+            case PT:
+                return CT + Machine.intToPrim.length;
+            case SB:
+                return SB;
+            case ST:
+                return ST;
+            case HB:
+                return HB;
+            case HT:
+                return HT;
+            case LB:
+                return LB;
+            case OB:
+                return OB;
+            case CP:
+                return CP;
+            default:
+                return 0;
+        }
+    }
+
+    // PROGRAM STATUS
+
+    void dump() {
+        // Writes a summary of the machine state.
+        int addr, dynamicLink;
+        out.println("");
+        out.println("At instruction " + CP
+                + ", state of mJAM data store and registers is:");
+        out.println("");
+        if (heapLow() == heapTop())
+            out.println("            |--------|          (heap is empty)");
+        else {
+            out.println(splitStore ? "      HT--> " : "      HB--> ");
+            out.println("            |--------|");
+            for (addr = heapTop() - 1; addr >= heapLow(); addr--) {
+                out.print(rightPad(6, addr + ":"));
+                if (addr == OB)
+                    out.print("OB--> ");
+                else if (addr == HT && !splitStore)
+                    out.print("HT--> ");
+                else
+                    out.print("      ");
+                out.println("|" + leftPad(8, String.valueOf(data[addr]))
+                        + "|");
+            }
+            out.println("            |--------|");
+        }
+        out.println("            |////////|");
+        out.println("            |////////|");
+        if (ST == SB)
+            out.println("            |--------|          (stack is empty)");
+        else {
+            dynamicLink = LB;
+            out.println("      ST--> |////////|");
+            out.println("            |--------|");
+            for (addr = ST - 1; addr >= SB; addr--) {
+                out.print(rightPad(6, addr + ": "));
+                if (addr == SB)
+                    out.print("SB--> ");
+                else if (addr == LB)
+                    out.print("LB--> ");
+                else
+                    out.print("      ");
+                if ((addr == dynamicLink) && (dynamicLink != SB))
+                    out.print("|OB="
+                            + leftPad(5, String.valueOf(data[addr])) + "|");
+                else if ((addr == dynamicLink + 1) && (dynamicLink != SB))
+                    out.print("|DL="
+                            + leftPad(5, String.valueOf(data[addr])) + "|");
+                else if ((addr == dynamicLink + 2) && (dynamicLink != SB))
+                    out.print("|RA="
+                            + leftPad(5, String.valueOf(data[addr])) + "|");
+                else
+                    out.print("|"
+                            + leftPad(8, String.valueOf(data[addr])) + "|");
+                out.println("");
+                if (addr == dynamicLink) {
+                    out.println("            |--------|");
+                    dynamicLink = data[addr + 1];
+                }
+            }
+        }
+        out.println("");
+    }
+
+    private static String leftPad(int len, String s) {
+        int aLen = Math.max(len, s.length());
+        StringBuffer buf = new StringBuffer(s);
+        String r = buf.insert(0, "        ").toString();
+        return r.substring(r.length() - aLen, r.length());
+    }
+
+    private static String rightPad(int len, String s) {
+        int aLen = Math.max(len, s.length());
+        String r = s + "        ";
+        return r.substring(0, aLen);
+    }
+
+    void showStatus() {
+        // Writes an indication of whether and why the program has terminated.
+        out.println("");
+        out.println("*** " + statusMessage(status));
+        if (status != halted)
+            dump();
+    }
+
+    static String statusMessage(int status) {
+        // Describes whether and why a program with the given status has terminated.
+        switch (status) {
+            case running:
+                return "Program is running.";
+            case halted:
+                return "Program has halted normally.";
+            case failedDataStoreFull:
+                return "Program has failed due to exhaustion of Data Store.";
+            case failedInvalidCodeAddress:
+                return "Program has failed due to an invalid code address.";
+            case failedInvalidInstruction:
+                return "Program has failed due to an invalid instruction.";
+            case failedOverflow:
+                return "Program has failed due to overflow.";
+            case failedZeroDivide:
+                return "Program has failed due to division by zero.";
+            case failedIOError:
+                return "Program has failed due to an IO error.";
+            case failedArrayIndex:
+                return "Program has failed due to an array index error.";
+            case failedNullRef:
+                return "Program has failed due to a null pointer reference.";
+            case failedHeapRef:
+                return "Program has failed due to an invalid Heap reference.";
+            case failedFieldIndex:
+                return "Program has failed due to a field index error.";
+            case failedMethodIndex:
+                return "Program has failed due to an improper method index in CALLD.";
+            case failedTimeLimit:
+                return "Program was stopped at its time limit.";
+            case cancelled:
+                return "Program was cancelled.";
+            default:
+                return "Machine is in an unknown state.";
+        }
+    }
+
+    // GARBAGE COLLECTION
+    //
+    // Every heap block starts with a two-word header, [tag, size of the rest]:
+    // the class descriptor (or -1) for an object, -2 for an array, ALLOC_TAG
+    // for a block from alloc, and FREE_TAG for a free block.  Blocks tile the
+    // heap, so it can be walked from heapLow() to heapTop().
+    //
+    // The collector is a non-moving, conservative mark-sweep.  Neither stack
+    // words nor heap words say whether they hold a reference or an int, so
+    // any word whose value is the address of a live block's body is taken to
+    // be a reference.  An object could only be moved if every reference to
+    // it could be updated, which needs to know exactly which words are
+    // references; so unreachable blocks are freed in place instead, onto a
+    // free list that allocation searches before extending the heap.
+
+    static final int ALLOC_TAG = -3, FREE_TAG = Integer.MIN_VALUE;
+
+    // start of each allocated block, indexed by slot()
+    private final BitSet blockStarts = new BitSet();
+    // addresses of free blocks
+    private int[] freeBlocks = new int[16];
+    private int freeCount = 0;
+
+    /**
+     * Collector activity over the life of a machine.
+     */
+    public static final class GcStats {
+        public final int collections;
+        public final long reclaimedWords, totalPauseNanos, maxPauseNanos;
+
+        GcStats(int collections, long reclaimedWords, long totalPauseNanos, long maxPauseNanos) {
+            this.collections = collections;
+            this.reclaimedWords = reclaimedWords;
+            this.totalPauseNanos = totalPauseNanos;
+            this.maxPauseNanos = maxPauseNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d collections, %d words reclaimed, pauses %.3f ms total, %.3f ms max",
+                    collections, reclaimedWords, totalPauseNanos / 1e6, maxPauseNanos / 1e6);
+        }
+    }
+
+    // Words allocated since the last collection, and how many trigger the
+    // next: at least an eighth of the heap, or as much as was live after
+    // the last collection.  Collecting before the heap is exhausted keeps a
+    // shared store's heap from growing down onto the stack when the free
+    // list could have served.
+    private long allocatedSinceGc, gcThreshold;
+
+    private int gcCollections = 0;
+    private long gcReclaimedWords = 0, gcTotalPauseNanos = 0, gcMaxPauseNanos = 0;
+
+    public GcStats gcStats() {
+        return new GcStats(gcCollections, gcReclaimedWords, gcTotalPauseNanos, gcMaxPauseNanos);
+    }
+
+    private long heapCapacity() {
+        return splitStore ? HB - SL : HB - SB;
+    }
+
+    private int slot(int block) {
+        // Index of a block address in the heap bitsets; the shared heap grows down from HB.
+        return splitStore ? block - SL : HB - block;
+    }
+
+    private boolean isBlockBody(int addr) {
+        // Tests whether addr is the body address of an allocated block.
+        return addr >= heapLow() + 2 && addr <= heapTop() && blockStarts.get(slot(addr - 2));
+    }
+
+    void free(int addr) {
+        // Returns the block with body at addr to the free list.  Anything
+        // that is not an allocated block is ignored.
+        if (!isBlockBody(addr))
+            return;
+        blockStarts.clear(slot(addr - 2));
+        data[addr - 2] = FREE_TAG;
+        addFree(addr - 2);
+    }
+
+    private void addFree(int block) {
+        if (freeCount == freeBlocks.length)
+            freeBlocks = Arrays.copyOf(freeBlocks, 2 * freeCount);
+        freeBlocks[freeCount++] = block;
+    }
+
+    /**
+     * Marks the blocks reachable from the stack and OB, and frees the rest.
+     * @return the number of words reclaimed, headers included
+     */
+    long collect() {
+        long start = System.nanoTime();
+        int low = heapLow(), top = heapTop();
+        if (low == top)
+            return 0;
+
+        // mark
+        BitSet marked = new BitSet();
+        int[] work = new int[64];
+        int pending = 0;
+        for (int addr = SB; addr <= ST; addr++) {
+            int candidate = addr < ST ? data[addr] : OB;
+            if (isBlockBody(candidate) && !marked.get(slot(candidate - 2))) {
+                marked.set(slot(candidate - 2));
+                if (pending == work.length)
+                    work = Arrays.copyOf(work, 2 * pending);
+                work[pending++] = candidate;
+            }
+            while (pending > 0) {
+                int body = work[--pending];
+                for (int field = body, end = body + data[body - 1]; field < end; field++) {
+                    int ref = data[field];
+                    if (isBlockBody(ref) && !marked.get(slot(ref - 2))) {
+                        marked.set(slot(ref - 2));
+                        if (pending == work.length)
+                            work = Arrays.copyOf(work, 2 * pending);
+                        work[pending++] = ref;
+                    }
+                }
+            }
+        }
+
+        // sweep, joining neighbouring free blocks
+        long reclaimed = 0;
+        freeCount = 0;
+        int run = -1; // start of the current free run
+        for (int block = low; block < top; block += data[block + 1] + 2) {
+            boolean allocated = blockStarts.get(slot(block));
+            if (allocated && marked.get(slot(block))) {
+                if (run >= 0)
+                    endFreeRun(run, block);
+                run = -1;
+                continue;
+            }
+            if (allocated) {
+                blockStarts.clear(slot(block));
+                reclaimed += data[block + 1] + 2;
+            }
+            if (run < 0)
+                run = block;
+        }
+        if (run >= 0)
+            endFreeRun(run, top);
+
+        // give back free space at the moving end of the heap
+        if (!splitStore && freeCount > 0 && freeBlocks[0] == HT) {
+            HT = HT + data[HT + 1] + 2;
+            freeBlocks[0] = freeBlocks[--freeCount];
+        } else if (splitStore && freeCount > 0) {
+            int last = freeBlocks[freeCount - 1];
+            if (last + data[last + 1] + 2 == HT) {
+                HT = last;
+                freeCount--;
+            }
+        }
+
+        long live = heapTop() - heapLow();
+        for (int i = 0; i < freeCount; i++)
+            live -= data[freeBlocks[i] + 1] + 2;
+        allocatedSinceGc = 0;
+        gcThreshold = Math.max(Math.max(64, heapCapacity() / 8), live);
+
+        long pause = System.nanoTime() - start;
+        gcCollections++;
+        gcReclaimedWords += reclaimed;
+        gcTotalPauseNanos += pause;
+        gcMaxPauseNanos = Math.max(gcMaxPauseNanos, pause);
+        return reclaimed;
+    }
+
+    private void endFreeRun(int run, int end) {
+        data[run] = FREE_TAG;
+        data[run + 1] = end - run - 2;
+        addFree(run);
+    }
+
+    // INTERPRETATION
+
+    void checkSpace(int spaceNeeded) {
+        // Signals failure if there is not enough space to expand the stack
+        // by spaceNeeded.  A shared store first collects, in case that
+        // frees the lowest heap blocks.
+        if (stackLimit() - ST < spaceNeeded
+                && (splitStore || collect() == 0 || stackLimit() - ST < spaceNeeded))
+            status = failedDataStoreFull;
+    }
+
+    int stackLimit() {
+        // Returns the address the stack may grow up to.
+        return splitStore ? SL : HT;
+    }
+
+    int heapLow() {
+        // Returns the lowest address in use by the heap.
+        return splitStore ? SL : HT;
+    }
+
+    int heapTop() {
+        // Returns the address just past the heap in use.
+        return splitStore ? HT : HB;
+    }
+
+    int allocate(int size) {
+        // Reserves a heap block of size words, header included, and returns
+        // its address; or signals failure and returns -1 if there is not
+        // enough space even after a collection.  The caller writes the header.
+        if (size < 2) {
+            status = failedDataStoreFull;
+            return -1;
+        }
+        if (allocatedSinceGc >= gcThreshold)
+            collect();
+        int block = allocateFree(size);
+        if (block < 0)
+            block = allocateTop(size);
+        if (block < 0 && collect() > 0) {
+            block = allocateFree(size);
+            if (block < 0)
+                block = allocateTop(size);
+        }
+        if (block < 0) {
+            status = failedDataStoreFull;
+            return -1;
+        }
+        blockStarts.set(slot(block));
+        allocatedSinceGc += size;
+        return block;
+    }
+
+    private int allocateTop(int size) {
+        // Extends the heap at HT by size words.
+        if ((splitStore ? HB - HT : HT - ST) < size)
+            return -1;
+        if (!splitStore) {
+            HT = HT - size;
+            return HT;
+        }
+        int block = HT;
+        HT = HT + size;
+        if (HT > data.length) {
+            long capacity = Math.max(2L * data.length, HT);
+            data = Arrays.copyOf(data, (int) Math.min(capacity, HB));
+        }
+        return block;
+    }
+
+    private int allocateFree(int size) {
+        // First fit from the free list.  A free block is split only if the
+        // rest is big enough to be a block itself.
+        for (int i = 0; i < freeCount; i++) {
+            int block = freeBlocks[i];
+            int total = data[block + 1] + 2;
+            if (total == size) {
+                freeBlocks[i] = freeBlocks[--freeCount];
+                return block;
+            }
+            if (total >= size + 2) {
+                data[block + size] = FREE_TAG;
+                data[block + size + 1] = total - size - 2;
+                freeBlocks[i] = block + size;
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    boolean invalidHeapRef(int addr) {
+        // if addr is null ptr or outside of heap bounds, sets status to failure
+        if (addr == Machine.nullRep)
+            status = failedNullRef;
+        else if (addr < heapLow() + 2 || addr > heapTop())
+            status = failedHeapRef;
+        return (status != running);
+    }
+
+    static boolean isTrue(int datum) {
+        // Tests whether the given datum represents true.
+        return (datum == Machine.trueRep);
+    }
+
+    int overflowChecked(long datum) {
+        // Signals failure if the datum is too large to fit into a single word,
+        // otherwise returns the datum as a single word.
+        if ((Machine.minintRep <= datum) && (datum <= Machine.maxintRep))
+            return (int) datum;
+        else {
+            status = failedOverflow;
+            return 0;
+        }
+    }
+
+    static int toInt(boolean b) {
+        return b ? Machine.trueRep : Machine.falseRep;
+    }
+
+    static boolean compare(int condition, int x, int y) {
+        // Tests x against y; condition is the offset of a compare-and-branch
+        // instruction from JUMPEQ: EQ, NE, LT, LE, GT, GE.
+        switch (condition) {
+            case 0: return x == y;
+            case 1: return x != y;
+            case 2: return x < y;
+            case 3: return x <= y;
+            case 4: return x > y;
+            default: return x >= y;
+        }
+    }
+
+    int currentChar;
+
+    int readInt() throws IOException {
+        int temp = 0;
+        int sign = 1;
+
+        do {
+            currentChar = in.read();
+        } while (Character.isWhitespace((char) currentChar));
+
+        if ((currentChar == '-') || (currentChar == '+'))
+            do {
+                sign = (currentChar == '-') ? -1 : 1;
+                currentChar = in.read();
+            } while ((currentChar == '-') || currentChar == '+');
+
+        if (Character.isDigit((char) currentChar))
+            do {
+                temp = temp * 10 + (currentChar - '0');
+                currentChar = in.read();
+            } while (Character.isDigit((char) currentChar));
+
+        return sign * temp;
+    }
+
+    // Invoke primitive operation with argument(s) on the stack
+    // primitives are static and are not supplied an instance on the stack.
+    void callPrimitive(int id) {
+
+        int addr, size, index;
+        char ch;
+
+        Machine.Prim prim = Machine.intToPrim[id];
+        switch (prim) {
+            case id:
+                break; // nothing to be done
+            case not:
+                data[ST - 1] = toInt(!isTrue(data[ST - 1]));
+                break;
+            case and:
+                ST = ST - 1;
+                data[ST - 1] = toInt(isTrue(data[ST - 1]) & isTrue(data[ST]));
+                break;
+            case or:
+                ST = ST - 1;
+                data[ST - 1] = toInt(isTrue(data[ST - 1]) | isTrue(data[ST]));
+                break;
+            case succ:
+                data[ST - 1] = overflowChecked(data[ST - 1] + 1);
+                break;
+            case pred:
+                data[ST - 1] = overflowChecked(data[ST - 1] - 1);
+                break;
+            case neg:
+                data[ST - 1] = overflowChecked(-data[ST - 1]);
+                break;
+            case add:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator + data[ST]);
+                break;
+            case sub:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator - data[ST]);
+                break;
+            case mult:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator * data[ST]);
+                break;
+            case div:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                if (data[ST] != 0)
+                    data[ST - 1] = (int) (accumulator / data[ST]);
+                else
+                    status = failedZeroDivide;
+                break;
+            case mod:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                if (data[ST] != 0)
+                    data[ST - 1] = (int) (accumulator % data[ST]);
+                else
+                    status = failedZeroDivide;
+                break;
+            case lt:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] < data[ST]);
+                break;
+            case le:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] <= data[ST]);
+                break;
+            case ge:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] >= data[ST]);
+                break;
+            case gt:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] > data[ST]);
+                break;
+            case eq:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] == data[ST]);
+                break;
+            case ne:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] != data[ST]);
+                break;
+            case eol:
+                data[ST] = toInt(currentChar == '\n');
+                ST = ST + 1;
+                break;
+            case eof:
+                data[ST] = toInt(currentChar == -1);
+                ST = ST + 1;
+                break;
+            case get:
+                ST = ST - 1;
+                addr = data[ST];
+                try {
+                    currentChar = in.read();
+                } catch (IOException s) {
+                    status = failedIOError;
+                }
+                data[addr] = (int) currentChar;
+                break;
+            case put:
+                ST = ST - 1;
+                ch = (char) data[ST];
+                out.print(ch);
+                break;
+            case geteol:
+                try {
+                    while ((currentChar = in.read()) != '\n')
+                        ;
+                } catch (IOException s) {
+                    status = failedIOError;
+                }
+                break;
+            case puteol:
+                out.println("");
+                break;
+            case getint:
+                ST = ST - 1;
+                addr = data[ST];
+                try {
+                    accumulator = readInt();
+                } catch (IOException s) {
+                    status = failedIOError;
+                }
+                data[addr] = (int) accumulator;
+                break;
+            case putint:
+                ST = ST - 1;
+                accumulator = data[ST];
+                out.print(accumulator);
+                break;
+            // output with prefix for tester
+            case putintnl:
+                ST = ST - 1;
+                accumulator = data[ST];
+                out.print(">>> " + accumulator + "\n");
+                break;
+            case alloc:
+                // ..., size n ==> ..., addr of n words, under a header like an array's
+                size = data[ST - 1] + 2;
+                addr = allocate(size);
+                if (addr < 0)
+                    break;
+                data[addr] = ALLOC_TAG;
+                data[addr + 1] = size - 2;
+                data[ST - 1] = addr + 2;
+                break;
+            case dispose:
+                // ..., addr of object, array or alloc'd block ==> ...
+                ST = ST - 1;
+                free(data[ST]);
+                break;
+            case newobj:
+                // ..., class obj addr, number of fields ==> ..., new obj addr
+                size = data[ST - 1] + 2;   // number of fields + 2 word descriptor
+                addr = allocate(size);     // reserve space
+                if (addr < 0)
+                    break;
+                data[addr] = data[ST - 2]; // set class object addr
+                data[addr + 1] = size - 2; // set size of object
+                data[ST - 2] = addr + 2;   // addr of new object instance, returned on stack
+                ST = ST - 1;               // net effect of pop 2 args, push 1 result
+                for (int i = 2; i < size; i++) {
+                    data[addr + i] = 0;    // zero all fields of new object
+                }
+                break;
+            case newarr:
+                // ..., number of elements ==> ..., new int[] addr
+                size = data[ST - 1] + 2;    // array  + 2 word descriptor
+                addr = allocate(size);
+                if (addr < 0)
+                    break;
+                data[addr] = -2;            // tag for array
+                data[addr + 1] = size - 2;  // size of array
+                data[ST - 1] = addr + 2;    // addr of array instance, returned on stack
+                for (int i = 2; i < size; i++) {
+                    data[addr + i] = 0;     // zero all elements of new array
+                }
+                break;
+            case arraylen:
+                // ..., array addr a ==> ... , array.length
+                addr = data[ST - 1];
+                if (invalidHeapRef(addr))
+                    break;                   // invalid heap address
+                if (data[addr - 2] != -2) {
+                    status = failedHeapRef;  // not tagged as array in heap
+                    break;
+                }
+                data[ST - 1] = data[addr - 1]; // return array length field
+                break;
+            case arrayref:
+            case uarrayref:
+                // ..., array addr a, element index i ==> ..., a[i]
+                addr = data[ST - 2];
+                if (invalidHeapRef(addr))
+                    break;
+                index = data[ST - 1];
+                if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) {
+                    status = failedArrayIndex;
+                    break;
+                }
+                data[ST - 2] = data[addr + index];  // result element, returned on stack
+                ST = ST - 1;                        // pop two args, return one result
+                break;
+            case arrayupd:
+            case uarrayupd:
+                // ..., array addr a, element index i, new value v ==> ...
+                // and a[i] := v
+                addr = data[ST - 3];
+                if (invalidHeapRef(addr))
+                    break;
+                index = data[ST - 2];
+                if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) {
+                    status = failedArrayIndex;
+                    break;
+                }
+                data[addr + index] = data[ST - 1]; // update array element
+                ST = ST - 3;                       // pop 3 args, return no result
+                break;
+            case fieldref:
+                // ..., obj addr a, field index i ==> ..., value of ith field of a
+                addr = data[ST - 2];
+                if (invalidHeapRef(addr))
+                    break;
+                index = data[ST - 1];
+                if (index < 0 || index >= data[addr - 1]) {
+                    status = failedFieldIndex;
+                    break;
+                }
+                data[ST - 2] = data[addr + index];   // field to stack top
+                ST = ST - 1;                         // pop two args, return one result
+                break;
+            case fieldupd:
+                // ..., obj addr a, field index i, new value v ==> ...
+                // and a.i := v
+                addr = data[ST - 3];
+                if (invalidHeapRef(addr))
+                    break;
+                index = data[ST - 2];
+                if (index < 0 || index >= data[addr - 1]) {
+                    status = failedFieldIndex;
+                    break;
+                }
+                data[addr + index] = data[ST - 1];    // update field to new value
+                ST = ST - 3;                        // pop 3 args, return no result
+                break;
+        }
+    }
+
+    void interpretOneOperation() {
+        // Fetch instruction ...
+        int word = program.words[CP];
+        // Decode instruction ...
+        int op = word & 0xFF;
+        int r = word >> 8 & 0xFF;
+        int n = word >> 16;
+        int d = program.operands[CP];
+        int addr;
+        // Execute instruction ...
+
+        if (op >= Machine.intToOp.length) {
+            status = failedInvalidInstruction;
+            return;
+        }
+        Machine.Op operation = Machine.intToOp[op];
+
+        switch (operation) {
+            case LOAD:
+                addr = d + content(r);
+                checkSpace(1);
+                data[ST] = data[addr];
+                ST = ST + 1;
+                CP = CP + 1;
+                break;
+            case LOADA:
+                addr = d + content(r);
+                checkSpace(1);
+                data[ST] = addr;
+                ST = ST + 1;
+                CP = CP + 1;
+                break;
+            case LOADI:
+                ST = ST - 1;
+                addr = data[ST];
+                checkSpace(1);
+                data[ST] = data[addr];
+                ST = ST + 1;
+                CP = CP + 1;
+                break;
+            case LOADL:
+                checkSpace(1);
+                data[ST] = d;
+                ST = ST + 1;
+                CP = CP + 1;
+                break;
+            case STORE:
+                addr = d + content(r);
+                ST = ST - 1;
+                data[addr] = data[ST];
+                CP = CP + 1;
+                break;
+            case STOREI:
+                ST = ST - 1;
+                addr = data[ST];
+                ST = ST - 1;
+                data[addr] = data[ST];
+                CP = CP + 1;
+                break;
+
+            case CALL:
+                // call static method, including primitives
+                // arguments are on stack
+                addr = d + content(r);      // effective address
+                if (addr >= CT + Machine.intToPrim.length) {
+                    status = failedInvalidInstruction;
+                } else if (addr >= CT) {
+                    // primitives follow the code, PB = CT
+                    callPrimitive(addr - CT);
+                    CP = CP + 1;
+                } else {
+                    // static method in code segment, no instance addr on stack
+                    checkSpace(3);
+                    data[ST] = OB;         // save caller OB in callee frame
+                    data[ST + 1] = LB;     // save caller LB in callee frame (dynamic link)
+                    data[ST + 2] = CP + 1; // save caller return address in callee frame
+                    OB = Machine.nullRep;  // set callee OB (null since no instance)
+                    LB = ST;               // set LB = start of callee frame
+                    ST = ST + 3;           // set ST = end of callee frame
+                    CP = addr;             // execution resumes at addr specified in CALL inst
+                }
+                break;
+
+            case CALLI:
+                // call instance method
+                // arguments on stack, followed by instance address
+                addr = d + content(r);      // effective address
+                if (addr >= CT) {
+                    // no instance methods outside of code segment
+                    status = failedInvalidInstruction;
+                    break;
+                }
+                // instance address is last arg on stack and is overwritten by frame
+                checkSpace(2);
+                temp = data[ST - 1];   // save instance address temporarily
+                data[ST - 1] = OB;     // save caller OB in callee frame
+                data[ST] = LB;         // save caller LB in callee frame (dynamic link)
+                data[ST + 1] = CP + 1; // save caller return address in callee frame
+                OB = temp;             // set OB for callee
+                LB = ST - 1;           // set LB = start of callee frame
+                ST = ST + 2;           // set ST = end of callee frame
+                CP = addr;             // execution resumes at addr specified in CALL inst
+                break;
+
+            case RETURN:
+                // d = number of method args (does not include instance addr for CALLI)
+                // n = size of result (0 or 1)
+                if (n < 0 || n > 1) {
+                    status = failedInvalidInstruction;
+                    break;
+                }
+                addr = LB - d;          // addr of caller args
+                OB = data[LB];          // restore caller OB, LB, CP
+                CP = data[LB + 2];
+                LB = data[LB + 1];
+                if (n == 1)
+                    data[addr] = data[ST - 1];  // return value if any
+                ST = addr + n;          // caller stack top
+                break;
+
+            case CALLD:
+                // dynamic method dispatch of method with index d (origin 0)
+                // arguments on stack, followed by instance addr
+            {
+                addr = data[ST - 1];    // instance addr
+                if (invalidHeapRef(addr))
+                    break;
+                int classDescAddr = data[addr - 2];
+                if (classDescAddr >= ST || classDescAddr <= SB || d >= data[classDescAddr + 1] || d < 0) {
+                    status = failedMethodIndex;
+                    break;
+                }
+                ST = ST - 1;
+                checkSpace(3);
+                data[ST] = OB;
+                data[ST + 1] = LB;
+                data[ST + 2] = CP + 1;
+                OB = addr;
+                LB = ST;
+                ST = ST + 3;
+                CP = data[classDescAddr + 2 + n];
+            }
+            break;
+            case PUSH: // push d elements on stack
+                checkSpace(d);
+                ST = ST + d;
+                CP = CP + 1;
+                break;
+            case POP: // pop d elements off stack
+                ST = ST - d;
+                CP = CP + 1;
+                break;
+            case JUMP:
+                CP = d + content(r);
+                break;
+            case JUMPI:
+                ST = ST - 1;
+                CP = data[ST];
+                break;
+            case JUMPIF:
+                ST = ST - 1;
+                if (data[ST] == n)
+                    CP = d + content(r);
+                else
+                    CP = CP + 1;
+                break;
+            case HALT:
+                if (n > 0) {
+                    // halt n > 0 --> snapshot machine state and continue execution
+                    dump();
+                    CP = CP + 1;
+                } else
+                    status = halted;
+                break;
+            case JUMPEQ:
+            case JUMPNE:
+            case JUMPLT:
+            case JUMPLE:
+            case JUMPGT:
+            case JUMPGE:
+                ST = ST - 2;
+                if (compare(op - Machine.Op.JUMPEQ.ordinal(), data[ST], data[ST + 1]))
+                    CP = d + content(r);
+                else
+                    CP = CP + 1;
+                break;
+            case ADDL:
+                data[ST - 1] = overflowChecked((long) data[ST - 1] + d);
+                CP = CP + 1;
+                break;
+            case SUBL:
+                data[ST - 1] = overflowChecked((long) data[ST - 1] - d);
+                CP = CP + 1;
+                break;
+            case LOADF:
+                // ..., obj addr a ==> ..., value of field d of a
+                addr = data[ST - 1];
+                if (invalidHeapRef(addr))
+                    break;
+                if (d < 0 || d >= data[addr - 1]) {
+                    status = failedFieldIndex;
+                    break;
+                }
+                data[ST - 1] = data[addr + d];
+                CP = CP + 1;
+                break;
+            case STOREF:
+                // ..., obj addr a, new value v ==> ...
+                // and a.d := v
+                addr = data[ST - 2];
+                if (invalidHeapRef(addr))
+                    break;
+                if (d < 0 || d >= data[addr - 1]) {
+                    status = failedFieldIndex;
+                    break;
+                }
+                data[addr + d] = data[ST - 1];
+                ST = ST - 2;
+                CP = CP + 1;
+                break;
+        }
+
+        if ((CP < CB) || (CP >= CT))
+            status = failedInvalidCodeAddress;
+    }
+
+    void initMachine() {
+        // Initialize registers ...
+        ST = SB;
+        HT = splitStore ? SL : HB;
+        LB = SB;
+        CP = CB;
+        OB = -1; // invalid instance addr
+        CT = program.CT;
+        status = running;
+        // ... and the heap's blocks
+        blockStarts.clear();
+        freeCount = 0;
+        allocatedSinceGc = 0;
+        gcThreshold = Math.max(64, heapCapacity() / 8);
+    }
+
+    /**
+     * Runs the program from the start until it halts or fails.
+     * @return the final status of the machine
+     */
+    public Result run() {
+        initMachine();
+        run(program.decoded);
+        return new Result(status, CP);
+    }
+
+    void run(DecodedProgram decoded) {
+        if (cacheStackTop)
+            runCached(decoded);
+        else
+            runDecoded(decoded);
+    }
+
+    void runDecoded(DecodedProgram decoded) {
+        // Same semantics as repeated interpretOneOperation, but fetches from the
+        // packed, quickened code arrays and switches on int opcodes.  Sequential
+        // execution running off the end of the code reaches the END sentinel;
+        // quickened control transfers had their targets checked at load time.
+        //
+        // The registers live in locals for the duration of the loop, and
+        // status is never polled.  Every specialized form ends with continue;
+        // one that would fail (overflow, stack full, bad heap reference, ...),
+        // and every instruction without a specialized form, breaks out of the
+        // switch instead.  The registers are then written back and the
+        // original instruction at CP is executed by interpretOneOperation, so
+        // the machine state on failure is exactly that of the reference
+        // interpreter.  A superinstruction that breaks out this way executes
+        // only the first instruction of its sequence; the rest follow
+        // individually.
+        //
+        // Calls and backward jumps count down poll, and break out when it
+        // runs out; the slow path then checks for cancellation and the
+        // deadline, so a run cannot loop or recurse without reaching a check.
+        final int[] code = decoded.code;
+        final int[] operand = decoded.operand;
+        int[] data = this.data;
+        final int length = decoded.length;
+        int cp = CP, st = ST, lb = LB, ob = OB;
+        // stack limit, and the bounds on heap object addresses
+        int sl = stackLimit(), hlo = heapLow(), hhi = heapTop();
+        int poll = POLL_INTERVAL;
+        int word, d, addr, index, x, y;
+        long v;
+
+        for (;;) {
+            word = code[cp];
+            d = operand[cp];
+            switch (DecodedProgram.opOf(word)) {
+                case DecodedProgram.LOAD_LB:
+                    if (sl - st < 1)
+                        break;
+                    data[st++] = data[lb + d];
+                    cp++;
+                    continue;
+                case DecodedProgram.LOAD_SB:
+                    if (sl - st < 1)
+                        break;
+                    data[st++] = data[SB + d];
+                    cp++;
+                    continue;
+                case DecodedProgram.LOAD_OB:
+                    if (sl - st < 1)
+                        break;
+                    data[st++] = data[ob + d];
+                    cp++;
+                    continue;
+                case DecodedProgram.LOADA_OB:
+                    if (sl - st < 1)
+                        break;
+                    data[st++] = ob + d;
+                    cp++;
+                    continue;
+                case DecodedProgram.LOADL:
+                    if (sl - st < 1)
+                        break;
+                    data[st++] = d;
+                    cp++;
+                    continue;
+                case DecodedProgram.STORE_LB:
+                    data[lb + d] = data[--st];
+                    cp++;
+                    continue;
+                case DecodedProgram.STORE_SB:
+                    data[SB + d] = data[--st];
+                    cp++;
+                    continue;
+                case DecodedProgram.STORE_OB:
+                    data[ob + d] = data[--st];
+                    cp++;
+                    continue;
+                case DecodedProgram.PUSH:
+                    if (sl - st < d)
+                        break;
+                    st += d;
+                    cp++;
+                    continue;
+                case DecodedProgram.POP:
+                    st -= d;
+                    cp++;
+                    continue;
+                case DecodedProgram.JUMP_CB:
+                    if (d <= cp && --poll < 0)
+                        break;
+                    cp = d;
+                    continue;
+                case DecodedProgram.JUMPIF_CB:
+                    if (data[st - 1] == DecodedProgram.nOf(word)) {
+                        if (d <= cp && --poll < 0)
+                            break;
+                        cp = d;
+                    } else {
+                        cp++;
+                    }
+                    st--;
+                    continue;
+                case DecodedProgram.JUMPCMP_CB:
+                    if (compare(DecodedProgram.nOf(word), data[st - 2], data[st - 1])) {
+                        if (d <= cp && --poll < 0)
+                            break;
+                        cp = d;
+                    } else {
+                        cp++;
+                    }
+                    st -= 2;
+                    continue;
+                case DecodedProgram.ADDL:
+                    v = (long) data[st - 1] + d;
+                    if (v != (int) v)
+                        break;
+                    data[st - 1] = (int) v;
+                    cp++;
+                    continue;
+                case DecodedProgram.SUBL:
+                    v = (long) data[st - 1] - d;
+                    if (v != (int) v)
+                        break;
+                    data[st - 1] = (int) v;
+                    cp++;
+                    continue;
+                // n only records that the compiler proved the object valid; the
+                // access is checked the same either way
+                case DecodedProgram.LOADF:
+                    addr = data[st - 1];
+                    if (addr < hlo + 2 || addr > hhi || d < 0 || d >= data[addr - 1])
+                        break;
+                    data[st - 1] = data[addr + d];
+                    cp++;
+                    continue;
+                case DecodedProgram.STOREF:
+                    addr = data[st - 2];
+                    if (addr < hlo + 2 || addr > hhi || d < 0 || d >= data[addr - 1])
+                        break;
+                    data[addr + d] = data[st - 1];
+                    st -= 2;
+                    cp++;
+                    continue;
+                case DecodedProgram.CALL_CB:
+                    if (sl - st < 3 || --poll < 0)
+                        break;
+                    data[st] = ob;
+                    data[st + 1] = lb;
+                    data[st + 2] = cp + 1;
+                    ob = Machine.nullRep;
+                    lb = st;
+                    st += 3;
+                    cp = d;
+                    continue;
+                case DecodedProgram.CALLI_CB:
+                    if (sl - st < 2 || --poll < 0)
+                        break;
+                    addr = data[st - 1];
+                    data[st - 1] = ob;
+                    data[st] = lb;
+                    data[st + 1] = cp + 1;
+                    ob = addr;
+                    lb = st - 1;
+                    st += 2;
+                    cp = d;
+                    continue;
+                case DecodedProgram.RETURN_0:
+                case DecodedProgram.RETURN_1:
+                    addr = lb - d;
+                    ob = data[lb];
+                    cp = data[lb + 2];
+                    lb = data[lb + 1];
+                    if (DecodedProgram.opOf(word) == DecodedProgram.RETURN_1)
+                        data[addr++] = data[st - 1];
+                    st = addr;
+                    if (cp >= 0 && cp < length)
+                        continue;
+                    CP = cp;
+                    ST = st;
+                    LB = lb;
+                    OB = ob;
+                    status = failedInvalidCodeAddress;
+                    return;
+
+                // Primitives
+                case DecodedProgram.PRIM_NOT:
+                    data[st - 1] = toInt(!isTrue(data[st - 1]));
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_AND:
+                    st--;
+                    data[st - 1] = toInt(isTrue(data[st - 1]) & isTrue(data[st]));
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_OR:
+                    st--;
+                    data[st - 1] = toInt(isTrue(data[st - 1]) | isTrue(data[st]));
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_NEG:
+                    x = data[st - 1];
+                    if (x == Integer.MIN_VALUE)
+                        break;
+                    data[st - 1] = -x;
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_ADD:
+                    v = (long) data[st - 2] + data[st - 1];
+                    if (v != (int) v)
+                        break;
+                    data[--st - 1] = (int) v;
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_SUB:
+                    v = (long) data[st - 2] - data[st - 1];
+                    if (v != (int) v)
+                        break;
+                    data[--st - 1] = (int) v;
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_MULT:
+                    v = (long) data[st - 2] * data[st - 1];
+                    if (v != (int) v)
+                        break;
+                    data[--st - 1] = (int) v;
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_DIV:
+                    y = data[st - 1];
+                    if (y == 0)
+                        break;
+                    st--;
+                    data[st - 1] = (int) ((long) data[st - 1] / y);
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_MOD:
+                    y = data[st - 1];
+                    if (y == 0)
+                        break;
+                    st--;
+                    data[st - 1] = (int) ((long) data[st - 1] % y);
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_LT:
+                    st--;
+                    data[st - 1] = toInt(data[st - 1] < data[st]);
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_LE:
+                    st--;
+                    data[st - 1] = toInt(data[st - 1] <= data[st]);
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_GE:
+                    st--;
+                    data[st - 1] = toInt(data[st - 1] >= data[st]);
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_GT:
+                    st--;
+                    data[st - 1] = toInt(data[st - 1] > data[st]);
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_EQ:
+                    st--;
+                    data[st - 1] = toInt(data[st - 1] == data[st]);
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_NE:
+                    st--;
+                    data[st - 1] = toInt(data[st - 1] != data[st]);
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_PUTINTNL:
+                    out.print(">>> " + data[--st] + "\n");
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_ARRAYLEN:
+                    addr = data[st - 1];
+                    if (addr < hlo + 2 || addr > hhi || data[addr - 2] != -2)
+                        break;
+                    data[st - 1] = data[addr - 1];
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_ARRAYREF:
+                    addr = data[st - 2];
+                    index = data[st - 1];
+                    if (addr < hlo + 2 || addr > hhi || data[addr - 2] != -2 || index < 0 || index >= data[addr - 1])
+                        break;
+                    data[--st - 1] = data[addr + index];
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_ARRAYUPD:
+                    addr = data[st - 3];
+                    index = data[st - 2];
+                    if (addr < hlo + 2 || addr > hhi || data[addr - 2] != -2 || index < 0 || index >= data[addr - 1])
+                        break;
+                    data[addr + index] = data[st - 1];
+                    st -= 3;
+                    cp++;
+                    continue;
+                // The compiler proved the unchecked array accesses valid, which
+                // only spares the array tag; a proof may be wrong, so the index
+                // is still checked against the size of the block it names
+                case DecodedProgram.PRIM_FIELDREF:
+                case DecodedProgram.PRIM_UARRAYREF:
+                    addr = data[st - 2];
+                    index = data[st - 1];
+                    if (addr < hlo + 2 || addr > hhi || index < 0 || index >= data[addr - 1])
+                        break;
+                    data[--st - 1] = data[addr + index];
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_FIELDUPD:
+                case DecodedProgram.PRIM_UARRAYUPD:
+                    addr = data[st - 3];
+                    index = data[st - 2];
+                    if (addr < hlo + 2 || addr > hhi || index < 0 || index >= data[addr - 1])
+                        break;
+                    data[addr + index] = data[st - 1];
+                    st -= 3;
+                    cp++;
+                    continue;
+
+                // Superinstructions
+                case DecodedProgram.LB_ARITHL_STORE_LB:
+                    v = DecodedProgram.nOf(word) == 0
+                            ? (long) data[lb + d] + operand[cp + 1]
+                            : (long) data[lb + d] - operand[cp + 1];
+                    if (sl - st < 2 || v != (int) v)
+                        break;
+                    data[lb + operand[cp + 3]] = (int) v;
+                    cp += 4;
+                    continue;
+                case DecodedProgram.LB_ARITHL:
+                    v = DecodedProgram.nOf(word) == 0
+                            ? (long) data[lb + d] + operand[cp + 1]
+                            : (long) data[lb + d] - operand[cp + 1];
+                    if (sl - st < 2 || v != (int) v)
+                        break;
+                    data[st++] = (int) v;
+                    cp += 3;
+                    continue;
+                case DecodedProgram.LB_LB_LT_JUMPIF:
+                    if (sl - st < 2)
+                        break;
+                    addr = toInt(data[lb + d] < data[lb + operand[cp + 1]]) == DecodedProgram.nOf(word)
+                            ? operand[cp + 3] : cp + 4;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_LB_GT_JUMPIF:
+                    if (sl - st < 2)
+                        break;
+                    addr = toInt(data[lb + d] > data[lb + operand[cp + 1]]) == DecodedProgram.nOf(word)
+                            ? operand[cp + 3] : cp + 4;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_LB_EQ_JUMPIF:
+                    if (sl - st < 2)
+                        break;
+                    addr = toInt(data[lb + d] == data[lb + operand[cp + 1]]) == DecodedProgram.nOf(word)
+                            ? operand[cp + 3] : cp + 4;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_L_LT_JUMPIF:
+                    if (sl - st < 2)
+                        break;
+                    addr = toInt(data[lb + d] < operand[cp + 1]) == DecodedProgram.nOf(word)
+                            ? operand[cp + 3] : cp + 4;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_L_GT_JUMPIF:
+                    if (sl - st < 2)
+                        break;
+                    addr = toInt(data[lb + d] > operand[cp + 1]) == DecodedProgram.nOf(word)
+                            ? operand[cp + 3] : cp + 4;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_L_EQ_JUMPIF:
+                    if (sl - st < 2)
+                        break;
+                    addr = toInt(data[lb + d] == operand[cp + 1]) == DecodedProgram.nOf(word)
+                            ? operand[cp + 3] : cp + 4;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_LB_ARRAYREF:
+                    addr = data[lb + d];
+                    index = data[lb + operand[cp + 1]];
+                    if (sl - st < 2 || addr < hlo + 2 || addr > hhi || data[addr - 2] != -2
+                            || index < 0 || index >= data[addr - 1])
+                        break;
+                    data[st++] = data[addr + index];
+                    cp += 3;
+                    continue;
+                case DecodedProgram.LB_LB_UARRAYREF:
+                    addr = data[lb + d];
+                    index = data[lb + operand[cp + 1]];
+                    if (sl - st < 2 || addr < hlo + 2 || addr > hhi || index < 0 || index >= data[addr - 1])
+                        break;
+                    data[st++] = data[addr + index];
+                    cp += 3;
+                    continue;
+                case DecodedProgram.LB_LB_JUMPCMP:
+                    if (sl - st < 2)
+                        break;
+                    addr = compare(DecodedProgram.nOf(word), data[lb + d], data[lb + operand[cp + 1]])
+                            ? operand[cp + 2] : cp + 3;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_L_JUMPCMP:
+                    if (sl - st < 2)
+                        break;
+                    addr = compare(DecodedProgram.nOf(word), data[lb + d], operand[cp + 1])
+                            ? operand[cp + 2] : cp + 3;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_ADDL_STORE_LB:
+                    v = DecodedProgram.nOf(word) == 0
+                            ? (long) data[lb + d] + operand[cp + 1]
+                            : (long) data[lb + d] - operand[cp + 1];
+                    if (sl - st < 1 || v != (int) v)
+                        break;
+                    data[lb + operand[cp + 2]] = (int) v;
+                    cp += 3;
+                    continue;
+
+                case DecodedProgram.TRAP:
+                    // debugger stop: return with the instruction at cp not executed
+                    CP = cp;
+                    ST = st;
+                    LB = lb;
+                    OB = ob;
+                    return;
+                case DecodedProgram.END:
+                    CP = cp;
+                    ST = st;
+                    LB = lb;
+                    OB = ob;
+                    status = failedInvalidCodeAddress;
+                    return;
+                default:
+                    // no specialized form
+                    break;
+            }
+
+            // Reached only by breaking out of the switch: hand the original
+            // instruction to the reference interpreter.
+            CP = cp;
+            ST = st;
+            LB = lb;
+            OB = ob;
+            if (--poll < 0) {
+                poll = POLL_INTERVAL;
+                if (stopRequested())
+                    return;
+            }
+            interpretOneOperation();
+            if (status != running)
+                return;
+            cp = CP;
+            st = ST;
+            lb = LB;
+            ob = OB;
+            sl = stackLimit();
+            hlo = heapLow();
+            hhi = heapTop();
+            data = this.data;
+        }
+    }
+
+    void runCached(DecodedProgram decoded) {
+        // Variant of runDecoded that keeps up to two words from the top of
+        // the stack in locals.  state is the number of cached words: s1 holds
+        // the top of the stack when state >= 1, and s2 the word below it when
+        // state == 2.  st is the top of the part of the stack held in data,
+        // so the machine's ST is st + state throughout.  Expression
+        // temporaries then move between locals instead of through data; the
+        // cache is spilled only before calls, pushes, heap updates, and any
+        // access to a stack address at or above st.
+        //
+        // As in runDecoded, a handler that would fail, and every instruction
+        // without a handler here, breaks out of the switch: the cache is
+        // spilled, the registers written back and the original instruction
+        // executed by interpretOneOperation.  Cancellation and the deadline
+        // are polled as in runDecoded.
+        final int[] code = decoded.code;
+        final int[] operand = decoded.operand;
+        int[] data = this.data;
+        final int length = decoded.length;
+        int cp = CP, st = ST, lb = LB, ob = OB;
+        // stack limit, and the bounds on heap object addresses
+        int sl = stackLimit(), hlo = heapLow(), hhi = heapTop();
+        int state = 0, s1 = 0, s2 = 0;
+        int poll = POLL_INTERVAL;
+        int word, op, d, addr, index, x, y;
+        long v;
+
+        for (;;) {
+            word = code[cp];
+            d = operand[cp];
+            op = DecodedProgram.opOf(word);
+            switch (op) {
+                case DecodedProgram.LOAD_LB:
+                case DecodedProgram.LOAD_SB:
+                case DecodedProgram.LOAD_OB:
+                    if (sl - st - state < 1)
+                        break;
+                    addr = op == DecodedProgram.LOAD_LB ? lb + d : op == DecodedProgram.LOAD_SB ? SB + d : ob + d;
+                    if (addr >= st && state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    x = data[addr];
+                    if (state == 0) {
+                        state = 1;
+                    } else {
+                        if (state == 2)
+                            data[st++] = s2;
+                        else
+                            state = 2;
+                        s2 = s1;
+                    }
+                    s1 = x;
+                    cp++;
+                    continue;
+                case DecodedProgram.LOADA_OB:
+                case DecodedProgram.LOADL:
+                    if (sl - st - state < 1)
+                        break;
+                    x = op == DecodedProgram.LOADL ? d : ob + d;
+                    if (state == 0) {
+                        state = 1;
+                    } else {
+                        if (state == 2)
+                            data[st++] = s2;
+                        else
+                            state = 2;
+                        s2 = s1;
+                    }
+                    s1 = x;
+                    cp++;
+                    continue;
+                case DecodedProgram.STORE_LB:
+                case DecodedProgram.STORE_SB:
+                case DecodedProgram.STORE_OB:
+                    if (state == 0) {
+                        x = data[--st];
+                    } else {
+                        x = s1;
+                        if (state == 2)
+                            s1 = s2;
+                        state--;
+                    }
+                    addr = op == DecodedProgram.STORE_LB ? lb + d : op == DecodedProgram.STORE_SB ? SB + d : ob + d;
+                    if (addr >= st && state != 0) {
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    data[addr] = x;
+                    cp++;
+                    continue;
+                case DecodedProgram.PUSH:
+                    if (sl - st - state < d)
+                        break;
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    st += d;
+                    cp++;
+                    continue;
+                case DecodedProgram.POP:
+                    if (d <= state) {
+                        if (d == 1 && state == 2)
+                            s1 = s2;
+                        state -= d;
+                    } else {
+                        st -= d - state;
+                        state = 0;
+                    }
+                    cp++;
+                    continue;
+                case DecodedProgram.JUMP_CB:
+                    if (d <= cp && --poll < 0)
+                        break;
+                    cp = d;
+                    continue;
+                case DecodedProgram.JUMPIF_CB:
+                    x = state == 0 ? data[st - 1] : s1;
+                    addr = x == DecodedProgram.nOf(word) ? d : cp + 1;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    if (state == 0) {
+                        st--;
+                    } else {
+                        if (state == 2)
+                            s1 = s2;
+                        state--;
+                    }
+                    cp = addr;
+                    continue;
+                case DecodedProgram.JUMPCMP_CB:
+                    if (state == 2) {
+                        x = s2;
+                        y = s1;
+                    } else if (state == 1) {
+                        x = data[st - 1];
+                        y = s1;
+                    } else {
+                        x = data[st - 2];
+                        y = data[st - 1];
+                    }
+                    addr = compare(DecodedProgram.nOf(word), x, y) ? d : cp + 1;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    st -= 2 - state;
+                    state = 0;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.ADDL:
+                case DecodedProgram.SUBL:
+                    if (state == 0) {
+                        s1 = data[--st];
+                        state = 1;
+                    }
+                    v = op == DecodedProgram.ADDL ? (long) s1 + d : (long) s1 - d;
+                    if (v != (int) v)
+                        break;
+                    s1 = (int) v;
+                    cp++;
+                    continue;
+                case DecodedProgram.CALL_CB:
+                    if (sl - st - state < 3 || --poll < 0)
+                        break;
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    data[st] = ob;
+                    data[st + 1] = lb;
+                    data[st + 2] = cp + 1;
+                    ob = Machine.nullRep;
+                    lb = st;
+                    st += 3;
+                    cp = d;
+                    continue;
+                case DecodedProgram.CALLI_CB:
+                    if (sl - st - state < 2 || --poll < 0)
+                        break;
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    addr = data[st - 1];
+                    data[st - 1] = ob;
+                    data[st] = lb;
+                    data[st + 1] = cp + 1;
+                    ob = addr;
+                    lb = st - 1;
+                    st += 2;
+                    cp = d;
+                    continue;
+                case DecodedProgram.RETURN_0:
+                case DecodedProgram.RETURN_1:
+                    // the result, if any, stays cached in s1
+                    x = op == DecodedProgram.RETURN_0 ? 0 : state == 0 ? data[st - 1] : s1;
+                    st = lb - d;
+                    ob = data[lb];
+                    cp = data[lb + 2];
+                    lb = data[lb + 1];
+                    if (op == DecodedProgram.RETURN_1) {
+                        s1 = x;
+                        state = 1;
+                    } else {
+                        state = 0;
+                    }
+                    if (cp >= 0 && cp < length)
+                        continue;
+                    st += state;
+                    if (state != 0)
+                        data[st - 1] = s1;
+                    CP = cp;
+                    ST = st;
+                    LB = lb;
+                    OB = ob;
+                    status = failedInvalidCodeAddress;
+                    return;
+
+                // Primitives
+                case DecodedProgram.PRIM_NOT:
+                case DecodedProgram.PRIM_NEG:
+                case DecodedProgram.PRIM_ARRAYLEN:
+                case DecodedProgram.LOADF:
+                    if (state == 0) {
+                        s1 = data[--st];
+                        state = 1;
+                    }
+                    if (op == DecodedProgram.PRIM_NOT) {
+                        s1 = toInt(!isTrue(s1));
+                    } else if (op == DecodedProgram.PRIM_NEG) {
+                        if (s1 == Integer.MIN_VALUE)
+                            break;
+                        s1 = -s1;
+                    } else if (op == DecodedProgram.PRIM_ARRAYLEN) {
+                        if (s1 < hlo + 2 || s1 > hhi || data[s1 - 2] != -2)
+                            break;
+                        s1 = data[s1 - 1];
+                    } else {
+                        if (s1 < hlo + 2 || s1 > hhi || d < 0 || d >= data[s1 - 1])
+                            break;
+                        s1 = data[s1 + d];
+                    }
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_PUTINTNL:
+                    if (state == 0) {
+                        x = data[--st];
+                    } else {
+                        x = s1;
+                        if (state == 2)
+                            s1 = s2;
+                        state--;
+                    }
+                    out.print(">>> " + x + "\n");
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_AND:
+                case DecodedProgram.PRIM_OR:
+                case DecodedProgram.PRIM_ADD:
+                case DecodedProgram.PRIM_SUB:
+                case DecodedProgram.PRIM_MULT:
+                case DecodedProgram.PRIM_DIV:
+                case DecodedProgram.PRIM_MOD:
+                case DecodedProgram.PRIM_LT:
+                case DecodedProgram.PRIM_LE:
+                case DecodedProgram.PRIM_GE:
+                case DecodedProgram.PRIM_GT:
+                case DecodedProgram.PRIM_EQ:
+                case DecodedProgram.PRIM_NE:
+                case DecodedProgram.PRIM_ARRAYREF:
+                case DecodedProgram.PRIM_FIELDREF:
+                case DecodedProgram.PRIM_UARRAYREF:
+                    // x op y, y on top; the operands are read in place and
+                    // only dropped once the result is known to be valid
+                    if (state == 2) {
+                        x = s2;
+                        y = s1;
+                    } else if (state == 1) {
+                        x = data[st - 1];
+                        y = s1;
+                    } else {
+                        x = data[st - 2];
+                        y = data[st - 1];
+                    }
+                    switch (op) {
+                        case DecodedProgram.PRIM_AND:
+                            v = toInt(isTrue(x) & isTrue(y));
+                            break;
+                        case DecodedProgram.PRIM_OR:
+                            v = toInt(isTrue(x) | isTrue(y));
+                            break;
+                        case DecodedProgram.PRIM_ADD:
+                            v = (long) x + y;
+                            break;
+                        case DecodedProgram.PRIM_SUB:
+                            v = (long) x - y;
+                            break;
+                        case DecodedProgram.PRIM_MULT:
+                            v = (long) x * y;
+                            break;
+                        case DecodedProgram.PRIM_DIV:
+                            v = y == 0 ? Long.MIN_VALUE : (int) ((long) x / y);
+                            break;
+                        case DecodedProgram.PRIM_MOD:
+                            v = y == 0 ? Long.MIN_VALUE : (int) ((long) x % y);
+                            break;
+                        case DecodedProgram.PRIM_LT:
+                            v = toInt(x < y);
+                            break;
+                        case DecodedProgram.PRIM_LE:
+                            v = toInt(x <= y);
+                            break;
+                        case DecodedProgram.PRIM_GE:
+                            v = toInt(x >= y);
+                            break;
+                        case DecodedProgram.PRIM_GT:
+                            v = toInt(x > y);
+                            break;
+                        case DecodedProgram.PRIM_EQ:
+                            v = toInt(x == y);
+                            break;
+                        case DecodedProgram.PRIM_NE:
+                            v = toInt(x != y);
+                            break;
+                        case DecodedProgram.PRIM_ARRAYREF:
+                            v = x < hlo + 2 || x > hhi || data[x - 2] != -2 || y < 0 || y >= data[x - 1]
+                                    ? Long.MIN_VALUE : data[x + y];
+                            break;
+                        default: // PRIM_FIELDREF, PRIM_UARRAYREF
+                            v = x < hlo + 2 || x > hhi || y < 0 || y >= data[x - 1]
+                                    ? Long.MIN_VALUE : data[x + y];
+                            break;
+                    }
+                    // overflow, and Long.MIN_VALUE for every other failure
+                    if (v != (int) v)
+                        break;
+                    st -= 2 - state;
+                    s1 = (int) v;
+                    state = 1;
+                    cp++;
+                    continue;
+                case DecodedProgram.PRIM_ARRAYUPD:
+                case DecodedProgram.PRIM_FIELDUPD:
+                case DecodedProgram.PRIM_UARRAYUPD:
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    addr = data[st - 3];
+                    index = data[st - 2];
+                    if (addr < hlo + 2 || addr > hhi || index < 0 || index >= data[addr - 1]
+                            || (op == DecodedProgram.PRIM_ARRAYUPD && data[addr - 2] != -2))
+                        break;
+                    data[addr + index] = data[st - 1];
+                    st -= 3;
+                    cp++;
+                    continue;
+                case DecodedProgram.STOREF:
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    addr = data[st - 2];
+                    if (addr < hlo + 2 || addr > hhi || d < 0 || d >= data[addr - 1])
+                        break;
+                    data[addr + d] = data[st - 1];
+                    st -= 2;
+                    cp++;
+                    continue;
+
+                // Superinstructions that leave the stack unchanged; their
+                // operands are locals, which are in data unless pushed since
+                // the last spill.
+                case DecodedProgram.LB_ARITHL_STORE_LB:
+                    if (sl - st - state < 2)
+                        break;
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    v = DecodedProgram.nOf(word) == 0
+                            ? (long) data[lb + d] + operand[cp + 1]
+                            : (long) data[lb + d] - operand[cp + 1];
+                    if (v != (int) v)
+                        break;
+                    data[lb + operand[cp + 3]] = (int) v;
+                    cp += 4;
+                    continue;
+                case DecodedProgram.LB_ADDL_STORE_LB:
+                    if (sl - st - state < 1)
+                        break;
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    v = DecodedProgram.nOf(word) == 0
+                            ? (long) data[lb + d] + operand[cp + 1]
+                            : (long) data[lb + d] - operand[cp + 1];
+                    if (v != (int) v)
+                        break;
+                    data[lb + operand[cp + 2]] = (int) v;
+                    cp += 3;
+                    continue;
+                case DecodedProgram.LB_LB_JUMPCMP:
+                case DecodedProgram.LB_L_JUMPCMP:
+                    if (sl - st - state < 2)
+                        break;
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    y = op == DecodedProgram.LB_LB_JUMPCMP ? data[lb + operand[cp + 1]] : operand[cp + 1];
+                    addr = compare(DecodedProgram.nOf(word), data[lb + d], y) ? operand[cp + 2] : cp + 3;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_LB_LT_JUMPIF:
+                case DecodedProgram.LB_LB_GT_JUMPIF:
+                case DecodedProgram.LB_LB_EQ_JUMPIF:
+                case DecodedProgram.LB_L_LT_JUMPIF:
+                case DecodedProgram.LB_L_GT_JUMPIF:
+                case DecodedProgram.LB_L_EQ_JUMPIF:
+                    if (sl - st - state < 2)
+                        break;
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    x = data[lb + d];
+                    switch (op) {
+                        case DecodedProgram.LB_LB_LT_JUMPIF:
+                            y = toInt(x < data[lb + operand[cp + 1]]);
+                            break;
+                        case DecodedProgram.LB_LB_GT_JUMPIF:
+                            y = toInt(x > data[lb + operand[cp + 1]]);
+                            break;
+                        case DecodedProgram.LB_LB_EQ_JUMPIF:
+                            y = toInt(x == data[lb + operand[cp + 1]]);
+                            break;
+                        case DecodedProgram.LB_L_LT_JUMPIF:
+                            y = toInt(x < operand[cp + 1]);
+                            break;
+                        case DecodedProgram.LB_L_GT_JUMPIF:
+                            y = toInt(x > operand[cp + 1]);
+                            break;
+                        default: // LB_L_EQ_JUMPIF
+                            y = toInt(x == operand[cp + 1]);
+                            break;
+                    }
+                    addr = y == DecodedProgram.nOf(word) ? operand[cp + 3] : cp + 4;
+                    if (addr <= cp && --poll < 0)
+                        break;
+                    cp = addr;
+                    continue;
+                case DecodedProgram.LB_ARITHL:
+                case DecodedProgram.LB_LB_ARRAYREF:
+                case DecodedProgram.LB_LB_UARRAYREF:
+                    // leave their result in the cache
+                    if (sl - st - state < 2)
+                        break;
+                    if (state != 0) {
+                        if (state == 2)
+                            data[st++] = s2;
+                        data[st++] = s1;
+                        state = 0;
+                    }
+                    x = data[lb + d];
+                    if (op == DecodedProgram.LB_ARITHL) {
+                        v = DecodedProgram.nOf(word) == 0
+                                ? (long) x + operand[cp + 1]
+                                : (long) x - operand[cp + 1];
+                    } else if (op == DecodedProgram.LB_LB_ARRAYREF) {
+                        y = data[lb + operand[cp + 1]];
+                        v = x < hlo + 2 || x > hhi || data[x - 2] != -2 || y < 0 || y >= data[x - 1]
+                                ? Long.MIN_VALUE : data[x + y];
+                    } else {
+                        y = data[lb + operand[cp + 1]];
+                        v = x < hlo + 2 || x > hhi || y < 0 || y >= data[x - 1]
+                                ? Long.MIN_VALUE : data[x + y];
+                    }
+                    if (v != (int) v)
+                        break;
+                    s1 = (int) v;
+                    state = 1;
+                    cp += 3;
+                    continue;
+
+                case DecodedProgram.TRAP:
+                    st += state;
+                    if (state == 2)
+                        data[st - 2] = s2;
+                    if (state != 0)
+                        data[st - 1] = s1;
+                    CP = cp;
+                    ST = st;
+                    LB = lb;
+                    OB = ob;
+                    return;
+                case DecodedProgram.END:
+                    st += state;
+                    if (state == 2)
+                        data[st - 2] = s2;
+                    if (state != 0)
+                        data[st - 1] = s1;
+                    CP = cp;
+                    ST = st;
+                    LB = lb;
+                    OB = ob;
+                    status = failedInvalidCodeAddress;
+                    return;
+                default:
+                    // no specialized form
+                    break;
+            }
+
+            // Reached only by breaking out of the switch: spill the cache and
+            // hand the original instruction to the reference interpreter.
+            if (state != 0) {
+                if (state == 2)
+                    data[st++] = s2;
+                data[st++] = s1;
+                state = 0;
+            }
+            CP = cp;
+            ST = st;
+            LB = lb;
+            OB = ob;
+            if (--poll < 0) {
+                poll = POLL_INTERVAL;
+                if (stopRequested())
+                    return;
+            }
+            interpretOneOperation();
+            if (status != running)
+                return;
+            cp = CP;
+            st = ST;
+            lb = LB;
+            ob = OB;
+            sl = stackLimit();
+            hlo = heapLow();
+            hhi = heapTop();
+            data = this.data;
+        }
+    }
+}